@@ -0,0 +1,47 @@
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Versions of the Kernels which compare many elements at once using the
+ * Vector API. Histograms scatter their increments all over the table, which
+ * the Vector API can't do any faster, so those are left to Kernels.
+ * 
+ * This should only be created through Kernels.get, which falls back to the
+ * plain versions if the jdk.incubator.vector module isn't available. It's
+ * kept apart from the rest of the code so that only builds which have the
+ * module need to compile it.
+ * 
+ * @author E
+ */
+public class VectorKernels extends Kernels {
+	private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Byte> BYTES = ByteVector.SPECIES_PREFERRED;
+
+	public VectorKernels() {
+	}
+
+	@Override
+	public int count(int[] data, int from, int to, int value) {
+		int count = 0;
+		int i = from;
+		for (int end = from + INTS.loopBound(to - from); i < end; i += INTS
+		    .length()) {
+			count += IntVector.fromArray(INTS, data, i).eq(value).trueCount();
+		}
+		return count + super.count(data, i, to, value);
+	}
+
+	@Override
+	public int countEscapes(byte[] data, int from, int to) {
+		int count = 0;
+		int i = from;
+		for (int end = from + BYTES.loopBound(to - from); i < end; i += BYTES
+		    .length()) {
+			count += ByteVector.fromArray(BYTES, data, i).lanewise(
+			    VectorOperators.AND, (byte) 0xFE).eq((byte) 246).trueCount();
+		}
+		return count + super.countEscapes(data, i, to);
+	}
+}
@@ -1,3 +1,4 @@
+import java.io.IOException;
 import java.util.Arrays;
 
 /**
@@ -15,6 +16,19 @@ public class BWTComponent {
 	 * @return inverse transformed data
 	 */
 	public int[] inverseTransform(int[] input, int size) {
+		return inverseTransform(input, size, new int[size]);
+	}
+
+	/**
+	 * Compute the inverse BWT transform of the first size elements of input
+	 * into output, which must not be input.
+	 * 
+	 * @param input data to inverse transform
+	 * @param size number of elements of data to inverse transform
+	 * @param output array of at least size elements to write to
+	 * @return output
+	 */
+	public int[] inverseTransform(int[] input, int size, int[] output) {
 		// This represents the number of characters lexicographically smaller than
 		// the indexed character in the input.
 		int[] numCharactersBefore = new int[256];
@@ -43,7 +57,6 @@ public class BWTComponent {
 		// To inverse a burrows wheeler transform, we continually 'place' the input
 		// string in a column before our current rows of characters, and then sort
 		// the rows. The row which ends in EOS is our original string.
-		int[] output = new int[size];
 		for (int i = 0; i < size; ++i) {
 			output[size - i - 1] = input[cur];
 			// We're essentially partitioning over and over again. We know that all
@@ -57,6 +70,99 @@ public class BWTComponent {
 		return output;
 	}
 
+	/**
+	 * First half of an inverse transform fused with the inverse MTF transform.
+	 * Undoes the MTF transform of the first size elements of data in place, and
+	 * at the same time works out which row of the sorted rotations each row
+	 * comes from after the first character is moved to the end. These links
+	 * are what inverseTransform follows to read off the input.
+	 * 
+	 * @param data MTF transformed data, replaced with the BWT output
+	 * @param size number of elements of data to inverse transform
+	 * @param mtf component to undo the MTF transform with
+	 * @param links array of at least size elements to write the links to
+	 * @return index of the row which ends in the EOS character
+	 * @throws IOException if there isn't exactly one EOS character
+	 */
+	public int inverseLinks(int[] data, int size, MTFComponent mtf, int[] links)
+	    throws IOException {
+		int[] numCharactersBefore = new int[256];
+		int cur = 0;
+		for (int i = 0; i < size; ++i) {
+			int c = mtf.inverseTransform(data[i]);
+			data[i] = c;
+			if (c == 0) {
+				cur = i;
+			}
+			// For now this is the number of characters equal to c before it.
+			links[i] = numCharactersBefore[c]++;
+		}
+		if (numCharactersBefore[0] != 1) {
+			throw new IOException("Corrupt block");
+		}
+		int sum = 0;
+		for (int i = 0; i < 256; ++i) {
+			sum += numCharactersBefore[i];
+			numCharactersBefore[i] = sum - numCharactersBefore[i];
+		}
+		for (int i = 0; i < size; ++i) {
+			links[i] += numCharactersBefore[data[i]];
+		}
+		return cur;
+	}
+
+	/**
+	 * Second half of the fused inverse transform. Follows the links from
+	 * inverseLinks to read off the input backwards, undoing ZeroComponent's
+	 * escapes on the way and writing the bytes straight to output. Reading
+	 * backwards we always see the byte after a 246 first, so it can be fixed
+	 * up when the 246 turns up. The EOS character isn't written.
+	 * 
+	 * The links always stay within the block, but a corrupt block can tie them
+	 * into more than one loop, so we check the bytes we read off fit in the
+	 * output as we go, and that they fill it.
+	 * 
+	 * @param data BWT output from inverseLinks
+	 * @param links links from inverseLinks
+	 * @param size number of elements of data
+	 * @param start index inverseLinks returned
+	 * @param output array to write the bytes to, which must have room for them
+	 * @return number of bytes written to output
+	 * @throws IOException if the block is corrupt
+	 */
+	public int inverseTransform(int[] data, int[] links, int size, int start,
+	    byte[] output) throws IOException {
+		if (start < 0 || start >= size) {
+			throw new IOException("Corrupt block");
+		}
+		int total = size - 1 - Kernels.get().count(data, 0, size, 246);
+		int pos = total;
+		// The row ending in EOS comes first, and we skip the EOS itself.
+		int cur = links[start];
+		for (int i = 1; i < size; ++i) {
+			int c = data[cur];
+			if (c == 246) {
+				// A 246 needs a byte after it to fix up.
+				if (pos == total) {
+					throw new IOException("Corrupt block");
+				}
+				// 101+145 = 246, 102 + 145 = 247.
+				output[pos] = (byte) (output[pos] + 145);
+			} else {
+				if (pos == 0) {
+					throw new IOException("Corrupt block");
+				}
+				// 247's are actually zeros.
+				output[--pos] = (byte) (c == 247 ? 0 : c);
+			}
+			cur = links[cur];
+		}
+		if (pos != 0) {
+			throw new IOException("Corrupt block");
+		}
+		return total;
+	}
+
 	/**
 	 * Compute the BWT transform of the first size elements of input. There must
 	 * be no zeroes in input except for one at input[size-1].
@@ -66,8 +172,21 @@ public class BWTComponent {
 	 * @return transformed data
 	 */
 	public int[] transform(int[] input, int size) {
+		return transform(input, size, new int[size]);
+	}
+
+	/**
+	 * Compute the BWT transform of the first size elements of input into
+	 * output, which must not be input. There must be no zeroes in input except
+	 * for one at input[size-1].
+	 * 
+	 * @param input data to transform
+	 * @param size number of elements of data to transform
+	 * @param output array of at least size elements to write to
+	 * @return output
+	 */
+	public int[] transform(int[] input, int size, int[] output) {
 		int[] suffixes = sais(input, size);
-		int[] output = new int[size];
 		for (int i = 0; i < suffixes.length; ++i) {
 			// We are guaranteed that the suffixes will be in the same order sorted as
 			// the rotations of the string, since the string is terminated by a unique
@@ -79,6 +198,31 @@ public class BWTComponent {
 		return output;
 	}
 
+	/**
+	 * Compute the BWT transform like transform, and also sample the suffix
+	 * array for an FMIndex: rows[k] is set to the row of the sorted rotations
+	 * which starts at input[k * rate].
+	 * 
+	 * @param input data to transform
+	 * @param size number of elements of data to transform
+	 * @param output array of at least size elements to write to
+	 * @param rate number of elements between samples
+	 * @param rows array of at least (size - 1) / rate + 1 elements to write the
+	 *          sampled rows to
+	 * @return output
+	 */
+	public int[] transform(int[] input, int size, int[] output, int rate,
+	    int[] rows) {
+		int[] suffixes = sais(input, size);
+		for (int i = 0; i < suffixes.length; ++i) {
+			output[i] = input[(suffixes[i] - 1 + size) % size];
+			if (suffixes[i] % rate == 0) {
+				rows[suffixes[i] / rate] = i;
+			}
+		}
+		return output;
+	}
+
 	/**
 	 * Returns the induced sorting of all suffixes of s given the elements in lms
 	 * are in sorted order. We also use this function to sort all the lms prefixes
@@ -180,9 +324,7 @@ public class BWTComponent {
 
 		// Calculate frequency table for use in building further data structures.
 		int[] charCount = new int[maxChar];
-		for (int i = 0; i < sSize; ++i) {
-			charCount[s[i]]++;
-		}
+		Kernels.get().histogram(s, 0, sSize, charCount);
 
 		// We divide the suffix array up into buckets based on first character.
 		// We further divide those up into L-type buckets and S-type buckets, in
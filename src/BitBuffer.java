@@ -0,0 +1,134 @@
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Growable bit vector which bits can be appended to and which can then be
+ * written out after a partial byte. Bits are stored most significant bit
+ * first, the same order DataBlock flushes them in. This lets parts of a
+ * bitstream be built independently and then joined without going back to
+ * single bits.
+ * 
+ * @author E
+ */
+public class BitBuffer {
+	/** Full bytes appended so far. */
+	private byte[] bytes;
+	/** Number of full bytes in bytes. */
+	private int size;
+	/** Bits which haven't made a full byte yet, in the least significant bits. */
+	private long pending;
+	/** Number of bits in pending. Always less than 8 between calls. */
+	private int pendingLength;
+
+	/**
+	 * Initialise an empty BitBuffer with room for about capacity bytes.
+	 * 
+	 * @param capacity initial capacity in bytes
+	 */
+	public BitBuffer(int capacity) {
+		this.bytes = new byte[Math.max(capacity, 16)];
+		this.size = 0;
+		this.pending = 0;
+		this.pendingLength = 0;
+	}
+
+	/**
+	 * Appends the bits in d.
+	 * 
+	 * @param d bits to append
+	 */
+	public void append(DataBlock d) {
+		// Never more than 7 + 32 bits in pending, since a symbol's representation
+		// is much shorter than that.
+		if (d.length > 32) {
+			append(d.data >>> 32, d.length - 32);
+			append(d.data, 32);
+		} else {
+			append(d.data, d.length);
+		}
+	}
+
+	/**
+	 * Appends the first length (at most 32) lsb of data.
+	 * 
+	 * @param data bits to append
+	 * @param length number of bits
+	 */
+	public void append(long data, int length) {
+		pending = (pending << length) | (data & ((1L << length) - 1));
+		pendingLength += length;
+		while (pendingLength >= 8) {
+			if (size == bytes.length) {
+				byte[] grown = new byte[bytes.length * 2];
+				System.arraycopy(bytes, 0, grown, 0, size);
+				bytes = grown;
+			}
+			pendingLength -= 8;
+			bytes[size++] = (byte) (pending >>> pendingLength);
+		}
+		pending &= (1L << pendingLength) - 1;
+	}
+
+	/**
+	 * Appends the bits in another buffer.
+	 * 
+	 * @param bits bits to append
+	 */
+	public void append(BitBuffer bits) {
+		for (int i = 0; i < bits.size; ++i) {
+			append(bits.bytes[i], 8);
+		}
+		append(bits.pending, bits.pendingLength);
+	}
+
+	/**
+	 * @return number of bits in the buffer
+	 */
+	public long length() {
+		return 8L * size + pendingLength;
+	}
+
+	/**
+	 * Copies our bits into a new array, padded with zero bits out to a whole
+	 * byte and then with some zero bytes, so that readers can look a little way
+	 * past the end without checking.
+	 * 
+	 * @param padding number of zero bytes to add on the end
+	 * @return the bits, most significant bit first
+	 */
+	public byte[] toByteArray(int padding) {
+		byte[] result = new byte[size + 1 + padding];
+		System.arraycopy(bytes, 0, result, 0, size);
+		result[size] = (byte) (pending << (8 - pendingLength));
+		return result;
+	}
+
+	/**
+	 * Writes our bits to out following the partial byte in carry, which must
+	 * hold less than 8 bits. If the bits are byte aligned they are copied
+	 * straight out, otherwise each byte is shifted into place. Any bits which
+	 * don't make a full byte are left in carry.
+	 * 
+	 * @param carry partial byte to start from, updated with the left over bits
+	 * @param out stream to write to
+	 * @throws IOException
+	 */
+	public void writeTo(DataBlock carry, OutputStream out) throws IOException {
+		int shift = carry.length;
+		if (shift == 0) {
+			out.write(bytes, 0, size);
+		} else if (size > 0) {
+			byte[] shifted = new byte[size];
+			int acc = (int) carry.data;
+			for (int i = 0; i < size; ++i) {
+				int b = bytes[i] & 0xFF;
+				shifted[i] = (byte) ((acc << (8 - shift)) | (b >>> shift));
+				acc = b & ((1 << shift) - 1);
+			}
+			out.write(shifted, 0, size);
+			carry.data = acc;
+		}
+		carry.pushLeft(pending, pendingLength);
+		carry.flush(out, false);
+	}
+}
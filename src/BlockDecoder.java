@@ -0,0 +1,850 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * Incremental version of the NoGGNoSkill decompression pipeline. The
+ * structure is very similar to that of BlockEncoder: compressed data may be
+ * handed over in any number of calls to write, and decompressed data is
+ * written to the output stream as soon as a full block has been decoded.
+ * 
+ * Like HuffmanComponent, we can't be sure how much data we'll get per call,
+ * so we use a state machine to keep track of where we are in the stream.
+ * 
+ * A stream may be made up of several members one after another, each ending
+ * with an END block, such as when compressed data has been appended to an
+ * existing file. They are decompressed one after another as if they were a
+ * single stream.
+ * 
+ * Any checksums in the stream are checked as we go: each block's on the
+ * thread which undoes its BWT, and each member's once all of it has been
+ * written out.
+ * 
+ * When searching, blocks with a SEARCH_INDEX are handed to a StreamSearcher
+ * as an FMIndex instead of being decoded and written out, so neither they
+ * nor the members holding them can be checked against their checksums.
+ * 
+ * @author E
+ */
+public class BlockDecoder {
+	/**
+	 * Compressed data is handed to the Huffman decoder in chunks of at most
+	 * this size, which bounds the number of symbols it can give back at once.
+	 */
+	private static final int CHUNK_SIZE = 64 * 1024;
+	/** Large blocks are moved onto the heap in chunks of this many symbols. */
+	private static final int LARGE_CHUNK_SIZE = 1024 * 1024;
+
+	/**
+	 * Stream decompressed data is written to, which remembers the most recent
+	 * output for REF blocks to copy from.
+	 */
+	private final HistoryOutputStream out;
+	private final ZeroComponent compensator;
+	private final BWTComponent bwt;
+	private final LargeBWTComponent largeBwt;
+	private final MTFComponent mtf;
+	private final HuffmanComponent huffman;
+	/** Where we're up to in the stream. */
+	private DecoderState state;
+	/** Bytes of the header we're currently reading. */
+	private final byte[] headerBuf;
+	/**
+	 * Number of bytes in headerBuf, or of the member's prefix if we're reading
+	 * that.
+	 */
+	private int headerLength;
+	/** Header of the block we're currently reading. */
+	private BlockHeader header;
+	/** Number of symbols of the current block we've decoded so far. */
+	private long decoded;
+	/** Holds compressed bytes in the form the Huffman decoder expects. */
+	private final int[] chunk;
+	/** Symbols the Huffman decoder has given back from the last chunk. */
+	private final List<Integer> symbols;
+	/** FILTER headers read since the last block, to be undone on the next. */
+	private final List<BlockHeader> filters;
+	/** Checksum read since the last block, for the next, or -1 if none. */
+	private long checksum;
+	/** Searches blocks with a SEARCH_INDEX, or null if we aren't searching. */
+	private final StreamSearcher searcher;
+	/** Contents of the SEARCH_INDEX read for the next block, or null if none. */
+	private byte[] searchIndex;
+	/** Whether the current member has had its checksum checked. */
+	private boolean memberChecked;
+	/** Whether every member so far had its checksum checked. */
+	private boolean checked;
+	/** Holds the current block if it's too large for the heap and not stored. */
+	private OffHeapArray largeBlock;
+	/**
+	 * Stages run on their own threads, or null if we run them one after another
+	 * on the calling thread.
+	 */
+	private final Pipeline pipeline;
+	/**
+	 * Job holding the current block if it isn't large. Large stored blocks are
+	 * written straight out as they come in, so they don't need one.
+	 */
+	private Pipeline.Job current;
+	/** Job reused for every block if we aren't pipelined. */
+	private Pipeline.Job job;
+	/** Memory reserved for us by a MemoryScheduler, or null if none. */
+	private MemoryScheduler.Lease lease;
+	/**
+	 * Our options, with the largest block and window the stream has needed so
+	 * far, which we estimate the memory we need from.
+	 */
+	private final CompressionOptions needed;
+
+	/**
+	 * Initialise a decoder which writes decompressed data to out.
+	 * 
+	 * @param out output stream to write to
+	 */
+	public BlockDecoder(OutputStream out) {
+		this(out, new CompressionOptions());
+	}
+
+	/**
+	 * Initialise a decoder which writes decompressed data to out.
+	 * 
+	 * @param out output stream to write to
+	 * @param options settings to decompress with
+	 */
+	public BlockDecoder(OutputStream out, CompressionOptions options) {
+		this(out, options, null);
+	}
+
+	/**
+	 * Initialise a decoder which hands blocks with a SEARCH_INDEX to searcher,
+	 * and writes the rest of the decompressed data to out.
+	 * 
+	 * @param out output stream to write to
+	 * @param options settings to decompress with
+	 * @param searcher searcher to hand indexed blocks to, or null to decode
+	 *          them
+	 */
+	public BlockDecoder(OutputStream out, CompressionOptions options,
+	    StreamSearcher searcher) {
+		this.out = new HistoryOutputStream(out);
+		this.compensator = new ZeroComponent();
+		this.bwt = new BWTComponent();
+		this.largeBwt = new LargeBWTComponent();
+		this.mtf = new MTFComponent();
+		this.huffman = new HuffmanComponent();
+		this.state = DecoderState.READING_PREFIX;
+		this.headerBuf = new byte[BlockHeader.MAX_LENGTH];
+		this.headerLength = 0;
+		this.header = null;
+		this.decoded = 0;
+		this.chunk = new int[CHUNK_SIZE];
+		this.symbols = new ArrayList<Integer>();
+		this.filters = new ArrayList<BlockHeader>();
+		this.checksum = -1;
+		this.searcher = searcher;
+		this.searchIndex = null;
+		this.memberChecked = false;
+		this.checked = true;
+		this.largeBlock = null;
+		this.current = null;
+		this.job = null;
+		this.lease = null;
+		this.needed = new CompressionOptions(options);
+		this.needed.dedup = false;
+		// The stages are the mirror image of those in BlockEncoder.
+		if (options.pipelineDepth > 0) {
+			this.pipeline = new Pipeline("noggnoskill-decompress",
+			    options.pipelineDepth, new Pipeline.Stage() {
+				    @Override
+				    public void process(Pipeline.Job job) throws IOException {
+					    inverseTransformMTF(job);
+				    }
+			    }, new Pipeline.Stage() {
+				    @Override
+				    public void process(Pipeline.Job job) throws IOException {
+					    inverseTransformBWT(job);
+				    }
+			    }, new Pipeline.Stage() {
+				    @Override
+				    public void process(Pipeline.Job job) throws IOException {
+					    inverseTransformAndWrite(job);
+				    }
+			    });
+		} else {
+			this.pipeline = null;
+		}
+	}
+
+	/**
+	 * Takes length bytes of compressed data from data starting at offset, and
+	 * decompresses any full blocks that result.
+	 * 
+	 * @param data bytes to decompress
+	 * @param offset index of the first byte in data
+	 * @param length number of bytes to take from data
+	 * @throws IOException if the data is corrupt
+	 */
+	public void write(byte[] data, int offset, int length) throws IOException {
+		int end = offset + length;
+		while (offset < end) {
+			switch (state) {
+			// In this state we're checking the prefix at the start of a member.
+				case READING_PREFIX:
+					BlockHeader.checkPrefix(headerLength++, data[offset++]);
+					if (headerLength == BlockHeader.PREFIX_LENGTH) {
+						headerLength = 0;
+						state = DecoderState.READING_HEADER;
+					}
+					break;
+				// In this state we're reading a block header a byte at a time until we
+			// have all of it.
+				case READING_HEADER:
+					if (headerLength == headerBuf.length) {
+						throw new IOException("Corrupt block header");
+					}
+					headerBuf[headerLength++] = data[offset++];
+					header = BlockHeader.read(headerBuf, headerLength);
+					if (header != null) {
+						headerLength = 0;
+						startBlock();
+					}
+					break;
+				// In this state we're passing the block's Huffman coded data to the
+				// Huffman decoder until it reads the EOS at the end.
+				case DECODING_BLOCK:
+					int n = Math.min(end - offset, chunk.length);
+					for (int i = 0; i < n; ++i) {
+						chunk[i] = data[offset + i] & 0xFF;
+					}
+					offset += huffman.decompressAndAppend(chunk, n, symbols);
+					appendSymbols();
+					if (huffman.isStreamEnded()) {
+						// The Huffman decoder may have read a little past the end of the
+						// block, so we need to take those bytes back from it.
+						int[] leftover = huffman.resetDecoder();
+						finishBlock();
+						byte[] bytes = new byte[leftover.length];
+						for (int i = 0; i < leftover.length; ++i) {
+							bytes[i] = (byte) leftover[i];
+						}
+						write(bytes, 0, bytes.length);
+					}
+					break;
+				// In this state we're copying the bytes of a stored block.
+				case READING_STORED:
+					n = (int) Math.min(end - offset, header.length - decoded);
+					if (current != null) {
+						System.arraycopy(data, offset, current.input, (int) decoded, n);
+					} else {
+						out.write(data, offset, n);
+					}
+					offset += n;
+					decoded += n;
+					if (decoded == header.length) {
+						finishBlock();
+					}
+					break;
+				// In this state we're reading a shard or search index, which we
+				// only keep if it's a search index we're going to search with.
+				case READING_INDEX:
+					n = (int) Math.min(end - offset, header.length - decoded);
+					if (searchIndex != null) {
+						System.arraycopy(data, offset, searchIndex, (int) decoded, n);
+					}
+					offset += n;
+					decoded += n;
+					if (decoded == header.length) {
+						state = DecoderState.READING_HEADER;
+					}
+					break;
+				// In this state we've reached the end of a member, and anything
+				// more is the start of another one appended after it.
+				case STREAM_END:
+					startMember();
+					break;
+			}
+		}
+	}
+
+	/**
+	 * Waits for any blocks in flight to be written out once there is no more
+	 * compressed data to come. The output stream is flushed but not closed.
+	 * 
+	 * @throws IOException if the stream was cut short, or there was no
+	 *           compressed data
+	 */
+	public void finish() throws IOException {
+		if (pipeline != null) {
+			pipeline.finish();
+		}
+		out.flush();
+		if (state != DecoderState.STREAM_END) {
+			throw new IOException("Unexpected end of compressed data");
+		}
+	}
+
+	/**
+	 * @return whether every member so far ended with a stream checksum, which
+	 *         matched
+	 */
+	public boolean isChecked() {
+		return checked;
+	}
+
+	/**
+	 * Has us grow lease whenever the stream needs more memory than it holds,
+	 * waiting for the memory before going on.
+	 * 
+	 * @param lease lease for this job
+	 */
+	public void setLease(MemoryScheduler.Lease lease) {
+		this.lease = lease;
+	}
+
+	/**
+	 * Stops any stage threads without finishing the stream. Used when giving up
+	 * part way through decompression.
+	 */
+	public void abort() {
+		if (pipeline != null) {
+			pipeline.abort();
+		}
+	}
+
+	/**
+	 * Gets ready to read a new member of a stream. Each member is compressed
+	 * on its own, so REF blocks can't refer back to earlier members.
+	 * 
+	 * @throws IOException
+	 */
+	private void startMember() throws IOException {
+		if (pipeline != null) {
+			pipeline.drain();
+		}
+		out.setWindow(0);
+		out.resetChecksum();
+		state = DecoderState.READING_PREFIX;
+	}
+
+	/**
+	 * Gets ready to read the block described by header.
+	 * 
+	 * @throws IOException if the header is invalid
+	 */
+	private void startBlock() throws IOException {
+		if (header.type == BlockHeader.FILTER) {
+			Filter filter = FilterComponent.get(header.filter);
+			if (filter == null || !filter.accepts(header.parameter)) {
+				throw new IOException("Unknown filter " + header.filter);
+			}
+			filters.add(header);
+			return;
+		}
+		if (header.type == BlockHeader.CHECKSUM) {
+			if (checksum >= 0) {
+				throw new IOException("Corrupt block header");
+			}
+			checksum = header.checksum;
+			return;
+		}
+		// The encoder only filters, checksums and indexes blocks it kept on the
+		// heap, so those we decode on the heap too, however large. Otherwise
+		// blocks too large for the heap path are decoded off it, except ST
+		// blocks, since we can't do the ST off the heap.
+		boolean onHeap = header.length <= BlockEncoder.BLOCK_SIZE
+		    || header.type == BlockHeader.ST || !filters.isEmpty()
+		    || checksum >= 0 || searchIndex != null;
+		// Filters are only ever applied to coded blocks, and only coded and
+		// stored blocks have checksums. Search indexes come before both, and are
+		// only for BWT blocks without filters.
+		if (!filters.isEmpty() && !BlockHeader.isCoded(header.type)) {
+			throw new IOException("Corrupt block header");
+		}
+		if (searchIndex != null && (header.type != BlockHeader.BWT
+		    || !filters.isEmpty())) {
+			throw new IOException("Corrupt block header");
+		}
+		if (checksum >= 0 && !(BlockHeader.isCoded(header.type)
+		    || header.type == BlockHeader.STORED)) {
+			throw new IOException("Corrupt block header");
+		}
+		if (header.type == BlockHeader.STREAM_CHECKSUM) {
+			// Everything before it has to be written out to be counted.
+			if (pipeline != null) {
+				pipeline.drain();
+			}
+			// Searched blocks aren't written out, so we can't check the rest.
+			if (searcher != null) {
+				return;
+			}
+			if (header.checksum != out.checksum()
+			    || header.length != out.length()) {
+				throw new IOException("Stream checksum mismatch");
+			}
+			memberChecked = true;
+			return;
+		}
+		if (header.type == BlockHeader.SYNC) {
+			if (pipeline != null) {
+				pipeline.drain();
+			}
+			out.flush();
+			return;
+		}
+		if (header.type == BlockHeader.END) {
+			checked &= memberChecked;
+			memberChecked = false;
+			state = DecoderState.STREAM_END;
+			return;
+		}
+		if (header.length < 1 || header.length > OffHeapArray.MAX_INDEX) {
+			throw new IOException("Corrupt block header");
+		}
+		if (header.type == BlockHeader.INDEX
+		    || header.type == BlockHeader.SEARCH_INDEX) {
+			// We can only search a block without decoding it if no REF block can
+			// refer back to it.
+			if (header.type == BlockHeader.SEARCH_INDEX && searcher != null
+			    && out.window() == 0) {
+				if (header.length > Integer.MAX_VALUE - 8) {
+					throw new IOException("Corrupt block header");
+				}
+				searchIndex = new byte[(int) header.length];
+			}
+			decoded = 0;
+			state = DecoderState.READING_INDEX;
+			return;
+		}
+		if (header.type == BlockHeader.WINDOW) {
+			if (header.length > Integer.MAX_VALUE - 8) {
+				throw new IOException("Corrupt block header");
+			}
+			// Blocks which are already in flight may be written with or without
+			// being remembered, so wait for them to make sure.
+			if (pipeline != null) {
+				pipeline.drain();
+			}
+			if (!needed.dedup || header.length > needed.dedupWindow) {
+				needed.dedup = true;
+				needed.dedupWindow = header.length;
+				reserve();
+			}
+			out.setWindow((int) header.length);
+			return;
+		}
+		if (header.type == BlockHeader.REF) {
+			if (header.length > Integer.MAX_VALUE) {
+				throw new IOException("Corrupt block header");
+			}
+			// There's nothing more to read, so the block is already finished.
+			current = nextJob();
+			current.type = BlockHeader.REF;
+			current.checksum = -1;
+			current.searchIndex = null;
+			current.length = 0;
+			current.inputLength = (int) header.length;
+			current.distance = header.distance;
+			decoded = header.length;
+			finishBlock();
+			return;
+		}
+		decoded = 0;
+		if (onHeap && header.length > Integer.MAX_VALUE - 8) {
+			throw new IOException("Corrupt block header");
+		}
+		boolean largeOnHeap = onHeap && header.length > BlockEncoder.BLOCK_SIZE;
+		if (header.length > needed.blockSize
+		    || (header.type == BlockHeader.ST && needed.sortContext == 0)
+		    || (largeOnHeap && needed.offHeap)) {
+			needed.blockSize = Math.max(needed.blockSize, header.length);
+			if (header.type == BlockHeader.ST) {
+				needed.sortContext = header.context;
+			}
+			if (largeOnHeap) {
+				needed.offHeap = false;
+			}
+			reserve();
+		}
+		if (!onHeap) {
+			// Large blocks are decoded on this thread, so the blocks before them
+			// need to be written out first.
+			if (pipeline != null) {
+				pipeline.drain();
+			}
+			if (header.type == BlockHeader.BWT) {
+				largeBlock = new OffHeapArray(header.length, 1);
+			}
+		} else {
+			current = nextJob();
+			current.type = header.type;
+			current.context = header.context;
+			current.filters.clear();
+			current.filters.addAll(filters);
+			filters.clear();
+			current.checksum = checksum;
+			checksum = -1;
+			current.searchIndex = searchIndex;
+			searchIndex = null;
+			if (BlockHeader.isCoded(header.type)) {
+				current.ensureCapacity((int) header.length);
+				current.length = (int) header.length;
+			} else {
+				current.ensureInputCapacity((int) header.length);
+				current.inputLength = (int) header.length;
+				current.length = 0;
+			}
+		}
+		state = BlockHeader.isCoded(header.type) ? DecoderState.DECODING_BLOCK
+		    : DecoderState.READING_STORED;
+	}
+
+	/**
+	 * Makes sure our lease, if we have one, holds enough memory for what the
+	 * stream has needed so far.
+	 * 
+	 * @throws InterruptedIOException if we're interrupted waiting for memory
+	 */
+	private void reserve() throws InterruptedIOException {
+		if (lease == null) {
+			return;
+		}
+		try {
+			lease.reserve(MemoryScheduler.estimateDecompression(needed));
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+	}
+
+	/**
+	 * Moves the symbols the Huffman decoder has given back into the current
+	 * block.
+	 * 
+	 * @throws IOException if the block has too many symbols
+	 */
+	private void appendSymbols() throws IOException {
+		if (decoded + symbols.size() > header.length) {
+			throw new IOException("Corrupt block");
+		}
+		for (int symbol : symbols) {
+			if (largeBlock != null) {
+				largeBlock.set(decoded++, symbol);
+			} else {
+				current.data[(int) decoded++] = symbol;
+			}
+		}
+		symbols.clear();
+	}
+
+	/**
+	 * Sends the current block, which has been completely read, to be inverse
+	 * transformed and written out.
+	 * 
+	 * @throws IOException if the block is corrupt
+	 */
+	private void finishBlock() throws IOException {
+		if (decoded != header.length) {
+			throw new IOException("Corrupt block");
+		}
+		if (largeBlock != null) {
+			inverseTransformLarge(largeBlock, header.length);
+			largeBlock = null;
+		} else if (current == null) {
+			// A large stored block, which has already been written out.
+		} else if (pipeline != null) {
+			pipeline.submit(current);
+		} else {
+			inverseTransformMTF(current);
+			inverseTransformBWT(current);
+			inverseTransformAndWrite(current);
+		}
+		current = null;
+		state = DecoderState.READING_HEADER;
+	}
+
+	/**
+	 * @return a job to fill with the next block
+	 * @throws IOException
+	 */
+	private Pipeline.Job nextJob() throws IOException {
+		if (pipeline != null) {
+			return pipeline.take();
+		}
+		if (job == null) {
+			job = new Pipeline.Job(0);
+		}
+		return job;
+	}
+
+	/**
+	 * MTF stage. For BWT blocks this also works out the links the inverse BWT
+	 * follows, so the block is only read through once.
+	 * 
+	 * @param job block to inverse transform
+	 * @throws IOException if the block is corrupt
+	 */
+	private void inverseTransformMTF(Pipeline.Job job) throws IOException {
+		if (!BlockHeader.isCoded(job.type)) {
+			return;
+		}
+		mtf.reset();
+		if (job.type == BlockHeader.BWT && job.searchIndex == null) {
+			job.origin = bwt.inverseLinks(job.data, job.length, mtf, job.scratch);
+		} else {
+			mtf.inverseTransform(job.data, job.length, job.data);
+		}
+	}
+
+	/**
+	 * BWT or ST stage, which also undoes the zero compensation and any
+	 * filters, leaving the decompressed bytes in the job's input, and checks
+	 * them against the block's checksum.
+	 * 
+	 * @param job block to inverse transform
+	 * @throws IOException if the block doesn't match its checksum
+	 */
+	private void inverseTransformBWT(Pipeline.Job job) throws IOException {
+		if (job.searchIndex != null) {
+			job.fmIndex = new FMIndex(job.data, job.length, job.searchIndex);
+			return;
+		}
+		if (BlockHeader.isCoded(job.type)) {
+			inverseTransformCoded(job);
+		}
+		if (job.checksum >= 0) {
+			CRC32C crc = new CRC32C();
+			crc.update(job.input, 0, job.inputLength);
+			if (crc.getValue() != job.checksum) {
+				throw new IOException("Block checksum mismatch");
+			}
+		}
+	}
+
+	/**
+	 * Undoes the BWT or ST, the zero compensation and the filters of a coded
+	 * block.
+	 * 
+	 * @param job block to inverse transform
+	 * @throws IOException if the block is corrupt
+	 */
+	private void inverseTransformCoded(Pipeline.Job job) throws IOException {
+		job.ensureInputCapacity(job.length);
+		if (job.type == BlockHeader.BWT) {
+			job.inputLength = bwt.inverseTransform(job.data, job.scratch,
+			    job.length, job.origin, job.input);
+		} else {
+			new STComponent(job.context).inverseTransform(job.data, job.length,
+			    job.scratch);
+			job.swap();
+			// The last symbol is the EOS marker, which isn't part of the output.
+			job.inputLength = compensator.inverseTransform(job.data,
+			    job.length - 1, job.input);
+			if (compensator.isUnfinished()) {
+				throw new IOException("Corrupt block");
+			}
+		}
+		for (int i = job.filters.size() - 1; i >= 0; --i) {
+			BlockHeader header = job.filters.get(i);
+			FilterComponent.get(header.filter).decode(job.input, job.inputLength,
+			    header.parameter);
+		}
+	}
+
+	/**
+	 * Output stage.
+	 * 
+	 * @param job block to write
+	 * @throws IOException
+	 */
+	private void inverseTransformAndWrite(Pipeline.Job job) throws IOException {
+		if (job.type == BlockHeader.REF) {
+			out.copy(job.distance, job.inputLength);
+		} else if (job.fmIndex != null) {
+			searcher.search(job.fmIndex);
+			job.fmIndex = null;
+		} else {
+			out.write(job.input, 0, job.inputLength);
+		}
+	}
+
+	/**
+	 * Does all the stages for a block kept off the heap, moving it onto the heap
+	 * a chunk at a time where needed.
+	 * 
+	 * @param block block to inverse transform
+	 * @param length number of symbols in block
+	 * @throws IOException
+	 */
+	private void inverseTransformLarge(OffHeapArray block, long length)
+	    throws IOException {
+		int[] buf = new int[(int) Math.min(LARGE_CHUNK_SIZE, length)];
+		byte[] bytes = new byte[buf.length];
+		mtf.reset();
+		for (long i = 0; i < length; i += buf.length) {
+			int bufLength = (int) Math.min(buf.length, length - i);
+			block.get(i, buf, 0, bufLength);
+			mtf.inverseTransform(buf, bufLength, buf);
+			block.set(i, buf, 0, bufLength);
+		}
+		block = largeBwt.inverseTransform(block, length);
+		// ZeroComponent remembers an escape split across chunks, so it's fine to
+		// feed it a chunk at a time.
+		for (long i = 0; i < length - 1; i += buf.length) {
+			int bufLength = (int) Math.min(buf.length, length - 1 - i);
+			block.get(i, buf, 0, bufLength);
+			out.write(bytes, 0, compensator.inverseTransform(buf, bufLength, bytes));
+		}
+		if (compensator.isUnfinished()) {
+			throw new IOException("Corrupt block");
+		}
+	}
+
+	/**
+	 * Output stream which passes everything through to another stream, and
+	 * keeps the last window bytes so they can be copied again. The buffer grows
+	 * as it fills, so short streams don't pay for a whole window.
+	 */
+	private static class HistoryOutputStream extends OutputStream {
+		/** REF blocks are copied out in pieces of at most this many bytes. */
+		private static final int COPY_SIZE = 64 * 1024;
+
+		private final OutputStream out;
+		/**
+		 * The most recent output. Byte i of the output since the window was set
+		 * is at i % history.length.
+		 */
+		private byte[] history;
+		/** Number of bytes to keep, or 0 if we don't need to keep any. */
+		private int window;
+		/** Number of bytes written since the window was set. */
+		private long written;
+		/** CRC32C of everything written since the checksum was reset. */
+		private final CRC32C checksum;
+		/** Number of bytes written since the checksum was reset. */
+		private long length;
+
+		public HistoryOutputStream(OutputStream out) {
+			this.out = out;
+			this.history = new byte[0];
+			this.window = 0;
+			this.written = 0;
+			this.checksum = new CRC32C();
+			this.length = 0;
+		}
+
+		/**
+		 * Starts the checksum and length again from nothing.
+		 */
+		public void resetChecksum() {
+			checksum.reset();
+			length = 0;
+		}
+
+		/**
+		 * @return CRC32C of everything written since the checksum was reset
+		 */
+		public long checksum() {
+			return checksum.getValue();
+		}
+
+		/**
+		 * @return number of bytes written since the checksum was reset
+		 */
+		public long length() {
+			return length;
+		}
+
+		/**
+		 * @return number of bytes of output being kept
+		 */
+		public int window() {
+			return window;
+		}
+
+		/**
+		 * Starts keeping the last window bytes of output.
+		 * 
+		 * @param window number of bytes to keep
+		 */
+		public void setWindow(int window) {
+			this.history = new byte[Math.min(window, COPY_SIZE)];
+			this.window = window;
+			this.written = 0;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			checksum.update(b, off, len);
+			length += len;
+			if (window == 0) {
+				return;
+			}
+			// The buffer can only have wrapped around once it's full size.
+			if (history.length < window && written + len > history.length) {
+				byte[] grown = new byte[(int) Math.min(window,
+				    Math.max(written + len, 2L * history.length))];
+				System.arraycopy(history, 0, grown, 0, (int) written);
+				history = grown;
+			}
+			if (len > history.length) {
+				written += len - history.length;
+				off += len - history.length;
+				len = history.length;
+			}
+			while (len > 0) {
+				int pos = (int) (written % history.length);
+				int n = Math.min(len, history.length - pos);
+				System.arraycopy(b, off, history, pos, n);
+				written += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		/**
+		 * Writes length bytes copied from distance bytes back. The copy may
+		 * overlap what it's writing, in which case it repeats.
+		 * 
+		 * @param distance number of bytes back to copy from
+		 * @param length number of bytes to copy
+		 * @throws IOException if distance is out of range
+		 */
+		public void copy(long distance, int length) throws IOException {
+			if (distance < 1 || distance > window || distance > written) {
+				throw new IOException("Corrupt REF block");
+			}
+			// Each piece is copied to a separate buffer before we write it, since
+			// writing it may overwrite where it came from.
+			byte[] buf = new byte[(int) Math.min(length,
+			    Math.min(distance, COPY_SIZE))];
+			while (length > 0) {
+				int n = Math.min(buf.length, length);
+				int pos = (int) ((written - distance) % history.length);
+				int first = Math.min(n, history.length - pos);
+				System.arraycopy(history, pos, buf, 0, first);
+				System.arraycopy(history, 0, buf, first, n - first);
+				write(buf, 0, n);
+				length -= n;
+			}
+		}
+	}
+
+	/** Decoder state */
+	private enum DecoderState {
+		READING_PREFIX, READING_HEADER, DECODING_BLOCK, READING_STORED,
+		READING_INDEX, STREAM_END
+	}
+}
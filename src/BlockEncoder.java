@@ -0,0 +1,988 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+/**
+ * Incremental version of the NoGGNoSkill compression pipeline. Data may be
+ * handed over in any number of calls to write, and compressed data is written
+ * to the output stream as soon as a full block is available. This lets us
+ * compress data which is pushed to us, rather than data we pull from an input
+ * stream.
+ * 
+ * Each block is written with a BlockHeader and is self contained: it covers a
+ * whole number of input bytes, the MTF table starts afresh, and the Huffman
+ * data is terminated by EOS and padded to a byte.
+ * 
+ * Blocks which look incompressible, or which turn out not to get any smaller,
+ * are stored as they are. This saves the time we'd spend on data which has
+ * already been compressed, and means the output is never much larger than the
+ * input.
+ * 
+ * If dedup is turned on, the input is first split into chunks by a
+ * DedupComponent, and chunks which have been seen before are written as REF
+ * blocks instead, between the blocks holding the rest of the input.
+ * 
+ * If rsyncable is turned on, blocks also end wherever a BoundaryComponent
+ * finds a boundary in the input. Since every block already starts afresh, an
+ * edit to the input then only changes the blocks around it, and the rest of
+ * the output stays the same, which suits tools like rsync.
+ * 
+ * @author E
+ */
+public class BlockEncoder {
+	/** By default we process the data in blocks of this size. */
+	public static final int BLOCK_SIZE = 20 * 1024 * 1024;
+	/**
+	 * Large blocks are moved onto the heap in chunks of this many symbols for
+	 * MTF and Huffman coding. Huffman blocks can't span chunks, but it's a
+	 * multiple of the largest Huffman block, so this rarely matters.
+	 */
+	private static final int CHUNK_SIZE = 1024 * 1024;
+	/** Initial size of the buffer for uncompressed input. */
+	private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+	/**
+	 * Blocks whose bytes have at least this much entropy, in bits per byte, are
+	 * stored without trying to compress them. Data which has already been
+	 * compressed or encrypted comes out at almost exactly 8.
+	 */
+	private static final double STORED_ENTROPY = 7.95;
+	/**
+	 * Rough time the full BWT takes per byte of input, including the stages
+	 * after it, until we've timed a block ourselves.
+	 */
+	public static final double BWT_NANOS_PER_BYTE = 250;
+	/** Roughly how many times faster the ST transform is than the full BWT. */
+	public static final double ST_SPEEDUP = 3;
+	/** Sort context used when the full BWT would take too long. */
+	private static final int FAST_SORT_CONTEXT = 2;
+	/**
+	 * With a time budget, the input is split into at least this many blocks, so
+	 * running out of time only leaves the last few stored.
+	 */
+	private static final int TIMED_BLOCKS = 8;
+	/** With a time budget, blocks are never made smaller than this. */
+	private static final long MIN_TIMED_BLOCK_SIZE = 1024 * 1024;
+	/**
+	 * With rsyncable on, blocks are never ended at a boundary before they have
+	 * this many bytes.
+	 */
+	private static final long MIN_RSYNC_BLOCK_SIZE = 512 * 1024;
+	/**
+	 * With rsyncable on, a boundary is where this many bits of the hash are
+	 * clear, about every 1 MB after the smallest block.
+	 */
+	private static final int RSYNC_BOUNDARY_BITS = 20;
+
+	/** Stream compressed data is written to. */
+	private final OutputStream out;
+	// Modular compression via set of 'filters'.
+	/** Chooses the filter for each block, or null if filters are off. */
+	private final FilterComponent filter;
+	private final ZeroComponent compensator;
+	private final BWTComponent bwt;
+	/**
+	 * Number of symbols of context blocks are sorted on with the ST transform,
+	 * or 0 to use the full BWT.
+	 */
+	private final int sortContext;
+	private final LargeBWTComponent largeBwt;
+	private final MTFComponent mtf;
+	private final HuffmanComponent huffman;
+	/** Maximum number of symbols in a block, including the EOS marker. */
+	private final long blockSize;
+	/** Whether blocks are kept off the heap. */
+	private final boolean offHeap;
+	/**
+	 * Input which has not been compressed yet. We keep the raw bytes, and only
+	 * zero compensate them once we have a whole block.
+	 */
+	private byte[] raw;
+	/** Used instead of raw if blocks are kept off the heap. */
+	private OffHeapArray largeRaw;
+	/** Number of bytes of input waiting to be compressed. */
+	private long rawLength;
+	/** Number of symbols the waiting input will be once zero compensated. */
+	private long symbols;
+	/**
+	 * Stages run on their own threads, or null if we run them one after another
+	 * on the calling thread.
+	 */
+	private final Pipeline pipeline;
+	/** Job reused for every block if we aren't pipelined. */
+	private Pipeline.Job job;
+	/** Finds repeated chunks, or null if dedup is turned off. */
+	private final DedupComponent dedup;
+	/** Finds where blocks end early, or null if rsyncable is turned off. */
+	private final BoundaryComponent boundaries;
+	/** Whether to store an FMIndex sample with each BWT block we can. */
+	private final boolean searchIndex;
+	/** How far back REF blocks may refer. */
+	private final long window;
+	/** The current chunk, held until we know whether it's a repeat. */
+	private byte[] chunk;
+	/** Number of bytes in chunk. */
+	private int chunkLength;
+	/** Number of bytes in repeated chunks waiting to be written as a REF. */
+	private long refLength;
+	/** Distance back to the copy of the repeated chunks. */
+	private long refDistance;
+	/** Whether we've written anything yet. */
+	private boolean started;
+	/** CRC32C of all the input so far, or null if checksums are off. */
+	private final CRC32C checksum;
+	/** Number of bytes of input so far. */
+	private long inputLength;
+	/**
+	 * Compressed blocks are held here until we know they're smaller than the
+	 * stored block would be.
+	 */
+	private final ByteArrayOutputStream blockOut;
+	/** Whether we have a deadline to finish by. */
+	private final boolean timed;
+	/** Value of System.nanoTime by which we should be finished. */
+	private final long deadline;
+	/**
+	 * Expected time for the full BWT per byte, going by the last block to be
+	 * finished. It's set by whichever thread writes the blocks out.
+	 */
+	private volatile double bwtNanosPerByte;
+	/** Number of bytes in coded blocks which are still in the pipeline. */
+	private final AtomicLong queued;
+	/**
+	 * Type of block we're coding with, which gets cheaper as we run short of
+	 * time: BWT, then ST, then STORED.
+	 */
+	private int timedType;
+
+	/**
+	 * Initialise an encoder which writes compressed data to out.
+	 * 
+	 * @param out output stream to write to
+	 */
+	public BlockEncoder(OutputStream out) {
+		this(out, new CompressionOptions());
+	}
+
+	/**
+	 * Initialise an encoder which writes compressed data to out.
+	 * 
+	 * @param out output stream to write to
+	 * @param options settings to compress with
+	 * @throws IllegalArgumentException if the block size is invalid
+	 */
+	public BlockEncoder(OutputStream out, CompressionOptions options)
+	    throws IllegalArgumentException {
+		// We need room for at least one byte, which may take two symbols, plus
+		// EOS.
+		if (options.blockSize < 3
+		    || (!options.offHeap && options.blockSize > Integer.MAX_VALUE - 8)) {
+			throw new IllegalArgumentException("Invalid block size "
+			    + options.blockSize);
+		}
+		if (options.dedup && (options.dedupWindow < 1
+		    || options.dedupWindow > Integer.MAX_VALUE - 8)) {
+			throw new IllegalArgumentException("Invalid dedup window "
+			    + options.dedupWindow);
+		}
+		if (options.sortContext < 0
+		    || options.sortContext > STComponent.MAX_CONTEXT) {
+			throw new IllegalArgumentException("Invalid sort context "
+			    + options.sortContext);
+		}
+		if (options.timeBudget < 0) {
+			throw new IllegalArgumentException("Invalid time budget "
+			    + options.timeBudget);
+		}
+		this.out = out;
+		if (options.records) {
+			this.filter = new FilterComponent(RecordFilter.ID);
+		} else {
+			this.filter = options.filters ? new FilterComponent() : null;
+		}
+		this.compensator = new ZeroComponent();
+		this.bwt = new BWTComponent();
+		this.sortContext = options.sortContext;
+		this.largeBwt = new LargeBWTComponent();
+		this.mtf = new MTFComponent();
+		this.huffman = new HuffmanComponent(options.threads,
+		    options.huffmanStreams);
+		this.blockSize = options.blockSize;
+		this.offHeap = options.offHeap;
+		this.raw = null;
+		this.largeRaw = null;
+		this.rawLength = 0;
+		this.symbols = 0;
+		this.job = null;
+		this.blockOut = new ByteArrayOutputStream();
+		this.dedup = options.dedup ? new DedupComponent(options.dedupWindow)
+		    : null;
+		this.window = options.dedupWindow;
+		// The symbol count ends blocks which go on too long.
+		this.boundaries = options.rsyncable ? new BoundaryComponent(
+		    MIN_RSYNC_BLOCK_SIZE, Long.MAX_VALUE, RSYNC_BOUNDARY_BITS) : null;
+		this.searchIndex = options.searchIndex;
+		this.chunk = null;
+		this.chunkLength = 0;
+		this.refLength = 0;
+		this.refDistance = 0;
+		this.started = false;
+		this.checksum = options.checksums ? new CRC32C() : null;
+		this.inputLength = 0;
+		this.timed = options.timeBudget > 0;
+		this.deadline = System.nanoTime() + options.timeBudget * 1000000;
+		this.queued = new AtomicLong();
+		this.bwtNanosPerByte = BWT_NANOS_PER_BYTE;
+		// Blocks kept off the heap can't use the ST transform.
+		this.timedType = sortContext > 0 && !offHeap ? BlockHeader.ST
+		    : BlockHeader.BWT;
+		// Large blocks are compressed on the calling thread, since we couldn't
+		// afford to have more than one in memory anyway.
+		if (options.pipelineDepth > 0 && !offHeap) {
+			this.pipeline = new Pipeline("noggnoskill-compress",
+			    options.pipelineDepth, new Pipeline.Stage() {
+				    @Override
+				    public void process(Pipeline.Job job) throws IOException {
+					    transformBWT(job);
+				    }
+			    }, new Pipeline.Stage() {
+				    @Override
+				    public void process(Pipeline.Job job) throws IOException {
+					    transformMTF(job);
+				    }
+			    }, new Pipeline.Stage() {
+				    @Override
+				    public void process(Pipeline.Job job) throws IOException {
+					    compressAndWrite(job);
+				    }
+			    });
+		} else {
+			this.pipeline = null;
+		}
+	}
+
+	/**
+	 * Picks options for compressing inputSize bytes within timeBudget
+	 * milliseconds, starting from options. The input is split into several
+	 * blocks so that if we run short of time, only the last few have to be
+	 * coded more cheaply, and if the full BWT looks too slow we sort on limited
+	 * context from the start.
+	 * 
+	 * @param options options to start from
+	 * @param inputSize number of bytes of input, or -1 if it isn't known
+	 * @param timeBudget number of milliseconds compression should take at most
+	 * @return the options to use, which are a copy
+	 */
+	public static CompressionOptions planForBudget(CompressionOptions options,
+	    long inputSize, long timeBudget) {
+		CompressionOptions plan = new CompressionOptions(options);
+		plan.timeBudget = timeBudget;
+		if (inputSize < 0) {
+			return plan;
+		}
+		plan.blockSize = Math.min(plan.blockSize, Math.max(MIN_TIMED_BLOCK_SIZE,
+		    inputSize / TIMED_BLOCKS + 1));
+		if (plan.blockSize <= BLOCK_SIZE) {
+			plan.offHeap = false;
+		}
+		if (!plan.offHeap && plan.sortContext == 0
+		    && inputSize * BWT_NANOS_PER_BYTE > timeBudget * 1e6) {
+			plan.sortContext = FAST_SORT_CONTEXT;
+		}
+		return plan;
+	}
+
+	/**
+	 * Works out the most bytes compressing length bytes with options can take,
+	 * so callers can size their output up front. No block is ever bigger than
+	 * it would be stored, so this is the input plus the most headers it could
+	 * be split into blocks with. It doesn't allow for calls to flush, which end
+	 * blocks early. With offHeap, blocks too large to be held on the heap are
+	 * only stored if they look incompressible, so very unlucky ones could go
+	 * over it.
+	 * 
+	 * @param length number of bytes of input
+	 * @param options options it will be compressed with
+	 * @return the most bytes the compressed stream can take
+	 */
+	public static long maxCompressedLength(long length,
+	    CompressionOptions options) {
+		// Every byte may be escaped into two symbols, and there's room for EOS.
+		long blocks = length / Math.max(1, (options.blockSize - 2) / 2) + 1;
+		if (options.dedup) {
+			// Each REF ends the block before it, and covers at least a chunk
+			// unless it's the last.
+			blocks += 2 * (length / DedupComponent.MIN_CHUNK_SIZE + 1);
+		}
+		if (options.rsyncable) {
+			blocks += length / MIN_RSYNC_BLOCK_SIZE;
+		}
+		// Each block may have a SEARCH_INDEX, a CHECKSUM and a FILTER before its
+		// own header, and the stream has its prefix and a WINDOW at the start
+		// and STREAM_CHECKSUM and END at the end.
+		return length + BlockHeader.PREFIX_LENGTH + (4 * blocks + 3)
+		    * BlockHeader.MAX_LENGTH;
+	}
+
+	/**
+	 * Takes length bytes from data starting at offset, and compresses any full
+	 * blocks that result.
+	 * 
+	 * @param data bytes to compress
+	 * @param offset index of the first byte in data
+	 * @param length number of bytes to take from data
+	 * @throws IOException
+	 */
+	public void write(byte[] data, int offset, int length) throws IOException {
+		start();
+		if (checksum != null) {
+			checksum.update(data, offset, length);
+			inputLength += length;
+		}
+		if (dedup == null) {
+			append(data, offset, length);
+			return;
+		}
+		while (length > 0) {
+			int n = dedup.findBoundary(data, offset, length);
+			int taken = n == -1 ? length : n;
+			System.arraycopy(data, offset, chunk, chunkLength, taken);
+			chunkLength += taken;
+			offset += taken;
+			length -= taken;
+			if (n != -1) {
+				endChunk();
+			}
+		}
+	}
+
+	/**
+	 * Compresses any remaining data and terminates the stream. The output
+	 * stream is flushed but not closed.
+	 * 
+	 * @throws IOException
+	 */
+	public void finish() throws IOException {
+		start();
+		if (chunkLength > 0) {
+			endChunk();
+		}
+		writeRef();
+		if (rawLength > 0) {
+			compressBlock();
+		}
+		if (pipeline != null) {
+			pipeline.finish();
+		}
+		if (checksum != null) {
+			BlockHeader.checksum(BlockHeader.STREAM_CHECKSUM, checksum.getValue(),
+			    inputLength).write(out);
+		}
+		new BlockHeader(BlockHeader.END, 0).write(out);
+		out.flush();
+	}
+
+	/**
+	 * Compresses all the input so far, ending the current block early, and
+	 * writes a SYNC header so the decoder passes it all on straight away. The
+	 * output stream is flushed. This lets interactive streams send each message
+	 * as it's written, at the cost of smaller blocks.
+	 * 
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		start();
+		if (chunkLength > 0) {
+			endChunk();
+		}
+		writeRef();
+		if (rawLength > 0) {
+			compressBlock();
+		}
+		if (pipeline != null) {
+			pipeline.drain();
+		}
+		new BlockHeader(BlockHeader.SYNC, 0).write(out);
+		out.flush();
+	}
+
+	/**
+	 * Stops any stage threads without finishing the stream. Used when giving up
+	 * part way through compression.
+	 */
+	public void abort() {
+		if (pipeline != null) {
+			pipeline.abort();
+		}
+	}
+
+	/**
+	 * Writes the WINDOW block if we need one, the first time we're called.
+	 * 
+	 * @throws IOException
+	 */
+	private void start() throws IOException {
+		if (started) {
+			return;
+		}
+		started = true;
+		BlockHeader.writePrefix(out);
+		if (dedup != null) {
+			new BlockHeader(BlockHeader.WINDOW, window).write(out);
+			chunk = new byte[DedupComponent.MAX_CHUNK_SIZE];
+		}
+	}
+
+	/**
+	 * Adds length bytes from data starting at offset to the waiting input,
+	 * compressing blocks as they fill up.
+	 * 
+	 * @param data bytes to add
+	 * @param offset index of the first byte in data
+	 * @param length number of bytes to take from data
+	 * @throws IOException
+	 */
+	private void append(byte[] data, int offset, int length) throws IOException {
+		int end = offset + length;
+		for (int i = offset; i < end; ++i) {
+			// Take as many bytes at once as are sure to fit even if they're all
+			// escaped, so we only need to count the escapes.
+			int n = offHeap ? 0 : (int) Math.min(end - i, (blockSize - 1 - symbols)
+			    / 2);
+			if (n > 1) {
+				int boundary = boundaries == null ? -1 : boundaries.findBoundary(
+				    data, i, n);
+				if (boundary != -1) {
+					n = boundary;
+				}
+				while (raw == null || rawLength + n > raw.length) {
+					growRaw();
+				}
+				System.arraycopy(data, i, raw, (int) rawLength, n);
+				rawLength += n;
+				symbols += n + Kernels.get().countEscapes(data, i, i + n);
+				i += n - 1;
+				if (boundary != -1) {
+					compressBlock();
+				}
+				continue;
+			}
+			int b = data[i] & 0xFF;
+			// If this byte wouldn't fit in the block once zero compensated, along
+			// with EOS, the block is full.
+			int cost = ZeroComponent.transformedLength(b);
+			if (symbols + cost > blockSize - 1) {
+				compressBlock();
+			}
+			if (offHeap) {
+				if (largeRaw == null) {
+					// Blocks may be huge, so only take memory for what arrives.
+					largeRaw = new OffHeapArray(blockSize - 1, 1, true);
+				}
+				largeRaw.set(rawLength++, b);
+			} else {
+				if (raw == null || rawLength == raw.length) {
+					growRaw();
+				}
+				raw[(int) rawLength++] = (byte) b;
+			}
+			symbols += cost;
+			if (boundaries != null && boundaries.findBoundary(data, i, 1) != -1) {
+				compressBlock();
+			}
+		}
+	}
+
+	/**
+	 * Deals with the current chunk now that it's complete. Runs of chunks which
+	 * repeat a run of chunks earlier on are combined into one REF.
+	 * 
+	 * @throws IOException
+	 */
+	private void endChunk() throws IOException {
+		long distance = dedup.findRepeat(chunk, chunkLength);
+		if (distance > 0) {
+			if (distance != refDistance
+			    || refLength + chunkLength > Integer.MAX_VALUE) {
+				writeRef();
+				refDistance = distance;
+			}
+			refLength += chunkLength;
+		} else {
+			writeRef();
+			append(chunk, 0, chunkLength);
+		}
+		chunkLength = 0;
+	}
+
+	/**
+	 * Writes out any repeated chunks waiting to be written as a REF, after the
+	 * input which came before them.
+	 * 
+	 * @throws IOException
+	 */
+	private void writeRef() throws IOException {
+		if (refLength == 0) {
+			return;
+		}
+		if (rawLength > 0) {
+			compressBlock();
+		}
+		Pipeline.Job job = nextJob();
+		job.type = BlockHeader.REF;
+		job.length = 0;
+		job.inputLength = (int) refLength;
+		job.distance = refDistance;
+		if (pipeline != null) {
+			pipeline.submit(job);
+		} else {
+			compressAndWrite(job);
+		}
+		refLength = 0;
+	}
+
+	/**
+	 * Makes raw bigger, up to the size of a block. It starts small so short
+	 * streams don't pay for a whole block.
+	 */
+	private void growRaw() {
+		int size = raw == null ? INITIAL_BUFFER_SIZE : raw.length * 2;
+		byte[] grown = new byte[(int) Math.min(size, blockSize - 1)];
+		if (raw != null) {
+			System.arraycopy(raw, 0, grown, 0, (int) rawLength);
+		}
+		raw = grown;
+	}
+
+	/**
+	 * Decides how to code the next block in the time we have left. We time how
+	 * long each block takes to code, leaving out any time it spends waiting in
+	 * the pipeline, and expect the rest to go at the same rate, including the
+	 * blocks still in the pipeline. If the full BWT won't be done in time we
+	 * drop to the ST transform, and if that won't either we store the block. We
+	 * never go back to a slower way, so the rest of the stream is coded the
+	 * cheaper way too.
+	 * 
+	 * @param length number of bytes in the block
+	 * @return BlockHeader.BWT, BlockHeader.ST or BlockHeader.STORED
+	 */
+	private int chooseType(long length) {
+		if (!timed) {
+			return sortContext > 0 && !offHeap ? BlockHeader.ST : BlockHeader.BWT;
+		}
+		double left = deadline - System.nanoTime();
+		long bytes = length + queued.get();
+		if (timedType == BlockHeader.BWT && bytes * bwtNanosPerByte > left) {
+			timedType = offHeap ? BlockHeader.STORED : BlockHeader.ST;
+		}
+		if (timedType == BlockHeader.ST
+		    && bytes * bwtNanosPerByte / ST_SPEEDUP > left) {
+			timedType = BlockHeader.STORED;
+		}
+		return timedType;
+	}
+
+	/**
+	 * Updates the expected time for the full BWT from a block we've finished.
+	 * 
+	 * @param type BlockHeader.BWT or BlockHeader.ST
+	 * @param length number of bytes in the block
+	 * @param nanos time spent coding the block
+	 */
+	private void timeBlock(int type, long length, long nanos) {
+		double nanosPerByte = (double) nanos / length;
+		bwtNanosPerByte = type == BlockHeader.ST ? nanosPerByte * ST_SPEEDUP
+		    : nanosPerByte;
+	}
+
+	/**
+	 * Compresses the waiting input as a block.
+	 * 
+	 * @throws IOException
+	 */
+	private void compressBlock() throws IOException {
+		int type = chooseType(rawLength);
+		if (offHeap) {
+			long start = System.nanoTime();
+			compressLargeBlock(type == BlockHeader.STORED);
+			if (timed && type != BlockHeader.STORED) {
+				timeBlock(type, rawLength, System.nanoTime() - start);
+			}
+		} else {
+			Pipeline.Job job = nextJob();
+			long start = System.nanoTime();
+			job.ensureInputCapacity((int) rawLength);
+			System.arraycopy(raw, 0, job.input, 0, (int) rawLength);
+			job.inputLength = (int) rawLength;
+			job.filters.clear();
+			if (type == BlockHeader.STORED
+			    || (isIncompressible(histogram(raw, (int) rawLength), rawLength)
+			        && !hasRepeats(raw, (int) rawLength))) {
+				job.type = BlockHeader.STORED;
+				job.length = 0;
+			} else {
+				job.type = type;
+				job.context = sortContext > 0 ? sortContext : FAST_SORT_CONTEXT;
+				if (filter != null) {
+					applyFilter(job);
+				}
+				job.ensureCapacity((int) symbols + 1);
+				job.length = compensator.transform(raw, (int) rawLength, job.data) + 1;
+				// We need to add 0 as the EOS marker for BWT to work.
+				job.data[job.length - 1] = 0;
+			}
+			job.nanos = System.nanoTime() - start;
+			if (timed && BlockHeader.isCoded(job.type)) {
+				queued.addAndGet(job.inputLength);
+			}
+
+			if (pipeline != null) {
+				pipeline.submit(job);
+			} else {
+				transformBWT(job);
+				transformMTF(job);
+				compressAndWrite(job);
+			}
+		}
+		rawLength = 0;
+		symbols = 0;
+		if (boundaries != null) {
+			boundaries.reset();
+		}
+	}
+
+	/**
+	 * Passes the waiting input through the filter chosen for it, if any. The
+	 * unfiltered copy in the job is kept for storing the block.
+	 * 
+	 * @param job job the block is going into
+	 */
+	private void applyFilter(Pipeline.Job job) {
+		BlockHeader choice = filter.choose(raw, (int) rawLength);
+		if (choice == null) {
+			return;
+		}
+		FilterComponent.get(choice.filter).encode(raw, (int) rawLength,
+		    choice.parameter);
+		// Filtering changes how many bytes need escaping, so the block may no
+		// longer fit, in which case we go without.
+		long filtered = rawLength
+		    + Kernels.get().countEscapes(raw, 0, (int) rawLength);
+		if (filtered < blockSize) {
+			symbols = filtered;
+			job.filters.add(choice);
+		} else {
+			System.arraycopy(job.input, 0, raw, 0, (int) rawLength);
+		}
+	}
+
+	/**
+	 * Compresses the waiting input as a block, keeping it off the heap.
+	 * 
+	 * @param late whether we're out of time, so the block should be stored
+	 * @throws IOException
+	 */
+	private void compressLargeBlock(boolean late) throws IOException {
+		long[] counts = new long[256];
+		if (!late) {
+			for (long i = 0; i < rawLength; ++i) {
+				counts[(int) largeRaw.get(i)]++;
+			}
+		}
+		// We can't hold on to the compressed block to see if it's smaller, so we
+		// only store large blocks if they look incompressible.
+		if (late || (isIncompressible(counts, rawLength)
+		    && !hasRepeats(largeRaw, rawLength))) {
+			new BlockHeader(BlockHeader.STORED, rawLength).write(out);
+			byte[] buf = new byte[(int) Math.min(CHUNK_SIZE, rawLength)];
+			int[] chunk = new int[buf.length];
+			for (long i = 0; i < rawLength; i += buf.length) {
+				int chunkLength = (int) Math.min(buf.length, rawLength - i);
+				largeRaw.get(i, chunk, 0, chunkLength);
+				for (int j = 0; j < chunkLength; ++j) {
+					buf[j] = (byte) chunk[j];
+				}
+				out.write(buf, 0, chunkLength);
+			}
+			return;
+		}
+
+		long length = symbols + 1;
+		OffHeapArray block = new OffHeapArray(length, 1);
+		compensator.transform(largeRaw, rawLength, block);
+		block.set(length - 1, 0);
+		block = largeBwt.transform(block, length);
+
+		new BlockHeader(BlockHeader.BWT, length).write(out);
+		mtf.reset();
+		int[] chunk = new int[(int) Math.min(CHUNK_SIZE, length)];
+		for (long i = 0; i < length; i += chunk.length) {
+			int chunkLength = (int) Math.min(chunk.length, length - i);
+			block.get(i, chunk, 0, chunkLength);
+			mtf.transform(chunk, chunkLength, chunk);
+			huffman.compressAndWrite(chunk, chunkLength, i + chunkLength == length,
+			    out);
+		}
+	}
+
+	/**
+	 * @param data bytes to count
+	 * @param length number of bytes in data
+	 * @return number of times each byte value occurs in data
+	 */
+	private static long[] histogram(byte[] data, int length) {
+		long[] counts = new long[256];
+		Kernels.get().histogram(data, 0, length, counts);
+		return counts;
+	}
+
+	/**
+	 * Decides from the order 0 entropy of a block whether it's worth trying to
+	 * compress. This ignores any context BWT could make use of, so it only
+	 * catches data which looks like noise. That's all it needs to do since we
+	 * check the compressed size afterwards anyway, as long as the noise doesn't
+	 * repeat.
+	 * 
+	 * @param counts number of times each byte value occurs in the block
+	 * @param length number of bytes in the block
+	 * @return whether the block should be stored
+	 */
+	private static boolean isIncompressible(long[] counts, long length) {
+		double entropy = 0;
+		for (int i = 0; i < counts.length; ++i) {
+			if (counts[i] > 0) {
+				double p = (double) counts[i] / length;
+				entropy -= p * Math.log(p);
+			}
+		}
+		return entropy / Math.log(2) >= STORED_ENTROPY;
+	}
+
+	/**
+	 * Looks for long repeats in a block, which BWT can make use of however
+	 * random the bytes look.
+	 * 
+	 * @param data block to look through
+	 * @param length number of bytes in the block
+	 * @return whether a noticeable fraction of the samples are repeats
+	 */
+	private static boolean hasRepeats(byte[] data, int length) {
+		RepeatSampler sampler = new RepeatSampler(length);
+		for (int i = 0; i < length; ++i) {
+			sampler.add(data[i] & 0xFF);
+		}
+		return sampler.hasRepeats();
+	}
+
+	/**
+	 * Looks for long repeats in a block kept off the heap, the same way as for
+	 * one on the heap.
+	 * 
+	 * @param data block to look through
+	 * @param length number of bytes in the block
+	 * @return whether a noticeable fraction of the samples are repeats
+	 */
+	private static boolean hasRepeats(OffHeapArray data, long length) {
+		RepeatSampler sampler = new RepeatSampler(length);
+		int[] chunk = new int[(int) Math.min(CHUNK_SIZE, length)];
+		for (long i = 0; i < length; i += chunk.length) {
+			int chunkLength = (int) Math.min(chunk.length, length - i);
+			data.get(i, chunk, 0, chunkLength);
+			for (int j = 0; j < chunkLength; ++j) {
+				sampler.add(chunk[j]);
+			}
+		}
+		return sampler.hasRepeats();
+	}
+
+	/**
+	 * @return a job to fill with the next block
+	 * @throws IOException
+	 */
+	private Pipeline.Job nextJob() throws IOException {
+		if (pipeline != null) {
+			return pipeline.take();
+		}
+		if (job == null) {
+			job = new Pipeline.Job(0);
+		}
+		return job;
+	}
+
+	/**
+	 * BWT or ST stage, which also works out the checksum of the block.
+	 * 
+	 * @param job block to transform
+	 */
+	private void transformBWT(Pipeline.Job job) {
+		long start = System.nanoTime();
+		if (checksum != null && job.type != BlockHeader.REF) {
+			CRC32C crc = new CRC32C();
+			crc.update(job.input, 0, job.inputLength);
+			job.checksum = crc.getValue();
+		}
+		job.searchIndex = null;
+		if (job.type == BlockHeader.BWT && searchIndex && job.filters.isEmpty()) {
+			int[] rows = new int[(job.length - 1) / FMIndex.SAMPLE_RATE + 1];
+			bwt.transform(job.data, job.length, job.scratch, FMIndex.SAMPLE_RATE,
+			    rows);
+			job.searchIndex = FMIndex.sample(job.data, job.length, rows);
+		} else if (job.type == BlockHeader.BWT) {
+			bwt.transform(job.data, job.length, job.scratch);
+		} else if (job.type == BlockHeader.ST) {
+			new STComponent(job.context).transform(job.data, job.length,
+			    job.scratch);
+		}
+		if (BlockHeader.isCoded(job.type)) {
+			job.swap();
+		}
+		job.nanos += System.nanoTime() - start;
+	}
+
+	/**
+	 * MTF stage.
+	 * 
+	 * @param job block to transform
+	 */
+	private void transformMTF(Pipeline.Job job) {
+		if (!BlockHeader.isCoded(job.type)) {
+			return;
+		}
+		long start = System.nanoTime();
+		mtf.reset();
+		mtf.transform(job.data, job.length, job.data);
+		job.nanos += System.nanoTime() - start;
+	}
+
+	/**
+	 * Huffman and output stage. Once a coded block is written, the time it took
+	 * goes towards deciding how to code the ones after it.
+	 * 
+	 * @param job block to write
+	 * @throws IOException
+	 */
+	private void compressAndWrite(Pipeline.Job job) throws IOException {
+		long start = System.nanoTime();
+		writeBlock(job);
+		if (timed && BlockHeader.isCoded(job.type)) {
+			timeBlock(job.type, job.inputLength, job.nanos + System.nanoTime()
+			    - start);
+			queued.addAndGet(-job.inputLength);
+		}
+	}
+
+	/**
+	 * Huffman codes a block and writes it out, or stores it if that's no
+	 * smaller.
+	 * 
+	 * @param job block to write
+	 * @throws IOException
+	 */
+	private void writeBlock(Pipeline.Job job) throws IOException {
+		if (job.type == BlockHeader.REF) {
+			new BlockHeader(BlockHeader.REF, job.inputLength, job.distance)
+			    .write(out);
+			return;
+		}
+		if (BlockHeader.isCoded(job.type)) {
+			blockOut.reset();
+			huffman.compressAndWrite(job.data, job.length, true, blockOut);
+			int indexLength = job.searchIndex == null ? 0 : job.searchIndex.length;
+			if (blockOut.size() + indexLength < job.inputLength) {
+				if (job.searchIndex != null) {
+					new BlockHeader(BlockHeader.SEARCH_INDEX, indexLength).write(out);
+					out.write(job.searchIndex);
+				}
+				writeChecksum(job);
+				for (BlockHeader filterHeader : job.filters) {
+					filterHeader.write(out);
+				}
+				BlockHeader header = new BlockHeader(job.type, job.length);
+				header.context = job.context;
+				header.write(out);
+				blockOut.writeTo(out);
+				return;
+			}
+		}
+		writeChecksum(job);
+		new BlockHeader(BlockHeader.STORED, job.inputLength).write(out);
+		out.write(job.input, 0, job.inputLength);
+	}
+
+	/**
+	 * Writes the CHECKSUM header for a block, if it has one.
+	 * 
+	 * @param job block to write the checksum of
+	 * @throws IOException
+	 */
+	private void writeChecksum(Pipeline.Job job) throws IOException {
+		if (job.checksum >= 0) {
+			BlockHeader.checksum(BlockHeader.CHECKSUM, job.checksum, 0).write(out);
+		}
+	}
+
+	/**
+	 * Samples a block's bytes a position at a time for hasRepeats. Checking
+	 * every position would cost as much as the BWT, so we only sample
+	 * positions where a hash of the previous 8 bytes has its top bits clear.
+	 * These depend only on the data, so each copy of a repeat gets sampled in
+	 * the same places. We need more bits clear the larger the block, so that
+	 * the number of samples we remember stays bounded.
+	 */
+	private static class RepeatSampler {
+		/** We aim to take at most about this many samples from a block. */
+		private static final long MAX_SAMPLES = 64 * 1024;
+
+		/** Hashes of the positions sampled so far. */
+		private final Set<Long> seen;
+		/** Number of bits of the hash which must be clear to sample. */
+		private final int bits;
+		/** The last 8 bytes, most recent in the low bits. */
+		private long last;
+		/** Number of bytes seen so far. */
+		private long position;
+		private int samples;
+		private int repeats;
+
+		/**
+		 * @param length number of bytes in the block
+		 */
+		public RepeatSampler(long length) {
+			int bits = 8;
+			while (length >>> bits > MAX_SAMPLES) {
+				bits++;
+			}
+			this.seen = new HashSet<Long>();
+			this.bits = bits;
+			this.last = 0;
+			this.position = 0;
+			this.samples = 0;
+			this.repeats = 0;
+		}
+
+		/**
+		 * @param b next byte of the block
+		 */
+		public void add(int b) {
+			last = (last << 8) | b;
+			// Multiplying by an odd number doesn't lose any of the 8 bytes.
+			long hash = last * 0x9E3779B97F4A7C15L;
+			if (position++ >= 7 && (hash >>> (64 - bits)) == 0) {
+				samples++;
+				if (!seen.add(hash)) {
+					repeats++;
+				}
+			}
+		}
+
+		/**
+		 * @return whether a noticeable fraction of the samples are repeats
+		 */
+		public boolean hasRepeats() {
+			return repeats * 16 > samples;
+		}
+	}
+}
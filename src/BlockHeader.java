@@ -0,0 +1,322 @@
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Header which comes before each block in the stream. It is byte aligned and
+ * of the form: <1 byte block type><fields for that type>. Numeric fields are
+ * stored 7 bits per byte, least significant first, with the top bit set on
+ * every byte but the last.
+ * 
+ * Each member of a stream starts with a prefix of the bytes "NGNS" and the
+ * version of the format, before its first header, so decoders can tell our
+ * streams from anything else.
+ * 
+ * The block types are:
+ * <ul>
+ * <li>END: no fields. Marks the end of the stream.</li>
+ * <li>BWT: the number of symbols in the block, including the EOS marker. It
+ * is followed by the MTF transformed BWT of the zero compensated block,
+ * Huffman coded and terminated by an EOS symbol, then padded out to a byte.</li>
+ * <li>STORED: the number of bytes in the block. It is followed by the bytes
+ * themselves, for blocks which wouldn't get any smaller by compressing them.</li>
+ * <li>REF: the number of bytes in the block, then the distance back from the
+ * start of the block to an earlier copy of it in the output. Copies may
+ * overlap the block itself.</li>
+ * <li>WINDOW: the greatest distance any later REF block refers back. It comes
+ * before all the other blocks, so the decoder knows how much output to keep.</li>
+ * <li>ST: the number of symbols in the block, then the number of symbols of
+ * context it was sorted on. Otherwise the same as BWT, but with the ST
+ * transform in place of the BWT.</li>
+ * <li>FILTER: the id of a Filter, then its parameter. The next block, which
+ * must be BWT or ST, was passed through the filter before being compressed.
+ * There may be several in a row, which were applied in the order given.</li>
+ * <li>CHECKSUM: the CRC32C of the bytes the next block decompresses to, which
+ * must be BWT, ST or STORED, and small enough to be decoded on the heap.</li>
+ * <li>STREAM_CHECKSUM: the CRC32C of all the bytes the stream decompresses to,
+ * then the number of them. It comes just before END.</li>
+ * <li>SYNC: no fields. Everything before it has been written out in full, so
+ * the decoder should pass on all the output it has so far without waiting for
+ * more blocks.</li>
+ * <li>INDEX: the number of bytes of index which follow. The index holds the
+ * number of shards the stream was compressed in, then for each shard, the
+ * number of bytes it takes and the number it decompresses to, in the same
+ * format as header fields. It comes at the start of a member on its own,
+ * before the members holding each shard, and decoders skip over it.</li>
+ * <li>SEARCH_INDEX: the number of bytes of index which follow, holding the
+ * samples of an FMIndex of the next block, which must be a BWT block small
+ * enough to be decoded on the heap, with no filters. It comes before the
+ * block's CHECKSUM, and decoders which aren't searching skip over it.</li>
+ * </ul>
+ * 
+ * @author E
+ */
+public class BlockHeader {
+	public static final int END = 0;
+	public static final int BWT = 1;
+	public static final int STORED = 2;
+	public static final int REF = 3;
+	public static final int WINDOW = 4;
+	public static final int ST = 5;
+	public static final int FILTER = 6;
+	public static final int CHECKSUM = 7;
+	public static final int STREAM_CHECKSUM = 8;
+	public static final int SYNC = 9;
+	public static final int INDEX = 10;
+	public static final int SEARCH_INDEX = 11;
+	/** No header is longer than this. */
+	public static final int MAX_LENGTH = 32;
+	/** Version of the format, changed whenever old decoders can't read it. */
+	public static final int VERSION = 1;
+	/** First bytes of every member, before VERSION. */
+	private static final byte[] MAGIC = { 'N', 'G', 'N', 'S' };
+	/** Number of bytes in the prefix of each member. */
+	public static final int PREFIX_LENGTH = MAGIC.length + 1;
+
+	/** Type of the block. */
+	public int type;
+	/**
+	 * Number of symbols in the block, or bytes if it isn't BWT. For WINDOW
+	 * blocks, this is the window size.
+	 */
+	public long length;
+	/** Distance back to the copy of a REF block. */
+	public long distance;
+	/** Number of symbols of context an ST block was sorted on. */
+	public int context;
+	/** Id of the filter of a FILTER header. */
+	public int filter;
+	/** Parameter of the filter of a FILTER header. */
+	public int parameter;
+	/** CRC32C of a CHECKSUM or STREAM_CHECKSUM header. */
+	public long checksum;
+
+	/**
+	 * Create a header.
+	 * 
+	 * @param type type of the block
+	 * @param length number of symbols or bytes in the block
+	 */
+	public BlockHeader(int type, long length) {
+		this(type, length, 0);
+	}
+
+	/**
+	 * Create a header.
+	 * 
+	 * @param type type of the block
+	 * @param length number of symbols or bytes in the block
+	 * @param distance distance back to the copy of a REF block
+	 */
+	public BlockHeader(int type, long length, long distance) {
+		this.type = type;
+		this.length = length;
+		this.distance = distance;
+		this.context = 0;
+		this.filter = 0;
+		this.parameter = 0;
+		this.checksum = 0;
+	}
+
+	/**
+	 * Writes the prefix which starts each member.
+	 * 
+	 * @param out output stream to write to
+	 * @throws IOException
+	 */
+	public static void writePrefix(OutputStream out) throws IOException {
+		out.write(MAGIC);
+		out.write(VERSION);
+	}
+
+	/**
+	 * Checks a byte of the prefix of a member.
+	 * 
+	 * @param i index of the byte in the prefix
+	 * @param b the byte
+	 * @throws IOException if it isn't what we'd have written
+	 */
+	public static void checkPrefix(int i, byte b) throws IOException {
+		if (i < MAGIC.length) {
+			if (b != MAGIC[i]) {
+				throw new IOException("Not a NoGGNoSkill stream");
+			}
+		} else if ((b & 0xFF) != VERSION) {
+			throw new IOException("Unsupported NoGGNoSkill stream version "
+			    + (b & 0xFF));
+		}
+	}
+
+	/**
+	 * @param type type of a block
+	 * @return whether blocks of that type hold Huffman coded symbols
+	 */
+	public static boolean isCoded(int type) {
+		return type == BWT || type == ST;
+	}
+
+	/**
+	 * Writes the header to out.
+	 * 
+	 * @param out output stream to write to
+	 * @throws IOException
+	 */
+	public void write(OutputStream out) throws IOException {
+		out.write(type);
+		if (type == FILTER) {
+			writeNumber(filter, out);
+			writeNumber(parameter, out);
+			return;
+		}
+		if (type == CHECKSUM || type == STREAM_CHECKSUM) {
+			writeNumber(checksum, out);
+		}
+		if (type == CHECKSUM) {
+			return;
+		}
+		if (type != END && type != SYNC) {
+			writeNumber(length, out);
+		}
+		if (type == REF) {
+			writeNumber(distance, out);
+		} else if (type == ST) {
+			writeNumber(context, out);
+		}
+	}
+
+	/**
+	 * Tries to read a header from the first length bytes of data.
+	 * 
+	 * @param data bytes to read from
+	 * @param length number of bytes in data
+	 * @return the header, or null if data doesn't hold all of it yet
+	 * @throws IOException if data isn't a valid header
+	 */
+	public static BlockHeader read(byte[] data, int length) throws IOException {
+		if (length == 0) {
+			return null;
+		}
+		int type = data[0] & 0xFF;
+		switch (type) {
+			case END:
+			case SYNC:
+				return new BlockHeader(type, 0);
+			case BWT:
+			case STORED:
+			case WINDOW:
+			case INDEX:
+			case SEARCH_INDEX:
+				long[] fields = readNumbers(data, 1, length, 1);
+				return fields == null ? null : new BlockHeader(type, fields[0]);
+			case REF:
+				fields = readNumbers(data, 1, length, 2);
+				return fields == null ? null : new BlockHeader(type, fields[0],
+				    fields[1]);
+			case ST:
+				fields = readNumbers(data, 1, length, 2);
+				if (fields == null) {
+					return null;
+				}
+				if (fields[1] < 1 || fields[1] > STComponent.MAX_CONTEXT) {
+					throw new IOException("Corrupt block header");
+				}
+				BlockHeader header = new BlockHeader(type, fields[0]);
+				header.context = (int) fields[1];
+				return header;
+			case FILTER:
+				fields = readNumbers(data, 1, length, 2);
+				if (fields == null) {
+					return null;
+				}
+				if (fields[0] > Integer.MAX_VALUE || fields[1] > Integer.MAX_VALUE) {
+					throw new IOException("Corrupt block header");
+				}
+				header = new BlockHeader(type, 0);
+				header.filter = (int) fields[0];
+				header.parameter = (int) fields[1];
+				return header;
+			case CHECKSUM:
+				fields = readNumbers(data, 1, length, 1);
+				if (fields == null) {
+					return null;
+				}
+				return checksum(type, fields[0], 0);
+			case STREAM_CHECKSUM:
+				fields = readNumbers(data, 1, length, 2);
+				if (fields == null) {
+					return null;
+				}
+				return checksum(type, fields[0], fields[1]);
+			default:
+				throw new IOException("Unknown block type " + type);
+		}
+	}
+
+	/**
+	 * Creates a CHECKSUM or STREAM_CHECKSUM header.
+	 * 
+	 * @param type type of the header
+	 * @param checksum CRC32C of the bytes it covers
+	 * @param length number of bytes it covers, for STREAM_CHECKSUM
+	 * @return the header
+	 * @throws IOException if checksum isn't a CRC32C
+	 */
+	public static BlockHeader checksum(int type, long checksum, long length)
+	    throws IOException {
+		if (checksum > 0xFFFFFFFFL) {
+			throw new IOException("Corrupt block header");
+		}
+		BlockHeader header = new BlockHeader(type, length);
+		header.checksum = checksum;
+		return header;
+	}
+
+	/**
+	 * Writes n to out, 7 bits per byte.
+	 * 
+	 * @param n non-negative number to write
+	 * @param out output stream to write to
+	 * @throws IOException
+	 */
+	public static void writeNumber(long n, OutputStream out)
+	    throws IOException {
+		while (n >= 0x80) {
+			out.write((int) (n & 0x7F) | 0x80);
+			n >>>= 7;
+		}
+		out.write((int) n);
+	}
+
+	/**
+	 * Reads count numbers from data starting at offset.
+	 * 
+	 * @param data bytes to read from
+	 * @param offset index of the first number
+	 * @param length number of bytes in data
+	 * @param count number of numbers to read
+	 * @return the numbers, or null if data doesn't hold all of them yet
+	 * @throws IOException if a number is too long
+	 */
+	public static long[] readNumbers(byte[] data, int offset, int length,
+	    int count) throws IOException {
+		long[] numbers = new long[count];
+		int idx = offset;
+		for (int i = 0; i < count; ++i) {
+			int shift = 0;
+			while (true) {
+				if (idx == length) {
+					return null;
+				}
+				if (shift > 56) {
+					throw new IOException("Corrupt block header");
+				}
+				int b = data[idx++] & 0xFF;
+				numbers[i] |= (long) (b & 0x7F) << shift;
+				shift += 7;
+				if (b < 0x80) {
+					break;
+				}
+			}
+		}
+		return numbers;
+	}
+}
@@ -0,0 +1,82 @@
+import java.util.Random;
+
+/**
+ * Component which splits its input into pieces using content defined
+ * chunking: a rolling hash is kept over the last few bytes, and a piece ends
+ * wherever the hash has its low bits clear. Since the boundaries only depend
+ * on nearby bytes, a stretch of data is split the same way wherever it turns
+ * up, even if it has been shifted by some insertion before it.
+ * 
+ * @author E
+ */
+public class BoundaryComponent {
+	/**
+	 * Random value for each byte for the rolling hash. The seed is fixed so the
+	 * boundaries are always the same.
+	 */
+	private static final long[] GEAR = new long[256];
+
+	static {
+		Random random = new Random(0x6e6f67676e6fL);
+		for (int i = 0; i < GEAR.length; ++i) {
+			GEAR[i] = random.nextLong();
+		}
+	}
+
+	/** Pieces are never shorter than this, except at the end of the stream. */
+	private final long minLength;
+	/** Pieces are never longer than this. */
+	private final long maxLength;
+	/** A piece ends when these bits of the hash are clear. */
+	private final long mask;
+	/** Rolling hash of the current piece. */
+	private long hash;
+	/** Number of bytes in the current piece. */
+	private long length;
+
+	/**
+	 * Initialise a BoundaryComponent.
+	 * 
+	 * @param minLength fewest bytes in a piece
+	 * @param maxLength most bytes in a piece
+	 * @param bits number of bits of the hash which must be clear at a
+	 *          boundary, so pieces are about 2^bits bytes on top of minLength
+	 */
+	public BoundaryComponent(long minLength, long maxLength, int bits) {
+		this.minLength = minLength;
+		this.maxLength = maxLength;
+		this.mask = (1L << bits) - 1;
+		this.hash = 0;
+		this.length = 0;
+	}
+
+	/**
+	 * Looks for the end of the current piece in the next length bytes of data
+	 * starting at offset.
+	 * 
+	 * @param data bytes to look through
+	 * @param offset index of the first byte in data
+	 * @param length number of bytes to look through
+	 * @return number of bytes of data up to and including the last byte of the
+	 *         current piece, or -1 if the piece carries on past them
+	 */
+	public int findBoundary(byte[] data, int offset, int length) {
+		for (int i = 0; i < length; ++i) {
+			hash = (hash << 1) + GEAR[data[offset + i] & 0xFF];
+			this.length++;
+			if (this.length >= maxLength
+			    || (this.length >= minLength && (hash & mask) == 0)) {
+				return i + 1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Starts a new piece.
+	 */
+	public void reset() {
+		hash = 0;
+		length = 0;
+	}
+}
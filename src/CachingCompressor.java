@@ -0,0 +1,133 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+
+import CITS2200.Compressor;
+
+/**
+ * Compressor which remembers the results of another in a CompressionCache, so
+ * compressing or decompressing the same data again just copies out the
+ * result. Inputs too large to cache are passed straight through.
+ * 
+ * @author E
+ */
+public class CachingCompressor implements Compressor {
+	/** We read the input stream in chunks of this size. */
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	/** Compressor which does the work on a miss. */
+	private final Compressor compressor;
+	/**
+	 * Results of earlier calls, which may be shared with other compressors.
+	 * Results are keyed by the wrapped compressor, so they're only shared with
+	 * CachingCompressors wrapping the same one.
+	 */
+	private final CompressionCache cache;
+
+	/**
+	 * Initialise a CachingCompressor.
+	 * 
+	 * @param compressor compressor which does the work on a miss
+	 * @param cache cache to keep results in
+	 */
+	public CachingCompressor(Compressor compressor, CompressionCache cache) {
+		this.compressor = compressor;
+		this.cache = cache;
+	}
+
+	/**
+	 * @return the cache results are kept in
+	 */
+	public CompressionCache getCache() {
+		return cache;
+	}
+
+	@Override
+	public String compress(InputStream inputStream, OutputStream outputStream) {
+		return run(true, inputStream, outputStream);
+	}
+
+	@Override
+	public String decompress(InputStream inputStream, OutputStream outputStream) {
+		return run(false, inputStream, outputStream);
+	}
+
+	/**
+	 * Compresses or decompresses inputStream to outputStream, using the cache
+	 * where we can. Like NoGGNoSkill, the output stream is closed at the end,
+	 * though here that happens even if we fail.
+	 * 
+	 * @param compress true to compress, false to decompress
+	 * @param inputStream
+	 * @param outputStream
+	 * @return null or exception message if an exception occurred
+	 */
+	private String run(boolean compress, InputStream inputStream,
+	    OutputStream outputStream) {
+		String error = process(compress, inputStream, outputStream);
+		try {
+			outputStream.close();
+		} catch (IOException e) {
+			if (error == null) {
+				error = e.toString();
+			}
+		}
+		return error;
+	}
+
+	/**
+	 * Does the work of run, except for closing the output stream.
+	 * 
+	 * @param compress true to compress, false to decompress
+	 * @param inputStream
+	 * @param outputStream
+	 * @return null or exception message if an exception occurred
+	 */
+	private String process(boolean compress, InputStream inputStream,
+	    OutputStream outputStream) {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		long limit = cache.getMaxInputSize();
+		try {
+			byte[] chunk = new byte[CHUNK_SIZE];
+			int read;
+			while (buffer.size() <= limit
+			    && (read = inputStream.read(chunk)) != -1) {
+				buffer.write(chunk, 0, read);
+			}
+		} catch (IOException e) {
+			return e.toString();
+		}
+		byte[] input = buffer.toByteArray();
+
+		if (input.length > limit) {
+			// Too large to cache, so carry on from what we've read so far.
+			InputStream rest = new SequenceInputStream(new ByteArrayInputStream(
+			    input), inputStream);
+			return compress ? compressor.compress(rest, outputStream) : compressor
+			    .decompress(rest, outputStream);
+		}
+
+		byte[] result = cache.get(compressor, compress, input, input.length);
+		if (result == null) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			InputStream in = new ByteArrayInputStream(input);
+			String error = compress ? compressor.compress(in, out) : compressor
+			    .decompress(in, out);
+			if (error != null) {
+				return error;
+			}
+			result = out.toByteArray();
+			cache.put(compressor, compress, input, input.length, result);
+		}
+
+		try {
+			outputStream.write(result);
+		} catch (IOException e) {
+			return e.toString();
+		}
+		return null;
+	}
+}
@@ -0,0 +1,373 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Base class for the reactive compression and decompression processors. It
+ * takes chunks of data from an upstream publisher, passes them through an
+ * incremental encoder or decoder, and publishes the result in chunks to a
+ * single downstream subscriber.
+ * 
+ * All of the actual work happens in drain, which is only ever run on the
+ * supplied executor and never by more than one thread at a time, so callers
+ * are never blocked. We only request another chunk from upstream once
+ * everything we have produced has been taken by downstream, so at most one
+ * block of data is held at any time, or one per stage with a pipelined coder.
+ * 
+ * @author E
+ */
+public abstract class CodecProcessor implements
+    Flow.Processor<ByteBuffer, ByteBuffer> {
+	/** Size of the chunks we publish downstream. */
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	/** Executor all the encoding and decoding work is run on. */
+	private final Executor executor;
+	/** Chunks we have received from upstream but not processed yet. */
+	private final Queue<ByteBuffer> inbound;
+	/** Chunks we have produced but not published yet. */
+	private final Queue<ByteBuffer> outbound;
+	/** Collects output from process and finish into chunks for outbound. */
+	private final ChunkOutputStream sink;
+	/** Number of chunks downstream has requested but not received yet. */
+	private final AtomicLong demand;
+	/**
+	 * Number of times drain has been scheduled. Whoever increments this from
+	 * zero is responsible for running drain.
+	 */
+	private final AtomicInteger wip;
+
+	private volatile Flow.Subscription upstream;
+	private volatile Flow.Subscriber<? super ByteBuffer> downstream;
+	/** Whether we're waiting on a chunk we requested from upstream. */
+	private volatile boolean requested;
+	private volatile boolean upstreamDone;
+	private volatile boolean cancelled;
+	private volatile Throwable error;
+	/** Whether downstream has been given its subscription yet. */
+	private boolean subscribed;
+	/** Whether finish has been called. */
+	private boolean finished;
+	/** Whether downstream has been sent onComplete or onError. */
+	private boolean terminated;
+
+	/**
+	 * Initialise a processor which does all its work on executor.
+	 * 
+	 * @param executor executor to do work on
+	 */
+	public CodecProcessor(Executor executor) {
+		this.executor = executor;
+		this.inbound = new ConcurrentLinkedQueue<ByteBuffer>();
+		this.outbound = new ConcurrentLinkedQueue<ByteBuffer>();
+		this.sink = new ChunkOutputStream();
+		this.demand = new AtomicLong();
+		this.wip = new AtomicInteger();
+	}
+
+	/**
+	 * Encode or decode length bytes from data starting at offset, writing any
+	 * output to out.
+	 * 
+	 * @param data bytes to process
+	 * @param offset index of the first byte in data
+	 * @param length number of bytes to take from data
+	 * @param out output stream to write to
+	 * @throws IOException
+	 */
+	protected abstract void process(byte[] data, int offset, int length,
+	    OutputStream out) throws IOException;
+
+	/**
+	 * Called once there is no more data to come. Any remaining output should be
+	 * written to out.
+	 * 
+	 * @param out output stream to write to
+	 * @throws IOException
+	 */
+	protected abstract void finish(OutputStream out) throws IOException;
+
+	/**
+	 * Called if processing fails or downstream cancels, to release anything
+	 * still running. Nothing is processed after it.
+	 */
+	protected void abort() {
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+		if (subscriber == null) {
+			throw new NullPointerException();
+		}
+		synchronized (this) {
+			if (downstream == null) {
+				downstream = subscriber;
+				subscriber = null;
+			}
+		}
+		// We only support a single subscriber, since we can't replay what we've
+		// already published.
+		if (subscriber != null) {
+			subscriber.onSubscribe(new Flow.Subscription() {
+				@Override
+				public void request(long n) {
+				}
+
+				@Override
+				public void cancel() {
+				}
+			});
+			subscriber.onError(new IllegalStateException(
+			    "Processor already has a subscriber"));
+			return;
+		}
+		schedule();
+	}
+
+	@Override
+	public void onSubscribe(Flow.Subscription subscription) {
+		if (upstream != null || cancelled) {
+			subscription.cancel();
+			return;
+		}
+		upstream = subscription;
+		schedule();
+	}
+
+	@Override
+	public void onNext(ByteBuffer item) {
+		inbound.add(item);
+		requested = false;
+		schedule();
+	}
+
+	@Override
+	public void onError(Throwable throwable) {
+		error = throwable;
+		upstreamDone = true;
+		schedule();
+	}
+
+	@Override
+	public void onComplete() {
+		upstreamDone = true;
+		schedule();
+	}
+
+	/**
+	 * Make sure drain will run at least once more after this call.
+	 */
+	private void schedule() {
+		if (wip.getAndIncrement() == 0) {
+			executor.execute(this::drain);
+		}
+	}
+
+	/**
+	 * Does all the work: hands downstream its subscription, processes input,
+	 * publishes output and requests more input when we are able to take it.
+	 */
+	private void drain() {
+		int missed = 1;
+		while (true) {
+			Flow.Subscriber<? super ByteBuffer> subscriber = downstream;
+			if (subscriber != null && !subscribed) {
+				subscribed = true;
+				subscriber.onSubscribe(new DownstreamSubscription());
+			}
+			step(subscriber);
+
+			// If someone scheduled us while we were running, we need to go again
+			// since we may have missed what they did.
+			missed = wip.addAndGet(-missed);
+			if (missed == 0) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Makes as much progress as possible without waiting on anyone.
+	 * 
+	 * @param subscriber downstream subscriber, or null if there isn't one yet
+	 */
+	private void step(Flow.Subscriber<? super ByteBuffer> subscriber) {
+		while (!terminated) {
+			if (cancelled) {
+				terminated = true;
+				abort();
+				inbound.clear();
+				outbound.clear();
+				return;
+			}
+			if (error != null) {
+				fail(subscriber, error);
+				return;
+			}
+			if (subscriber == null) {
+				return;
+			}
+
+			// Publish whatever downstream is ready to take.
+			while (!outbound.isEmpty() && demand.get() > 0) {
+				demand.decrementAndGet();
+				subscriber.onNext(outbound.poll());
+			}
+			// If downstream isn't keeping up, we don't want to take on any more
+			// data.
+			if (!outbound.isEmpty()) {
+				return;
+			}
+
+			try {
+				ByteBuffer item = inbound.poll();
+				if (item != null) {
+					processBuffer(item);
+					continue;
+				}
+				if (upstreamDone && !finished) {
+					finished = true;
+					finish(sink);
+					sink.flush();
+					continue;
+				}
+			} catch (Exception e) {
+				abort();
+				if (upstream != null) {
+					upstream.cancel();
+				}
+				fail(subscriber, e);
+				return;
+			}
+
+			if (finished) {
+				terminated = true;
+				subscriber.onComplete();
+			} else if (demand.get() > 0 && !requested && upstream != null) {
+				requested = true;
+				upstream.request(1);
+			}
+			return;
+		}
+	}
+
+	/**
+	 * Processes the remaining contents of item. Heap buffers are read in place,
+	 * other buffers are copied out a chunk at a time.
+	 * 
+	 * @param item buffer to process
+	 * @throws IOException
+	 */
+	private void processBuffer(ByteBuffer item) throws IOException {
+		if (item.hasArray()) {
+			process(item.array(), item.arrayOffset() + item.position(),
+			    item.remaining(), sink);
+			item.position(item.limit());
+		} else {
+			byte[] chunk = new byte[Math.min(CHUNK_SIZE, item.remaining())];
+			while (item.hasRemaining()) {
+				int length = Math.min(chunk.length, item.remaining());
+				item.get(chunk, 0, length);
+				process(chunk, 0, length, sink);
+			}
+		}
+	}
+
+	/**
+	 * Terminates downstream with an error.
+	 * 
+	 * @param subscriber downstream subscriber, or null if there isn't one yet
+	 * @param e error to send
+	 */
+	private void fail(Flow.Subscriber<? super ByteBuffer> subscriber,
+	    Throwable e) {
+		error = e;
+		inbound.clear();
+		outbound.clear();
+		if (subscriber != null) {
+			terminated = true;
+			subscriber.onError(e);
+		}
+	}
+
+	/**
+	 * Subscription handed to downstream.
+	 */
+	private class DownstreamSubscription implements Flow.Subscription {
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				error = new IllegalArgumentException(
+				    "Request must be for a positive number of items");
+				if (upstream != null) {
+					upstream.cancel();
+				}
+			} else {
+				// Saturate at Long.MAX_VALUE, which means unbounded demand.
+				demand.accumulateAndGet(n, (a, b) -> a + b < 0 ? Long.MAX_VALUE : a
+				    + b);
+			}
+			schedule();
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+			if (upstream != null) {
+				upstream.cancel();
+			}
+			schedule();
+		}
+	}
+
+	/**
+	 * Output stream which collects bytes into chunks and adds them to outbound
+	 * as they fill up, making sure they get published. Only one thread writes
+	 * to it at a time: drain, or the last stage of a pipelined coder, which the
+	 * coder waits for before writing anything itself.
+	 */
+	private class ChunkOutputStream extends OutputStream {
+		private byte[] chunk = new byte[CHUNK_SIZE];
+		private int size = 0;
+
+		@Override
+		public void write(int b) {
+			chunk[size++] = (byte) b;
+			if (size == chunk.length) {
+				flush();
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			while (len > 0) {
+				int n = Math.min(len, chunk.length - size);
+				System.arraycopy(b, off, chunk, size, n);
+				size += n;
+				off += n;
+				len -= n;
+				if (size == chunk.length) {
+					flush();
+				}
+			}
+		}
+
+		@Override
+		public void flush() {
+			if (size > 0) {
+				outbound.add(ByteBuffer.wrap(chunk, 0, size));
+				chunk = new byte[CHUNK_SIZE];
+				size = 0;
+				// A pipelined coder writes from its own threads, so we may not be
+				// draining already.
+				schedule();
+			}
+		}
+	}
+}
@@ -0,0 +1,269 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import CITS2200.Compressor;
+
+/**
+ * Cache of the results of compressing and decompressing, keyed by the
+ * compressor which produced them and the input. Entries are looked up by a
+ * fast 64 bit hash of the key, and the input is kept alongside the result so
+ * a hash collision can never give the wrong result. Compressors are told
+ * apart by identity, so one cache can be shared by compressors with
+ * different settings, but a compressor's results are only correct for as
+ * long as its settings don't change.
+ * 
+ * The cache is split into stripes by hash, each with its own lock, so
+ * threads only contend when they use the same stripe. Each stripe evicts its
+ * least recently used entries once it holds more than its share of the
+ * entry count or byte limit.
+ * 
+ * @author E
+ */
+public class CompressionCache {
+	/** Number of stripes. Must be a power of 2. */
+	private static final int STRIPES = 16;
+	/** Rough number of bytes each entry takes besides its arrays. */
+	private static final long ENTRY_OVERHEAD = 96;
+	private static final long PRIME_1 = 0x9E3779B185EBCA87L;
+	private static final long PRIME_2 = 0xC2B2AE3D27D4EB4FL;
+
+	private final Stripe[] stripes;
+	/** Most entries a stripe may hold. */
+	private final int stripeEntries;
+	/** Most bytes a stripe may hold. */
+	private final long stripeBytes;
+	private final LongAdder hits;
+	private final LongAdder misses;
+	private final LongAdder evictions;
+
+	/**
+	 * Initialise an empty cache.
+	 * 
+	 * @param maxEntries most entries the cache may hold
+	 * @param maxBytes most bytes the cache may hold, counting both the input
+	 *          and result of each entry
+	 */
+	public CompressionCache(int maxEntries, long maxBytes) {
+		this.stripes = new Stripe[STRIPES];
+		for (int i = 0; i < STRIPES; ++i) {
+			stripes[i] = new Stripe();
+		}
+		this.stripeEntries = Math.max(1, maxEntries / STRIPES);
+		this.stripeBytes = maxBytes / STRIPES;
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+		this.evictions = new LongAdder();
+	}
+
+	/**
+	 * @return the longest input which could be cached
+	 */
+	public long getMaxInputSize() {
+		return stripeBytes - ENTRY_OVERHEAD;
+	}
+
+	/**
+	 * Looks up the result of compressor compressing or decompressing the first
+	 * length bytes of input.
+	 * 
+	 * @param compressor compressor which would produce the result
+	 * @param compress true for compression, false for decompression
+	 * @param input the input
+	 * @param length number of bytes in input
+	 * @return the result, which must not be modified, or null if it isn't
+	 *         cached
+	 */
+	public byte[] get(Compressor compressor, boolean compress, byte[] input,
+	    int length) {
+		long hash = hash(compressor, compress, input, length);
+		Stripe stripe = stripeFor(hash);
+		Entry entry;
+		synchronized (stripe) {
+			entry = stripe.entries.get(hash);
+		}
+		if (entry != null
+		    && entry.compressor == compressor
+		    && entry.compress == compress
+		    && Arrays.equals(entry.input, 0, entry.input.length, input, 0,
+		        length)) {
+			hits.increment();
+			return entry.result;
+		}
+		misses.increment();
+		return null;
+	}
+
+	/**
+	 * Remembers the result of compressor compressing or decompressing the first
+	 * length bytes of input. Nothing is cached if the entry would be too large.
+	 * 
+	 * @param compressor compressor which produced the result
+	 * @param compress true for compression, false for decompression
+	 * @param input the input
+	 * @param length number of bytes in input
+	 * @param result the result, which must not be modified afterwards
+	 */
+	public void put(Compressor compressor, boolean compress, byte[] input,
+	    int length, byte[] result) {
+		Entry entry = new Entry(compressor, compress, Arrays.copyOf(input,
+		    length), result);
+		if (entry.size() > stripeBytes) {
+			return;
+		}
+		long hash = hash(compressor, compress, input, length);
+		Stripe stripe = stripeFor(hash);
+		synchronized (stripe) {
+			Entry old = stripe.entries.put(hash, entry);
+			if (old != null) {
+				stripe.bytes -= old.size();
+			}
+			stripe.bytes += entry.size();
+			// The iterator goes from least to most recently used.
+			Iterator<Entry> it = stripe.entries.values().iterator();
+			while (stripe.entries.size() > stripeEntries
+			    || stripe.bytes > stripeBytes) {
+				Entry eldest = it.next();
+				it.remove();
+				stripe.bytes -= eldest.size();
+				evictions.increment();
+			}
+		}
+	}
+
+	/**
+	 * Removes every entry. The metrics are kept.
+	 */
+	public void clear() {
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				stripe.entries.clear();
+				stripe.bytes = 0;
+			}
+		}
+	}
+
+	/**
+	 * @return number of lookups which found a result
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return number of lookups which didn't find a result
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return number of entries removed to make room for others
+	 */
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	/**
+	 * @return number of entries in the cache
+	 */
+	public int size() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				size += stripe.entries.size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return number of bytes the entries in the cache take
+	 */
+	public long bytes() {
+		long bytes = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				bytes += stripe.bytes;
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * @param hash hash of an entry's key
+	 * @return stripe the entry belongs in
+	 */
+	private Stripe stripeFor(long hash) {
+		return stripes[(int) (hash >>> 60) & (STRIPES - 1)];
+	}
+
+	/**
+	 * Hashes a key 8 bytes at a time, in the style of xxHash.
+	 * 
+	 * @param compressor compressor which produced the result
+	 * @param compress true for compression, false for decompression
+	 * @param data the input
+	 * @param length number of bytes in data
+	 * @return hash of the key
+	 */
+	private static long hash(Compressor compressor, boolean compress,
+	    byte[] data, int length) {
+		ByteBuffer buf = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+		long h = (compress ? PRIME_1 : PRIME_2) + length;
+		h ^= System.identityHashCode(compressor) * PRIME_2;
+		int i = 0;
+		for (; i + 8 <= length; i += 8) {
+			h ^= Long.rotateLeft(buf.getLong(i) * PRIME_2, 31) * PRIME_1;
+			h = Long.rotateLeft(h, 27) * PRIME_1 + PRIME_2;
+		}
+		for (; i < length; ++i) {
+			h ^= (data[i] & 0xFF) * PRIME_1;
+			h = Long.rotateLeft(h, 11) * PRIME_2;
+		}
+		// Mix the bits so the top ones, which pick the stripe, depend on all of
+		// them.
+		h ^= h >>> 33;
+		h *= PRIME_2;
+		h ^= h >>> 29;
+		h *= PRIME_1;
+		h ^= h >>> 32;
+		return h;
+	}
+
+	/** A cached result. */
+	private static class Entry {
+		public Compressor compressor;
+		public boolean compress;
+		public byte[] input;
+		public byte[] result;
+
+		public Entry(Compressor compressor, boolean compress, byte[] input,
+		    byte[] result) {
+			this.compressor = compressor;
+			this.compress = compress;
+			this.input = input;
+			this.result = result;
+		}
+
+		/**
+		 * @return rough number of bytes the entry takes
+		 */
+		public long size() {
+			return input.length + result.length + ENTRY_OVERHEAD;
+		}
+	}
+
+	/** Part of the cache with its own lock. */
+	private static class Stripe {
+		/** Entries by hash, from least to most recently used. */
+		public Map<Long, Entry> entries = new LinkedHashMap<Long, Entry>(16,
+		    0.75f, true);
+		/** Number of bytes the entries take. */
+		public long bytes = 0;
+	}
+}
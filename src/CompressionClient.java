@@ -0,0 +1,147 @@
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import CITS2200.Compressor;
+
+/**
+ * Compressor which sends its work to a CompressionDaemon over a Unix domain
+ * socket, rather than doing it itself.
+ * 
+ * @author E
+ */
+public class CompressionClient implements Compressor {
+	/** We read the input stream and reply in chunks of this size. */
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	/** Path of the daemon's socket. */
+	private final Path path;
+
+	/**
+	 * Initialise a client of the daemon listening at path.
+	 * 
+	 * @param path path of the daemon's socket
+	 */
+	public CompressionClient(Path path) {
+		this.path = path;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 4) {
+			System.err.printf("Usage: -[d|c] socket_path input_file output_file\n");
+			System.exit(1);
+		}
+
+		FileInputStream input = new FileInputStream(args[2]);
+		FileOutputStream output = new FileOutputStream(args[3]);
+		CompressionClient client = new CompressionClient(Paths.get(args[1]));
+		String error = null;
+		if (args[0].equals("-c")) {
+			error = client.compress(input, output);
+		} else if (args[0].equals("-d")) {
+			error = client.decompress(input, output);
+		}
+		if (error != null) {
+			System.err.println(error);
+			System.exit(1);
+		}
+	}
+
+	@Override
+	public String compress(InputStream inputStream, OutputStream outputStream) {
+		return send(CompressionDaemon.COMPRESS, inputStream, outputStream);
+	}
+
+	@Override
+	public String decompress(InputStream inputStream, OutputStream outputStream) {
+		return send(CompressionDaemon.DECOMPRESS, inputStream, outputStream);
+	}
+
+	/**
+	 * Sends a request to the daemon, and writes the output it replies with.
+	 * Like NoGGNoSkill, the output stream is closed at the end.
+	 * 
+	 * @param op CompressionDaemon.COMPRESS or CompressionDaemon.DECOMPRESS
+	 * @param inputStream
+	 * @param outputStream
+	 * @return null or exception message if an exception occurred
+	 */
+	private String send(byte op, InputStream inputStream,
+	    OutputStream outputStream) {
+		try (SocketChannel channel = SocketChannel.open(
+		    StandardProtocolFamily.UNIX)) {
+			channel.connect(UnixDomainSocketAddress.of(path));
+			byte[] chunk = new byte[CHUNK_SIZE];
+			chunk[0] = op;
+			int length = 1;
+			int read;
+			while ((read = inputStream.read(chunk, length, chunk.length - length))
+			    != -1) {
+				length += read;
+				if (length == chunk.length) {
+					writeFully(channel, chunk, length);
+					length = 0;
+				}
+			}
+			writeFully(channel, chunk, length);
+			channel.shutdownOutput();
+
+			// The daemon doesn't reply until it has all of the request, so we
+			// can read the reply now without it waiting on us.
+			ByteBuffer buf = ByteBuffer.wrap(chunk);
+			ByteArrayOutputStream message = null;
+			boolean first = true;
+			while (channel.read(buf.clear()) != -1) {
+				int offset = 0;
+				if (first && buf.position() > 0) {
+					first = false;
+					offset = 1;
+					if (chunk[0] != CompressionDaemon.OK) {
+						message = new ByteArrayOutputStream();
+					}
+				}
+				if (message != null) {
+					message.write(chunk, offset, buf.position() - offset);
+				} else {
+					outputStream.write(chunk, offset, buf.position() - offset);
+				}
+			}
+			if (first) {
+				return "java.io.IOException: No reply from daemon";
+			}
+			if (message != null) {
+				return new String(message.toByteArray(), StandardCharsets.UTF_8);
+			}
+			outputStream.close();
+		} catch (IOException e) {
+			return e.toString();
+		}
+		return null;
+	}
+
+	/**
+	 * Writes the first length bytes of data to channel.
+	 * 
+	 * @param channel channel to write to
+	 * @param data bytes to write
+	 * @param length number of bytes to write
+	 * @throws IOException
+	 */
+	private static void writeFully(SocketChannel channel, byte[] data,
+	    int length) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(data, 0, length);
+		while (buf.hasRemaining()) {
+			channel.write(buf);
+		}
+	}
+}
@@ -0,0 +1,400 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Long running process which compresses and decompresses data sent to it over
+ * a Unix domain socket. Starting a JVM and warming it up takes far longer than
+ * compressing a small file, so tools which make many small calls can keep one
+ * of these running and send their work to it instead, with
+ * CompressionClient or anything else that can talk to a socket.
+ * 
+ * Each connection carries one request. The client sends COMPRESS or
+ * DECOMPRESS followed by the input, then shuts down its side of the
+ * connection. We reply with OK followed by the output, or ERROR followed by a
+ * UTF-8 message, and close the connection.
+ * 
+ * Requests are handled concurrently by a fixed number of threads, and share
+ * a MemoryScheduler so that together they stay within a memory budget. Each
+ * request's input and output are limited in size, since we hold both in
+ * memory, and clients are only given so long to send a request and to take
+ * the reply, so idle clients can't tie up every thread.
+ * 
+ * What a warm daemon saves is JVM start up and JIT compilation. Each request
+ * still gets a new encoder or decoder, which for a small request means a few
+ * hundred KB of short-lived buffers.
+ * 
+ * @author E
+ */
+public class CompressionDaemon implements AutoCloseable {
+	/** First byte of a request to compress. */
+	public static final byte COMPRESS = 'c';
+	/** First byte of a request to decompress. */
+	public static final byte DECOMPRESS = 'd';
+	/** First byte of a reply to a request which succeeded. */
+	public static final byte OK = 0;
+	/** First byte of a reply to a request which failed. */
+	public static final byte ERROR = 1;
+	/** We read requests in chunks of this size. */
+	private static final int CHUNK_SIZE = 64 * 1024;
+	/** Size of the data we compress a few times to warm up. */
+	private static final int WARM_UP_SIZE = 256 * 1024;
+	/** Default number of milliseconds to send a request or take a reply. */
+	public static final long DEFAULT_REQUEST_TIMEOUT = 60 * 1000;
+
+	/** Path of the socket. */
+	private final Path path;
+	/** Compressor shared by every request. */
+	private final NoGGNoSkill compressor;
+	/** Threads requests are handled on. */
+	private final ExecutorService executor;
+	/** Most bytes of input or output a request may have. */
+	private final long maxRequestSize;
+	/** Most milliseconds a client may take to send a request or take a reply. */
+	private final long requestTimeout;
+	private ServerSocketChannel server;
+
+	/**
+	 * Initialise a daemon, which won't listen until serve is called.
+	 * 
+	 * @param path path of the socket to create
+	 * @param options settings to compress and decompress with
+	 * @param threads number of requests to handle at once
+	 * @param memoryBudget total number of bytes requests may use at once
+	 * @param maxRequestSize most bytes of input or output a request may have
+	 */
+	public CompressionDaemon(Path path, CompressionOptions options,
+	    int threads, long memoryBudget, long maxRequestSize) {
+		this(path, options, threads, memoryBudget, maxRequestSize,
+		    DEFAULT_REQUEST_TIMEOUT);
+	}
+
+	/**
+	 * Initialise a daemon, which won't listen until serve is called.
+	 * 
+	 * @param path path of the socket to create
+	 * @param options settings to compress and decompress with
+	 * @param threads number of requests to handle at once
+	 * @param memoryBudget total number of bytes requests may use at once
+	 * @param maxRequestSize most bytes of input or output a request may have
+	 * @param requestTimeout most milliseconds a client may take to send a
+	 *          request, and again to take the reply
+	 */
+	public CompressionDaemon(Path path, CompressionOptions options,
+	    int threads, long memoryBudget, long maxRequestSize,
+	    long requestTimeout) {
+		this.path = path;
+		this.compressor = new NoGGNoSkill(options, new MemoryScheduler(
+		    memoryBudget));
+		this.executor = Executors.newFixedThreadPool(threads);
+		this.maxRequestSize = maxRequestSize;
+		this.requestTimeout = requestTimeout;
+		this.server = null;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1 || args.length > 5) {
+			System.err.printf("Usage: socket_path [threads] [memory_budget]"
+			    + " [max_request_size] [request_timeout_ms]\n");
+			System.exit(1);
+		}
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime
+		    .getRuntime().availableProcessors();
+		long memoryBudget = args.length > 2 ? Long.parseLong(args[2]) : Runtime
+		    .getRuntime().maxMemory() / 2;
+		long maxRequestSize = args.length > 3 ? Long.parseLong(args[3])
+		    : 64 * 1024 * 1024;
+		long requestTimeout = args.length > 4 ? Long.parseLong(args[4])
+		    : DEFAULT_REQUEST_TIMEOUT;
+
+		CompressionDaemon daemon = new CompressionDaemon(Paths.get(args[0]),
+		    new CompressionOptions(), threads, memoryBudget, maxRequestSize,
+		    requestTimeout);
+		daemon.warmUp();
+		daemon.serve();
+	}
+
+	/**
+	 * Compresses and decompresses some made up data a few times, so the JIT
+	 * has compiled the hot paths before the first real request.
+	 */
+	public void warmUp() {
+		Random random = new Random(0);
+		byte[] data = new byte[WARM_UP_SIZE];
+		for (int i = 0; i < data.length; ++i) {
+			data[i] = (byte) ('a' + random.nextInt(1 + i % 26));
+		}
+		for (int i = 0; i < 5; ++i) {
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+			compressor.compress(new ByteArrayInputStream(data), compressed);
+			compressor.decompress(new ByteArrayInputStream(compressed
+			    .toByteArray()), new ByteArrayOutputStream());
+		}
+	}
+
+	/**
+	 * Listens on the socket and handles requests until closed. Any file already
+	 * at the socket's path is taken to be left over from an earlier daemon and
+	 * replaced. Where the file system supports it, only our own user may
+	 * connect.
+	 * 
+	 * @throws IOException if the socket couldn't be created
+	 */
+	public void serve() throws IOException {
+		Files.deleteIfExists(path);
+		synchronized (this) {
+			server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+			if (path.getFileSystem().supportedFileAttributeViews().contains(
+			    "posix")) {
+				bindPrivately();
+			} else {
+				server.bind(UnixDomainSocketAddress.of(path));
+			}
+		}
+		try {
+			while (true) {
+				SocketChannel channel = server.accept();
+				executor.execute(() -> handle(channel));
+			}
+		} catch (ClosedChannelException e) {
+			// We've been closed.
+		}
+	}
+
+	/**
+	 * Binds the server to path, with the socket only readable and writable by
+	 * our own user. Binding creates the socket with permissions from the umask
+	 * and starts listening straight away, so we bind in a directory only we can
+	 * get into, restrict the socket, then move it into place.
+	 * 
+	 * @throws IOException if the socket couldn't be created
+	 */
+	private void bindPrivately() throws IOException {
+		Path parent = path.toAbsolutePath().getParent();
+		Path directory = Files.createTempDirectory(parent, ".ngns",
+		    PosixFilePermissions.asFileAttribute(PosixFilePermissions
+		        .fromString("rwx------")));
+		Path socket = directory.resolve("s");
+		try {
+			server.bind(UnixDomainSocketAddress.of(socket));
+			Files.setPosixFilePermissions(socket, PosixFilePermissions
+			    .fromString("rw-------"));
+			Files.move(socket, path, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(socket);
+			Files.delete(directory);
+		}
+	}
+
+	/**
+	 * Stops listening and removes the socket. Requests already accepted are
+	 * still finished.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if (server != null) {
+				server.close();
+			}
+		}
+		executor.shutdown();
+		Files.deleteIfExists(path);
+	}
+
+	/**
+	 * Reads a request from channel, and replies to it.
+	 * 
+	 * @param channel connection the request came in on
+	 */
+	private void handle(SocketChannel channel) {
+		// The channel is non-blocking so we can give up on clients which take
+		// too long, waiting for it with a selector.
+		try (channel; Selector selector = Selector.open()) {
+			channel.configureBlocking(false);
+			SelectionKey key = channel.register(selector, 0);
+			byte[] reply;
+			try {
+				reply = process(new TimedInputStream(key, deadline()));
+			} catch (IOException | RuntimeException e) {
+				reply = error(e.toString());
+			}
+			ByteBuffer buf = ByteBuffer.wrap(reply);
+			long deadline = deadline();
+			while (buf.hasRemaining()) {
+				if (channel.write(buf) == 0) {
+					await(key, SelectionKey.OP_WRITE, deadline);
+				}
+			}
+		} catch (IOException e) {
+			// The client has gone away, so there's no one to tell.
+		}
+	}
+
+	/**
+	 * @return value of System.nanoTime by which the client must be done
+	 */
+	private long deadline() {
+		return System.nanoTime() + requestTimeout * 1000000;
+	}
+
+	/**
+	 * Waits until a channel is ready.
+	 * 
+	 * @param key the channel's key
+	 * @param op operation to wait for
+	 * @param deadline value of System.nanoTime to give up at
+	 * @throws IOException if the deadline passes first
+	 */
+	private static void await(SelectionKey key, int op, long deadline)
+	    throws IOException {
+		key.interestOps(op);
+		while (true) {
+			long remaining = (deadline - System.nanoTime()) / 1000000;
+			if (remaining <= 0) {
+				throw new SocketTimeoutException("Request timed out");
+			}
+			if (key.selector().select(remaining) > 0) {
+				key.selector().selectedKeys().clear();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Reads a request and carries it out.
+	 * 
+	 * @param in the request
+	 * @return the reply
+	 * @throws IOException if the request couldn't be read or was too large
+	 */
+	private byte[] process(InputStream in) throws IOException {
+		int op = in.read();
+		if (op != COMPRESS && op != DECOMPRESS) {
+			return error("Unknown request");
+		}
+		ByteArrayOutputStream input = new ByteArrayOutputStream();
+		byte[] chunk = new byte[CHUNK_SIZE];
+		int read;
+		boolean tooLarge = false;
+		while ((read = in.read(chunk)) != -1) {
+			// We read the rest of a request which is too large rather than just
+			// closing the connection, so the client sees our reply.
+			tooLarge |= input.size() + (long) read > maxRequestSize;
+			if (!tooLarge) {
+				input.write(chunk, 0, read);
+			}
+		}
+		if (tooLarge) {
+			return error("Request too large");
+		}
+
+		LimitedOutputStream output = new LimitedOutputStream(maxRequestSize);
+		output.write(OK);
+		InputStream data = new ByteArrayInputStream(input.toByteArray());
+		String message = op == COMPRESS ? compressor.compress(data, output)
+		    : compressor.decompress(data, output);
+		if (message != null) {
+			return error(message);
+		}
+		return output.toByteArray();
+	}
+
+	/**
+	 * @param message description of what went wrong
+	 * @return a reply saying a request failed
+	 */
+	private static byte[] error(String message) {
+		byte[] text = message.getBytes(StandardCharsets.UTF_8);
+		byte[] reply = new byte[text.length + 1];
+		reply[0] = ERROR;
+		System.arraycopy(text, 0, reply, 1, text.length);
+		return reply;
+	}
+
+	/**
+	 * Reads from a non-blocking channel, failing once a deadline passes.
+	 */
+	private static class TimedInputStream extends InputStream {
+		/** Key of the channel to read from. */
+		private final SelectionKey key;
+		/** Value of System.nanoTime to give up at. */
+		private final long deadline;
+
+		public TimedInputStream(SelectionKey key, long deadline) {
+			this.key = key;
+			this.deadline = deadline;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+			while (true) {
+				int read = ((SocketChannel) key.channel()).read(buf);
+				if (read != 0) {
+					return read;
+				}
+				await(key, SelectionKey.OP_READ, deadline);
+			}
+		}
+	}
+
+	/**
+	 * Holds output in memory, failing once there is more than a limit of it.
+	 */
+	private static class LimitedOutputStream extends OutputStream {
+		private final ByteArrayOutputStream buffer;
+		/** Most bytes of output allowed, not counting the status byte. */
+		private final long limit;
+
+		public LimitedOutputStream(long limit) {
+			this.buffer = new ByteArrayOutputStream();
+			this.limit = limit;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (buffer.size() + (long) len > limit + 1) {
+				throw new IOException("Reply too large");
+			}
+			buffer.write(b, off, len);
+		}
+
+		public byte[] toByteArray() {
+			return buffer.toByteArray();
+		}
+	}
+}
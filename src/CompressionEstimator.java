@@ -0,0 +1,260 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Estimates how well an input would compress, and how long it would take,
+ * without running the whole compressor over it. We take a small sample of the
+ * input, work out its order 0 and order 1 entropy, and run it through the zero
+ * compensation, the sort for each level and the MTF, then ask
+ * HuffmanComponent what the result would cost with its real block choices and
+ * header sizes. Since the sample is a fixed size, this takes about the same
+ * time however large the input is.
+ * 
+ * The sample only sees repeats within itself, so inputs made of long repeats
+ * further apart than that usually compress better than estimated.
+ * 
+ * @author E
+ */
+public class CompressionEstimator {
+	/** Most bytes we sample from the input. */
+	public static final int SAMPLE_SIZE = 32 * 1024;
+	/**
+	 * Number of places we take the sample from when the whole input is there
+	 * to look at, so it isn't all from the start.
+	 */
+	private static final int SLICES = 4;
+	/** Sort contexts of the ST levels we estimate, fastest first. */
+	private static final int[] ST_CONTEXTS = { 2, 4 };
+	/**
+	 * Rough number of bytes the block headers and the end of the stream take
+	 * for an input which fits in one block.
+	 */
+	private static final int HEADER_SIZE = 4;
+	/** Rough time storing takes per byte. */
+	private static final double STORED_NANOS_PER_BYTE = 0.5;
+	/**
+	 * Inputs are only worth compressing if the best level looks like it would
+	 * bring them down to this fraction of their size.
+	 */
+	private static final double WORTHWHILE_RATIO = 0.97;
+
+	/**
+	 * Estimated result of compressing an input with some settings.
+	 */
+	public static class Level {
+		/**
+		 * Type of block the level makes: BlockHeader.STORED, ST or BWT.
+		 */
+		public int type;
+		/** Number of symbols of context an ST level sorts on. */
+		public int context;
+		/** Compressed size as a fraction of the input size. */
+		public double ratio;
+		/** Rough time compressing takes per byte of input. */
+		public double nanosPerByte;
+
+		/**
+		 * Makes a copy of options which compresses at this level. Stored
+		 * inputs are better not passed to the compressor at all, but the
+		 * fastest sort is used for them.
+		 * 
+		 * @param options options to start from
+		 * @return the options to use, which are a copy
+		 */
+		public CompressionOptions apply(CompressionOptions options) {
+			CompressionOptions result = new CompressionOptions(options);
+			if (type == BlockHeader.BWT) {
+				result.sortContext = 0;
+			} else if (type == BlockHeader.ST) {
+				result.sortContext = context;
+			} else {
+				result.sortContext = ST_CONTEXTS[0];
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Everything we estimated about an input.
+	 */
+	public static class Estimate {
+		/** Number of bytes of the input the estimate was made from. */
+		public int sampleSize;
+		/** Number of bytes in the input, or -1 if it isn't known. */
+		public long inputSize;
+		/** Order 0 entropy of the sample, in bits per byte. */
+		public double order0;
+		/**
+		 * Entropy of each byte of the sample given the byte before, in bits per
+		 * byte.
+		 */
+		public double order1;
+		/** Estimate for each level, from fastest to slowest. */
+		public Level[] levels;
+		/** Whether the input looks worth compressing at all. */
+		public boolean compressible;
+
+		/**
+		 * Picks the level which compresses best within a time limit.
+		 * 
+		 * @param maxNanosPerByte longest time compressing may take per byte
+		 * @return the best level which is fast enough, which is stored if
+		 *         nothing else is, or nothing looks worth compressing
+		 */
+		public Level best(double maxNanosPerByte) {
+			Level best = levels[0];
+			if (!compressible) {
+				return best;
+			}
+			for (Level level : levels) {
+				if (level.nanosPerByte <= maxNanosPerByte && level.ratio < best.ratio) {
+					best = level;
+				}
+			}
+			return best;
+		}
+	}
+
+	/**
+	 * Estimates how well the input left in a stream would compress from the
+	 * bytes at the start of it. If the stream supports mark, it's reset to
+	 * where it was afterwards, otherwise up to SAMPLE_SIZE bytes are used up.
+	 * 
+	 * @param in stream to estimate
+	 * @return the estimate
+	 * @throws IOException
+	 */
+	public static Estimate estimate(InputStream in) throws IOException {
+		if (in.markSupported()) {
+			in.mark(SAMPLE_SIZE);
+		}
+		byte[] sample = new byte[SAMPLE_SIZE];
+		int length = 0;
+		int n;
+		while (length < SAMPLE_SIZE
+		    && (n = in.read(sample, length, SAMPLE_SIZE - length)) != -1) {
+			length += n;
+		}
+		if (in.markSupported()) {
+			in.reset();
+		}
+		return estimate(sample, length, -1);
+	}
+
+	/**
+	 * Estimates how well the remaining bytes of a buffer would compress, from
+	 * slices spread through them. The buffer's position isn't changed.
+	 * 
+	 * @param buf buffer to estimate
+	 * @return the estimate
+	 */
+	public static Estimate estimate(ByteBuffer buf) {
+		int remaining = buf.remaining();
+		byte[] sample;
+		if (remaining <= SAMPLE_SIZE) {
+			sample = new byte[remaining];
+			buf.duplicate().get(sample);
+		} else {
+			sample = new byte[SAMPLE_SIZE];
+			int slice = SAMPLE_SIZE / SLICES;
+			ByteBuffer view = buf.duplicate();
+			for (int i = 0; i < SLICES; ++i) {
+				// Spread the slices out so the last one ends at the end.
+				long offset = (long) (remaining - slice) * i / (SLICES - 1);
+				view.position(buf.position() + (int) offset);
+				view.get(sample, i * slice, slice);
+			}
+		}
+		return estimate(sample, sample.length, remaining);
+	}
+
+	/**
+	 * @param sample bytes sampled from the input
+	 * @param length number of bytes in sample
+	 * @param inputSize number of bytes in the input, or -1 if it isn't known
+	 * @return the estimate
+	 */
+	private static Estimate estimate(byte[] sample, int length, long inputSize) {
+		Estimate estimate = new Estimate();
+		estimate.sampleSize = length;
+		estimate.inputSize = inputSize;
+		entropy(sample, length, estimate);
+
+		estimate.levels = new Level[ST_CONTEXTS.length + 2];
+		Level stored = new Level();
+		stored.type = BlockHeader.STORED;
+		stored.ratio = length == 0 ? 1 : (double) (length + HEADER_SIZE) / length;
+		stored.nanosPerByte = STORED_NANOS_PER_BYTE;
+		estimate.levels[0] = stored;
+
+		int[] symbols = new int[2 * length + 1];
+		int n = new ZeroComponent().transform(sample, length, symbols);
+		symbols[n++] = 0;
+		int[] sorted = new int[n];
+		MTFComponent mtf = new MTFComponent();
+		for (int i = 0; i <= ST_CONTEXTS.length; ++i) {
+			Level level = new Level();
+			if (i < ST_CONTEXTS.length) {
+				level.type = BlockHeader.ST;
+				level.context = ST_CONTEXTS[i];
+				new STComponent(level.context).transform(symbols, n, sorted);
+				level.nanosPerByte = BlockEncoder.BWT_NANOS_PER_BYTE
+				    / BlockEncoder.ST_SPEEDUP;
+			} else {
+				level.type = BlockHeader.BWT;
+				new BWTComponent().transform(symbols, n, sorted);
+				level.nanosPerByte = BlockEncoder.BWT_NANOS_PER_BYTE;
+			}
+			mtf.reset();
+			mtf.transform(sorted, n, sorted);
+			double bits = HuffmanComponent.estimateSize(sorted, n);
+			level.ratio = length == 0 ? 1 : (bits / 8 + HEADER_SIZE) / length;
+			estimate.levels[i + 1] = level;
+		}
+
+		double best = stored.ratio;
+		for (Level level : estimate.levels) {
+			best = Math.min(best, level.ratio);
+		}
+		estimate.compressible = best < WORTHWHILE_RATIO * stored.ratio;
+		return estimate;
+	}
+
+	/**
+	 * Works out the order 0 and order 1 entropy of the first length bytes of
+	 * data.
+	 * 
+	 * @param data bytes to look at
+	 * @param length number of bytes in data
+	 * @param estimate where to put the results
+	 */
+	private static void entropy(byte[] data, int length, Estimate estimate) {
+		long[] counts = new long[256];
+		Kernels.get().histogram(data, 0, length, counts);
+		int[] pairs = new int[256 * 256];
+		for (int i = 1; i < length; ++i) {
+			pairs[(data[i - 1] & 0xFF) << 8 | (data[i] & 0xFF)]++;
+		}
+		double order0 = 0;
+		double order1 = 0;
+		for (int a = 0; a < 256; ++a) {
+			if (counts[a] == 0) {
+				continue;
+			}
+			order0 += counts[a] * Math.log((double) length / counts[a]);
+			// The last byte has nothing after it.
+			long contexts = counts[a] - ((data[length - 1] & 0xFF) == a ? 1 : 0);
+			for (int b = 0; b < 256; ++b) {
+				int count = pairs[a << 8 | b];
+				if (count > 0) {
+					order1 += count * Math.log((double) contexts / count);
+				}
+			}
+		}
+		if (length > 0) {
+			estimate.order0 = order0 / length / Math.log(2);
+			estimate.order1 = order1 / length / Math.log(2);
+		}
+	}
+}
@@ -0,0 +1,149 @@
+
+/**
+ * Settings controlling how NoGGNoSkill compresses and decompresses data. The
+ * defaults give the original single threaded behaviour.
+ * 
+ * @author E
+ */
+public class CompressionOptions {
+	/**
+	 * Number of blocks which may be in flight between the stages of the
+	 * pipeline at once. If this is 0, the stages are run one after another on
+	 * the calling thread. Otherwise each stage runs on its own thread. Each
+	 * block in flight costs about two blocks' worth of int arrays.
+	 */
+	public int pipelineDepth;
+	/**
+	 * Number of threads work within a single block may be split over. With 1,
+	 * everything is done on the thread handling the block.
+	 */
+	public int threads;
+	/**
+	 * Maximum number of symbols in a block, including the EOS marker. Bigger
+	 * blocks compress better but need more memory and time per block.
+	 */
+	public long blockSize;
+	/**
+	 * Whether to keep blocks off the heap. This allows blocks too large for Java
+	 * arrays, at several GB, and keeps heap usage independent of the block size,
+	 * at the cost of some speed and pipelining. Blocks larger than the default
+	 * size are always decompressed off the heap.
+	 */
+	public boolean offHeap;
+	/**
+	 * If this is 0, blocks are sorted with a full BWT. Otherwise they are only
+	 * sorted on this many symbols of context, from 1 to 8, using the ST
+	 * transform. This is several times faster for a small loss in compression,
+	 * and decompression is about as fast either way. Blocks kept off the heap
+	 * always use the full BWT.
+	 */
+	public int sortContext;
+	/**
+	 * Whether to look for chunks of the input repeated anywhere in the last
+	 * dedupWindow bytes, and replace them with references to the earlier copy.
+	 * This helps with data such as backups, where the same large chunks turn up
+	 * far further apart than a block.
+	 */
+	public boolean dedup;
+	/**
+	 * How far back repeated chunks are looked for. Decompression keeps this
+	 * much of the output on the heap, so it can be at most about 2 GB.
+	 */
+	public long dedupWindow;
+	/**
+	 * Number of milliseconds compression should take at most, or 0 for no
+	 * limit. Once it looks like the next block would finish past the deadline
+	 * with the full BWT, it and the rest are sorted on limited context instead,
+	 * and once that looks too slow too, they are stored. Blocks already in the
+	 * pipeline are still finished, so the deadline may be overrun by up to
+	 * pipelineDepth blocks. BlockEncoder.planForBudget picks options likely to
+	 * get through all the input in time.
+	 */
+	public long timeBudget;
+	/**
+	 * Whether to try the registered filters on each block, and pass it through
+	 * whichever looks like it would help most first. This helps with data such
+	 * as audio, tables of fixed width records, machine code, and CSV and logs
+	 * which RecordFilter groups by column, but costs a trial on a sample of
+	 * every block.
+	 */
+	public boolean filters;
+	/**
+	 * Whether the input is newline delimited records, such as logs and CSV
+	 * exports. Each block is then grouped by column with RecordFilter, split on
+	 * whichever delimiter looks best, unless none of them look like they would
+	 * help. This takes the place of the other filters.
+	 */
+	public boolean records;
+	/**
+	 * Number of bitstreams each Huffman block's symbols are split across, a
+	 * power of 2 up to HuffmanComponent.MAX_STREAMS. With more than one, the
+	 * decoder decodes a symbol from each in turn, which keeps more of the CPU
+	 * busy at once, at the cost of a few bytes per block for the jump table.
+	 */
+	public int huffmanStreams;
+	/**
+	 * Whether to record the CRC32C of each block which fits on the heap, and
+	 * of the whole stream, so decompression can check them and
+	 * NoGGNoSkill.verify can check a stream without writing it anywhere.
+	 */
+	public boolean checksums;
+	/**
+	 * Whether to also end blocks where the content says to, about every 1 MB,
+	 * rather than only when they're full. An edit to the input then only
+	 * changes the compressed blocks near it, so tools like rsync and dedup
+	 * storage only have to deal with those, at some cost in compression from
+	 * the smaller blocks. The stream checksum at the end changes whatever,
+	 * and a time budget may change how any block is compressed.
+	 */
+	public boolean rsyncable;
+	/**
+	 * Whether to store a sample of the suffix array with each BWT block which
+	 * fits on the heap and isn't filtered, so StreamSearcher can find patterns
+	 * in it without undoing the BWT. This adds about half a percent of the
+	 * input size to the output.
+	 */
+	public boolean searchIndex;
+
+	/**
+	 * Initialise the default options.
+	 */
+	public CompressionOptions() {
+		this.pipelineDepth = 0;
+		this.threads = 1;
+		this.blockSize = BlockEncoder.BLOCK_SIZE;
+		this.offHeap = false;
+		this.sortContext = 0;
+		this.dedup = false;
+		this.dedupWindow = 256 * 1024 * 1024;
+		this.timeBudget = 0;
+		this.filters = false;
+		this.records = false;
+		this.huffmanStreams = 1;
+		this.checksums = true;
+		this.rsyncable = false;
+		this.searchIndex = false;
+	}
+
+	/**
+	 * Initialise a copy of options.
+	 * 
+	 * @param options options to copy
+	 */
+	public CompressionOptions(CompressionOptions options) {
+		this.pipelineDepth = options.pipelineDepth;
+		this.threads = options.threads;
+		this.blockSize = options.blockSize;
+		this.offHeap = options.offHeap;
+		this.sortContext = options.sortContext;
+		this.dedup = options.dedup;
+		this.dedupWindow = options.dedupWindow;
+		this.timeBudget = options.timeBudget;
+		this.filters = options.filters;
+		this.records = options.records;
+		this.huffmanStreams = options.huffmanStreams;
+		this.checksums = options.checksums;
+		this.rsyncable = options.rsyncable;
+		this.searchIndex = options.searchIndex;
+	}
+}
@@ -0,0 +1,97 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Reactive streams processor which compresses the chunks published to it, and
+ * publishes the compressed data.
+ * 
+ * For interactive streams, it can be told to sync after every chunk, so each
+ * chunk published to it can be decompressed in full as soon as the compressed
+ * data for it arrives, rather than waiting for a block to fill up.
+ * 
+ * @author E
+ */
+public class CompressionProcessor extends CodecProcessor {
+	/** Encoder, created once we know where it should write to. */
+	private BlockEncoder encoder;
+	/** Settings to compress with. */
+	private final CompressionOptions options;
+	/** Whether to flush the encoder after every chunk. */
+	private final boolean sync;
+
+	/**
+	 * Initialise a compression processor which does its work on the common
+	 * fork join pool.
+	 */
+	public CompressionProcessor() {
+		this(ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Initialise a compression processor which does its work on executor.
+	 * 
+	 * @param executor executor to do work on
+	 */
+	public CompressionProcessor(Executor executor) {
+		this(executor, false);
+	}
+
+	/**
+	 * Initialise a compression processor which does its work on executor.
+	 * 
+	 * @param executor executor to do work on
+	 * @param sync whether to sync after every chunk, so it can be decompressed
+	 *          straight away
+	 */
+	public CompressionProcessor(Executor executor, boolean sync) {
+		this(executor, new CompressionOptions(), sync);
+	}
+
+	/**
+	 * Initialise a compression processor which does its work on executor with
+	 * the given options.
+	 * 
+	 * @param executor executor to do work on
+	 * @param options settings to compress with
+	 * @param sync whether to sync after every chunk, so it can be decompressed
+	 *          straight away
+	 */
+	public CompressionProcessor(Executor executor, CompressionOptions options,
+	    boolean sync) {
+		super(executor);
+		this.encoder = null;
+		this.options = options;
+		this.sync = sync;
+	}
+
+	@Override
+	protected void process(byte[] data, int offset, int length,
+	    OutputStream out) throws IOException {
+		if (encoder == null) {
+			encoder = new BlockEncoder(out, options);
+		}
+		encoder.write(data, offset, length);
+		if (sync) {
+			encoder.flush();
+		}
+	}
+
+	@Override
+	protected void finish(OutputStream out) throws IOException {
+		if (encoder == null) {
+			encoder = new BlockEncoder(out, options);
+		}
+		encoder.finish();
+	}
+
+	@Override
+	protected void abort() {
+		if (encoder != null) {
+			encoder.abort();
+			// We're done with it, so let its buffers go.
+			encoder = null;
+		}
+	}
+}
@@ -0,0 +1,73 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Reactive streams processor which decompresses the chunks published to it,
+ * and publishes the decompressed data.
+ * 
+ * @author E
+ */
+public class DecompressionProcessor extends CodecProcessor {
+	/** Decoder, created once we know where it should write to. */
+	private BlockDecoder decoder;
+	/** Settings to decompress with. */
+	private final CompressionOptions options;
+
+	/**
+	 * Initialise a decompression processor which does its work on the common
+	 * fork join pool.
+	 */
+	public DecompressionProcessor() {
+		this(ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Initialise a decompression processor which does its work on executor.
+	 * 
+	 * @param executor executor to do work on
+	 */
+	public DecompressionProcessor(Executor executor) {
+		this(executor, new CompressionOptions());
+	}
+
+	/**
+	 * Initialise a decompression processor which does its work on executor
+	 * with the given options.
+	 * 
+	 * @param executor executor to do work on
+	 * @param options settings to decompress with
+	 */
+	public DecompressionProcessor(Executor executor, CompressionOptions options) {
+		super(executor);
+		this.decoder = null;
+		this.options = options;
+	}
+
+	@Override
+	protected void process(byte[] data, int offset, int length,
+	    OutputStream out) throws IOException {
+		if (decoder == null) {
+			decoder = new BlockDecoder(out, options);
+		}
+		decoder.write(data, offset, length);
+	}
+
+	@Override
+	protected void finish(OutputStream out) throws IOException {
+		if (decoder == null) {
+			decoder = new BlockDecoder(out, options);
+		}
+		decoder.finish();
+	}
+
+	@Override
+	protected void abort() {
+		if (decoder != null) {
+			decoder.abort();
+			// We're done with it, so let its buffers go.
+			decoder = null;
+		}
+	}
+}
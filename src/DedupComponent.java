@@ -0,0 +1,114 @@
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Component which finds chunks of the input that have been seen before, so
+ * they can be replaced by a reference to the earlier copy.
+ * 
+ * The input is split into chunks by a BoundaryComponent. Since the boundaries
+ * only depend on nearby bytes, a repeated stretch of data is split the same
+ * way wherever it turns up, even if it has been shifted by some insertion
+ * before it. Each chunk is identified by its SHA-256, which we trust not to
+ * collide, so we only need to remember the hashes and not the data.
+ * 
+ * @author E
+ */
+public class DedupComponent {
+	/** Chunks are never shorter than this, except at the end of the stream. */
+	public static final int MIN_CHUNK_SIZE = 16 * 1024;
+	/** Chunks are never longer than this. */
+	public static final int MAX_CHUNK_SIZE = 256 * 1024;
+	/** Number of bits of the hash clear at a boundary, about every 64 KB. */
+	private static final int BOUNDARY_BITS = 16;
+
+	/** Chunks further back than this can't be referred to. */
+	private final long window;
+	private final MessageDigest digest;
+	/** The most recent position each chunk we've seen started at. */
+	private final Map<ByteBuffer, Long> index;
+	/** Chunks in the order we saw them, so we know what falls out the window. */
+	private final Queue<Chunk> chunks;
+	/** Finds where each chunk ends. */
+	private final BoundaryComponent boundaries;
+	/** Number of bytes in all the chunks before the current one. */
+	private long position;
+
+	/**
+	 * Initialise a DedupComponent.
+	 * 
+	 * @param window maximum distance back a chunk may be found
+	 */
+	public DedupComponent(long window) {
+		this.window = window;
+		try {
+			this.digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to have SHA-256.
+			throw new IllegalStateException(e);
+		}
+		this.index = new HashMap<ByteBuffer, Long>();
+		this.chunks = new ArrayDeque<Chunk>();
+		this.boundaries = new BoundaryComponent(MIN_CHUNK_SIZE, MAX_CHUNK_SIZE,
+		    BOUNDARY_BITS);
+		this.position = 0;
+	}
+
+	/**
+	 * Looks for the end of the current chunk in the next length bytes of data
+	 * starting at offset.
+	 * 
+	 * @param data bytes to look through
+	 * @param offset index of the first byte in data
+	 * @param length number of bytes to look through
+	 * @return number of bytes of data up to and including the last byte of the
+	 *         current chunk, or -1 if the chunk carries on past them
+	 */
+	public int findBoundary(byte[] data, int offset, int length) {
+		return boundaries.findBoundary(data, offset, length);
+	}
+
+	/**
+	 * Finds where we last saw the chunk held in the first length bytes of data,
+	 * and remembers that we've now seen it here.
+	 * 
+	 * @param data the chunk
+	 * @param length number of bytes in the chunk
+	 * @return distance back from this chunk to the last copy of it, or 0 if
+	 *         there isn't one in the window
+	 */
+	public long findRepeat(byte[] data, int length) {
+		digest.update(data, 0, length);
+		ByteBuffer key = ByteBuffer.wrap(digest.digest());
+		Long previous = index.put(key, position);
+		chunks.add(new Chunk(key, position));
+		long distance = previous == null ? 0 : position - previous;
+		position += length;
+		boundaries.reset();
+
+		// Forget chunks which start too far back to refer to from the next one.
+		while (!chunks.isEmpty() && chunks.peek().position < position - window) {
+			Chunk old = chunks.remove();
+			Long latest = index.get(old.key);
+			if (latest != null && latest == old.position) {
+				index.remove(old.key);
+			}
+		}
+		return distance;
+	}
+
+	/** A chunk we've seen. */
+	private static class Chunk {
+		public ByteBuffer key;
+		public long position;
+
+		public Chunk(ByteBuffer key, long position) {
+			this.key = key;
+			this.position = position;
+		}
+	}
+}
@@ -0,0 +1,45 @@
+/**
+ * Filter which replaces each byte with its difference from the byte a fixed
+ * distance before it. Smoothly varying samples, such as 8 bit audio and
+ * sensor readings, become small numbers near zero which repeat far more than
+ * the samples did. The distance is the parameter, so interleaved channels or
+ * fixed width records can be differenced against their own kind.
+ * 
+ * @author E
+ */
+public class DeltaFilter implements Filter {
+	public static final int ID = 1;
+	/** Largest distance we allow. */
+	public static final int MAX_DISTANCE = 256;
+
+	@Override
+	public int id() {
+		return ID;
+	}
+
+	@Override
+	public boolean accepts(int parameter) {
+		return parameter >= 1 && parameter <= MAX_DISTANCE;
+	}
+
+	@Override
+	public int[] suggest(byte[] sample, int length) {
+		int period = FilterComponent.findPeriod(sample, length);
+		return period == 1 ? new int[] { 1 } : new int[] { 1, period };
+	}
+
+	@Override
+	public void encode(byte[] data, int length, int parameter) {
+		// Going backwards means the bytes we subtract haven't been changed yet.
+		for (int i = length - 1; i >= parameter; --i) {
+			data[i] -= data[i - parameter];
+		}
+	}
+
+	@Override
+	public void decode(byte[] data, int length, int parameter) {
+		for (int i = parameter; i < length; ++i) {
+			data[i] += data[i - parameter];
+		}
+	}
+}
@@ -0,0 +1,340 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * FM-index of a BWT block, which finds and reads parts of the block straight
+ * from its BWT, without undoing the whole BWT. We only need the BWT itself,
+ * which the decoder has once it has undone the Huffman coding and MTF, and a
+ * sample of the suffix array, which the encoder stores in a SEARCH_INDEX
+ * header alongside the block.
+ * 
+ * Occurrences of a pattern are counted by backward search: the rows of the
+ * sorted rotations starting with longer and longer suffixes of the pattern
+ * are always a range, and each step works out the next range from the number
+ * of times a symbol occurs in the BWT before each end. Rather than storing
+ * rank checkpoints, we group the positions of each symbol in the BWT, which
+ * takes one linear pass, and count with a binary search. Each occurrence is
+ * located by stepping back through the block until we reach a sampled
+ * position, which takes at most SAMPLE_RATE steps.
+ * 
+ * The BWT is of the zero compensated block, so patterns are zero compensated
+ * the same way before searching. A 246 is always the first half of an escape,
+ * so the only false matches are patterns starting with a 101 or 102 matching
+ * the second half of one, which we tell apart by the 246 before them.
+ * 
+ * @author E
+ */
+public class FMIndex {
+	/** Every this many symbols of a block, we store which row it starts. */
+	public static final int SAMPLE_RATE = 1024;
+
+	/** The BWT, including EOS. */
+	private final byte[] bwt;
+	/** Number of symbols in the BWT. */
+	private final int size;
+	/** Number of symbols in the BWT smaller than each value. */
+	private final int[] before;
+	/**
+	 * Positions in the BWT of each symbol in turn, in order, so the positions
+	 * of c are from before[c] to before[c + 1].
+	 */
+	private final int[] positions;
+	/** Number of symbols between samples. */
+	private final int rate;
+	/** rows[k] is the row starting at symbol k * rate. */
+	private final int[] rows;
+	/** escapes[k] is the number of 246s before symbol k * rate. */
+	private final int[] escapes;
+	/** Rows which are sampled. */
+	private final BitSet sampled;
+	/** Each sampled row in the top half and its sample in the bottom, sorted. */
+	private final long[] samples;
+
+	/**
+	 * Builds the index of a block.
+	 * 
+	 * @param data BWT of the block, with the MTF undone
+	 * @param size number of symbols in data, including EOS
+	 * @param index contents of the block's SEARCH_INDEX header
+	 * @throws IOException if the index is corrupt
+	 */
+	public FMIndex(int[] data, int size, byte[] index) throws IOException {
+		this.bwt = new byte[size];
+		this.size = size;
+		this.before = new int[257];
+		for (int i = 0; i < size; ++i) {
+			bwt[i] = (byte) data[i];
+			before[data[i] + 1]++;
+		}
+		for (int c = 0; c < 256; ++c) {
+			before[c + 1] += before[c];
+		}
+		this.positions = new int[size];
+		int[] next = Arrays.copyOf(before, 256);
+		for (int i = 0; i < size; ++i) {
+			positions[next[data[i]]++] = i;
+		}
+
+		long[] fields = BlockHeader.readNumbers(index, 0, index.length, 1);
+		if (fields == null || fields[0] < 1 || fields[0] > Integer.MAX_VALUE) {
+			throw new IOException("Corrupt search index");
+		}
+		this.rate = (int) fields[0];
+		int count = (size - 1) / rate + 1;
+		fields = BlockHeader.readNumbers(index, 0, index.length, 1 + 2 * count);
+		if (fields == null) {
+			throw new IOException("Corrupt search index");
+		}
+		this.rows = new int[count];
+		this.escapes = new int[count];
+		this.sampled = new BitSet(size);
+		this.samples = new long[count];
+		long total = 0;
+		for (int k = 0; k < count; ++k) {
+			total += fields[2 + 2 * k];
+			if (fields[1 + 2 * k] >= size || total > (long) k * rate) {
+				throw new IOException("Corrupt search index");
+			}
+			rows[k] = (int) fields[1 + 2 * k];
+			escapes[k] = (int) total;
+			sampled.set(rows[k]);
+			samples[k] = (long) rows[k] << 32 | k;
+		}
+		Arrays.sort(samples);
+	}
+
+	/**
+	 * Works out the samples for the index of a block. The encoder stores what
+	 * this returns in the block's SEARCH_INDEX header.
+	 * 
+	 * @param data the zero compensated block, including EOS
+	 * @param size number of symbols in data
+	 * @param rows rows[k] is the row starting at symbol k * SAMPLE_RATE, from
+	 *          BWTComponent
+	 * @return contents of the SEARCH_INDEX header
+	 */
+	public static byte[] sample(int[] data, int size, int[] rows) {
+		ByteArrayOutputStream index = new ByteArrayOutputStream();
+		try {
+			BlockHeader.writeNumber(SAMPLE_RATE, index);
+			int i = 0;
+			for (int k = 0; k * SAMPLE_RATE < size; ++k) {
+				// Each sample holds the number of escapes since the last.
+				int escapes = 0;
+				for (; i < k * SAMPLE_RATE; ++i) {
+					escapes += data[i] == 246 ? 1 : 0;
+				}
+				BlockHeader.writeNumber(rows[k], index);
+				BlockHeader.writeNumber(escapes, index);
+			}
+		} catch (IOException e) {
+			// ByteArrayOutputStream doesn't throw.
+			throw new IllegalStateException(e);
+		}
+		return index.toByteArray();
+	}
+
+	/**
+	 * @return number of bytes the block decompresses to
+	 */
+	public long length() {
+		return size - 1 - count(246, size);
+	}
+
+	/**
+	 * Counts the occurrences of a pattern in the block.
+	 * 
+	 * @param pattern bytes to look for, at least one
+	 * @return number of times pattern occurs
+	 */
+	public int count(byte[] pattern) {
+		int[] range = find(pattern);
+		return range[1] - range[0] - falseMatches(pattern, range);
+	}
+
+	/**
+	 * Finds where a pattern occurs in the block.
+	 * 
+	 * @param pattern bytes to look for, at least one
+	 * @return offsets in the block of each occurrence, in order
+	 * @throws IOException if the index is corrupt
+	 */
+	public long[] locate(byte[] pattern) throws IOException {
+		int[] range = find(pattern);
+		boolean escaped = startsEscaped(pattern);
+		long[] offsets = new long[range[1] - range[0]];
+		int n = 0;
+		for (int row = range[0]; row < range[1]; ++row) {
+			if (!escaped || bwt[row] != (byte) 246) {
+				offsets[n++] = offset(row);
+			}
+		}
+		offsets = Arrays.copyOf(offsets, n);
+		Arrays.sort(offsets);
+		return offsets;
+	}
+
+	/**
+	 * Reads part of the block, stepping back from the nearest sample after
+	 * it.
+	 * 
+	 * @param offset offset in the block of the first byte to read
+	 * @param length number of bytes to read
+	 * @return the bytes
+	 * @throws IOException if the index is corrupt
+	 */
+	public byte[] extract(long offset, int length) throws IOException {
+		long end = offset + length;
+		if (offset < 0 || length < 0 || end > length()) {
+			throw new IndexOutOfBoundsException();
+		}
+		// The last sample at or before the start, and the first at or after the
+		// end, or EOS, whose row is always first.
+		int first = lastSample(offset);
+		int last = lastSample(end - 1) + 1;
+		if (bytesBefore(last - 1) >= end) {
+			last--;
+		}
+		int from = first * rate;
+		int to = last < rows.length ? last * rate : size - 1;
+		int row = last < rows.length ? rows[last] : 0;
+
+		// Step back from the end, then one more if we started half way through
+		// an escape.
+		int[] symbols = new int[to - from + 1];
+		for (int i = to - from - 1; i >= 0; --i) {
+			symbols[i + 1] = bwt[row] & 0xFF;
+			row = step(row);
+		}
+		int start = 1;
+		if (from > 0 && bwt[row] == (byte) 246) {
+			symbols[0] = 246;
+			start = 0;
+		}
+		byte[] bytes = new byte[symbols.length];
+		new ZeroComponent().inverseTransform(Arrays.copyOfRange(symbols, start,
+		    symbols.length), symbols.length - start, bytes);
+		int skip = (int) (offset - bytesBefore(first));
+		return Arrays.copyOfRange(bytes, skip, skip + length);
+	}
+
+	/**
+	 * Backward search.
+	 * 
+	 * @param pattern bytes to look for
+	 * @return the start and end of the range of rows starting with pattern
+	 */
+	private int[] find(byte[] pattern) {
+		int[] symbols = new int[2 * pattern.length];
+		int n = new ZeroComponent().transform(pattern, pattern.length, symbols);
+		int start = 0;
+		int end = size;
+		for (int i = n - 1; i >= 0 && start < end; --i) {
+			int c = symbols[i];
+			start = before[c] + count(c, start);
+			end = before[c] + count(c, end);
+		}
+		return new int[] { start, Math.max(start, end) };
+	}
+
+	/**
+	 * @param pattern pattern which was searched for
+	 * @param range rows which start with it
+	 * @return number of rows in range which are really half way through an
+	 *         escape
+	 */
+	private int falseMatches(byte[] pattern, int[] range) {
+		if (!startsEscaped(pattern)) {
+			return 0;
+		}
+		return count(246, range[1]) - count(246, range[0]);
+	}
+
+	/**
+	 * @param pattern pattern to search for
+	 * @return whether its zero compensated form starts with a symbol which can
+	 *         also be the second half of an escape
+	 */
+	private static boolean startsEscaped(byte[] pattern) {
+		return pattern.length > 0 && (pattern[0] == 101 || pattern[0] == 102);
+	}
+
+	/**
+	 * @param c symbol to count
+	 * @param end row to count up to
+	 * @return number of times c occurs in the BWT before end
+	 */
+	private int count(int c, int end) {
+		int low = before[c];
+		int high = before[c + 1];
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (positions[mid] < end) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low - before[c];
+	}
+
+	/**
+	 * @param row a row
+	 * @return the row starting one symbol earlier in the block
+	 */
+	private int step(int row) {
+		int c = bwt[row] & 0xFF;
+		return before[c] + count(c, row);
+	}
+
+	/**
+	 * Works out the offset of the byte a row starts at, stepping back to the
+	 * nearest sample.
+	 * 
+	 * @param row row to find
+	 * @return offset in the block
+	 * @throws IOException if there's no sample where there should be
+	 */
+	private long offset(int row) throws IOException {
+		int steps = 0;
+		int escaped = 0;
+		while (!sampled.get(row)) {
+			if (steps++ == rate) {
+				throw new IOException("Corrupt search index");
+			}
+			escaped += bwt[row] == (byte) 246 ? 1 : 0;
+			row = step(row);
+		}
+		int i = Arrays.binarySearch(samples, (long) row << 32);
+		int k = (int) samples[i < 0 ? -i - 1 : i];
+		return (long) k * rate + steps - escapes[k] - escaped;
+	}
+
+	/**
+	 * @param offset offset of a byte in the block
+	 * @return the last sample with no more than offset bytes before it
+	 */
+	private int lastSample(long offset) {
+		int low = 0;
+		int high = rows.length - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (bytesBefore(mid) <= offset) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * @param k a sample
+	 * @return number of whole bytes before the sampled symbol
+	 */
+	private long bytesBefore(int k) {
+		return (long) k * rate - escapes[k];
+	}
+}
@@ -0,0 +1,49 @@
+/**
+ * Reversible transform of the bytes of a block, applied before zero
+ * compensation and the BWT to make some kinds of data easier to compress.
+ * Filters are registered with FilterComponent under an id, which is what's
+ * written to the stream, so an id must never be reused for a different
+ * filter.
+ * 
+ * @author E
+ */
+public interface Filter {
+	/**
+	 * @return id the filter is recorded under in the stream
+	 */
+	int id();
+
+	/**
+	 * @param parameter parameter read from the stream
+	 * @return whether the filter can be undone with parameter
+	 */
+	boolean accepts(int parameter);
+
+	/**
+	 * Suggests parameters worth trying on a sample of a block, or none if the
+	 * sample doesn't look like data the filter is for.
+	 * 
+	 * @param sample bytes from the start of the block
+	 * @param length number of bytes in sample
+	 * @return parameters to try
+	 */
+	int[] suggest(byte[] sample, int length);
+
+	/**
+	 * Transforms the first length bytes of data in place.
+	 * 
+	 * @param data bytes to transform
+	 * @param length number of bytes to transform
+	 * @param parameter setting chosen for the block, such as a distance
+	 */
+	void encode(byte[] data, int length, int parameter);
+
+	/**
+	 * Undoes encode on the first length bytes of data in place.
+	 * 
+	 * @param data bytes to transform back
+	 * @param length number of bytes to transform back
+	 * @param parameter setting the block was encoded with
+	 */
+	void decode(byte[] data, int length, int parameter);
+}
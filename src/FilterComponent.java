@@ -0,0 +1,267 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Component which keeps the registry of filters, and chooses which to apply to
+ * each block. Choosing is done by trial: each filter suggests some parameters
+ * for a sample from the start of the block, and we estimate how well the
+ * sample compresses after each. The estimate is the cost of coding the sample
+ * with an adaptive order 1 model, which follows how well BWT does on it far
+ * better than plain entropy would, since BWT is all about context.
+ * 
+ * @author E
+ */
+public class FilterComponent {
+	/** Number of bytes from the start of the block we try the filters on. */
+	private static final int SAMPLE_SIZE = 64 * 1024;
+	/** Blocks shorter than this are never filtered. */
+	private static final int MIN_SAMPLE_SIZE = 4 * 1024;
+	/**
+	 * A filter must bring the estimated size down to this fraction of the
+	 * unfiltered size to be used, since the estimate is only rough.
+	 */
+	private static final double THRESHOLD = 0.95;
+	/** Longest period findPeriod looks for. */
+	private static final int MAX_PERIOD = 16;
+
+	/** Id of the only filter to try, or 0 to try all of them. */
+	private final int only;
+	/**
+	 * Fraction of the unfiltered size a filter must bring the estimate down
+	 * to.
+	 */
+	private final double threshold;
+
+	private final ZeroComponent compensator;
+	private final BWTComponent bwt;
+	private final MTFComponent mtf;
+
+	/** Every filter we know, by id. */
+	private static final Map<Integer, Filter> REGISTRY =
+	    new ConcurrentHashMap<Integer, Filter>();
+
+	static {
+		register(new DeltaFilter());
+		register(new WordDeltaFilter());
+		register(new StrideFilter());
+		register(new X86Filter());
+		register(new RecordFilter());
+	}
+
+	/**
+	 * Initialise a component which tries every registered filter.
+	 */
+	public FilterComponent() {
+		this.only = 0;
+		this.threshold = THRESHOLD;
+		this.compensator = new ZeroComponent();
+		this.bwt = new BWTComponent();
+		this.mtf = new MTFComponent();
+	}
+
+	/**
+	 * Initialise a component which only tries one filter, for data we already
+	 * know it suits. It's used whenever it looks like it would help at all.
+	 * 
+	 * @param id id of the filter
+	 * @throws IllegalArgumentException if there isn't a filter with that id
+	 */
+	public FilterComponent(int id) throws IllegalArgumentException {
+		if (get(id) == null) {
+			throw new IllegalArgumentException("Invalid filter id " + id);
+		}
+		this.only = id;
+		this.threshold = 1;
+		this.compensator = new ZeroComponent();
+		this.bwt = new BWTComponent();
+		this.mtf = new MTFComponent();
+	}
+
+	/**
+	 * Adds a filter to the registry, so blocks can be encoded and decoded with
+	 * it. Filters are tried in order of id.
+	 * 
+	 * @param filter filter to add
+	 * @throws IllegalArgumentException if there's already a filter with its id
+	 */
+	public static void register(Filter filter) throws IllegalArgumentException {
+		if (filter.id() < 1 || REGISTRY.putIfAbsent(filter.id(), filter) != null) {
+			throw new IllegalArgumentException("Invalid filter id " + filter.id());
+		}
+	}
+
+	/**
+	 * @param id id of a filter
+	 * @return the filter, or null if there isn't one with that id
+	 */
+	public static Filter get(int id) {
+		return REGISTRY.get(id);
+	}
+
+	/**
+	 * Chooses the filter to apply to the first length bytes of data, if any.
+	 * 
+	 * @param data the block
+	 * @param length number of bytes in the block
+	 * @return FILTER header for the filter to use, or null to use none
+	 */
+	public BlockHeader choose(byte[] data, int length) {
+		if (length < MIN_SAMPLE_SIZE) {
+			return null;
+		}
+		int n = Math.min(length, SAMPLE_SIZE);
+		byte[] sample = Arrays.copyOf(data, n);
+		byte[] trial = new byte[n];
+		double unfiltered = cost(sample, n);
+		double best = threshold * unfiltered;
+		BlockHeader choice = null;
+		// The filter which came closest without making the threshold.
+		double nearest = unfiltered;
+		BlockHeader near = null;
+
+		List<Integer> ids;
+		if (only != 0) {
+			ids = Collections.singletonList(only);
+		} else {
+			ids = new ArrayList<Integer>(REGISTRY.keySet());
+			ids.sort(null);
+		}
+		for (int id : ids) {
+			Filter filter = REGISTRY.get(id);
+			for (int parameter : filter.suggest(sample, n)) {
+				System.arraycopy(sample, 0, trial, 0, n);
+				filter.encode(trial, n, parameter);
+				double cost = cost(trial, n);
+				if (cost < best) {
+					best = cost;
+					choice = header(id, parameter);
+				} else if (choice == null && cost < nearest) {
+					nearest = cost;
+					near = header(id, parameter);
+				}
+			}
+		}
+
+		// The order 1 estimate misses gains which only show up in longer
+		// contexts, such as calls to the same address in machine code, so a
+		// filter which helped a little gets a second look with the trial, which
+		// is close enough to trust with any gain, as when there's only one.
+		if (choice == null && near != null && only == 0) {
+			System.arraycopy(sample, 0, trial, 0, n);
+			get(near.filter).encode(trial, n, near.parameter);
+			if (trialCost(trial, n) < trialCost(sample, n)) {
+				choice = near;
+			}
+		}
+		return choice;
+	}
+
+	/**
+	 * @param id id of a filter
+	 * @param parameter parameter for the filter
+	 * @return FILTER header for the filter
+	 */
+	private static BlockHeader header(int id, int parameter) {
+		BlockHeader header = new BlockHeader(BlockHeader.FILTER, 0);
+		header.filter = id;
+		header.parameter = parameter;
+		return header;
+	}
+
+	/**
+	 * Finds the distance back at which bytes most often repeat, which is
+	 * usually the width of the records or samples the data is made of.
+	 * 
+	 * @param data bytes to look through
+	 * @param length number of bytes in data
+	 * @return the distance, from 1 to MAX_PERIOD
+	 */
+	public static int findPeriod(byte[] data, int length) {
+		int best = 1;
+		int bestMatches = -1;
+		for (int period = 1; period <= MAX_PERIOD; ++period) {
+			int matches = 0;
+			for (int i = period; i < length; ++i) {
+				if (data[i] == data[i - period]) {
+					matches++;
+				}
+			}
+			if (matches > bestMatches) {
+				best = period;
+				bestMatches = matches;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @param data bytes to code
+	 * @param length number of bytes in data
+	 * @return estimated cost in bits of the first length bytes of data
+	 */
+	private double cost(byte[] data, int length) {
+		// With only one filter to try we can afford the slower estimate.
+		return only != 0 ? trialCost(data, length) : estimateCost(data, length);
+	}
+
+	/**
+	 * Estimates the number of bits it would take to compress the first length
+	 * bytes of data, by running them through the zero compensation, BWT and MTF
+	 * and taking the entropy of what comes out. This is much slower than
+	 * estimateCost, but much closer for data such as columns of text, where
+	 * the contexts the BWT sorts on run far past the byte before.
+	 * 
+	 * @param data bytes to compress
+	 * @param length number of bytes in data
+	 * @return estimated cost in bits
+	 */
+	private double trialCost(byte[] data, int length) {
+		int[] symbols = new int[2 * length + 1];
+		int n = compensator.transform(data, length, symbols);
+		symbols[n++] = 0;
+		int[] sorted = bwt.transform(symbols, n, new int[n]);
+		mtf.reset();
+		mtf.transform(sorted, n, sorted);
+		int[] counts = new int[256];
+		for (int i = 0; i < n; ++i) {
+			counts[sorted[i]]++;
+		}
+		double cost = 0;
+		for (int count : counts) {
+			if (count > 0) {
+				cost += count * Math.log((double) n / count);
+			}
+		}
+		return cost / Math.log(2);
+	}
+
+	/**
+	 * Estimates the number of bits it would take to code the first length bytes
+	 * of data with an adaptive order 1 model. Each symbol costs the log of its
+	 * probability given the byte before, going by the counts so far with half a
+	 * count added to every symbol.
+	 * 
+	 * @param data bytes to code
+	 * @param length number of bytes in data
+	 * @return estimated cost in bits
+	 */
+	private static double estimateCost(byte[] data, int length) {
+		int[] counts = new int[256 * 256];
+		int[] totals = new int[256];
+		double cost = 0;
+		int prev = 0;
+		for (int i = 0; i < length; ++i) {
+			int c = data[i] & 0xFF;
+			int context = prev << 8;
+			cost += Math.log((totals[prev] + 128.0) / (counts[context | c] + 0.5));
+			counts[context | c]++;
+			totals[prev]++;
+			prev = c;
+		}
+		return cost / Math.log(2);
+	}
+}
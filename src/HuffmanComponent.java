@@ -1,20 +1,34 @@
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
- * Huffman component of NoGGNoSkill. Compresses in 32 KB blocks, using a 2 pass
- * Huffman. The tree is stored efficiently in the file by using a canonical
+ * Huffman component of NoGGNoSkill. Compresses in blocks, using a 2 pass
+ * Huffman. The blocks are sized to follow changes in the statistics of the
+ * data. The tree is stored efficiently in the file by using a canonical
  * Huffman representation and then compressing that with Huffman. The format
  * ouputted is of the form: <9 bits of header info><compressed header describing
  * the Huffman tree><compressed data using the described Huffman tree,
  * terminated by an end of block symbol>. The last block is terminated by an EOS
  * symbol instead of a EOB symbol.
  * 
+ * The header info is the longest code length plus one in the low 6 bits, and
+ * the base 2 log of the number of bitstreams the data is split across in the
+ * top 3. With more than one, symbol i goes in bitstream i mod the number of
+ * them, and they are preceded by a jump table: <5 bit width><bit length of
+ * each bitstream, in width bits>. The decoder can then decode a symbol from
+ * each bitstream at a time, without each having to wait on where the last one
+ * ended.
+ * 
  * @author E
  */
 public class HuffmanComponent {
@@ -26,10 +40,35 @@ public class HuffmanComponent {
 	/**
 	 * We divide our input into blocks for which we generate a Huffman table. This
 	 * is used to exploit local trends in data. Our decoder can handle arbitrarily
-	 * sized blocks, however. The optimum value was found through empirical
-	 * testing.
+	 * sized blocks, so the blocks are made up of however many segments of this
+	 * size have similar enough statistics to share a table.
+	 */
+	private static final int SEGMENT_SIZE = 4 * 1024;
+	/**
+	 * Blocks are never larger than this, so there are enough of them to encode
+	 * in parallel. The header is small enough next to a block this size that
+	 * we lose almost nothing by it.
+	 */
+	private static final int MAX_BLOCK_SIZE = 256 * 1024;
+	/**
+	 * Rough number of bits the header takes for each symbol which does and
+	 * doesn't occur in a block, from HEADER_INITIAL. Only used while choosing
+	 * block boundaries, before we know the code lengths.
+	 */
+	private static final double HEADER_BITS_PRESENT = 4.5;
+	private static final double HEADER_BITS_ABSENT = 1.3;
+	/** Most bitstreams a block may be split across. */
+	public static final int MAX_STREAMS = 16;
+	/**
+	 * Longest code length we accept in blocks split across bitstreams, so the
+	 * decoder can always read a whole code from one long.
 	 */
-	private static final int BLOCK_SIZE = 32 * 1024;
+	private static final int MAX_CODE_LENGTH = 32;
+	/**
+	 * Codes up to this many bits are decoded from blocks split across
+	 * bitstreams with a single table lookup.
+	 */
+	private static final int TABLE_BITS = 11;
 	/**
 	 * Pregenerated frequency table from test data for the typical distribution of
 	 * symbols in the header. Used to optimise static Huffman compression of the
@@ -56,18 +95,71 @@ public class HuffmanComponent {
 	private int headerLoc;
 	/** A bit buffer for all data coming into the decoder. */
 	private final DataBlock decoderBuf;
-	/** A bit buffer for all data coming into the encoder. */
+	/**
+	 * Bits left over from the encoder's last block which didn't make a full
+	 * byte.
+	 */
 	private final DataBlock encoderBuf;
 	/**
 	 * Stores the current canonical representations of symbols. This data comes
 	 * from the header.
 	 */
 	private List<CanonicalPair> decoderCanonical;
+	/** Number of bitstreams the block we're decoding is split across. */
+	private int decoderStreams;
+	/**
+	 * Width of the entries in the jump table of the block we're decoding, or -1
+	 * if we haven't read it yet.
+	 */
+	private int jumpWidth;
+	/** Bit length of each bitstream of the block we're decoding. */
+	private long[] streamLengths;
+	/** Bits of the bitstreams of the block we're decoding, as they come in. */
+	private BitBuffer streamBits;
+	/** Number of bits of the bitstreams still to come. */
+	private long streamBitsLeft;
+
+	/**
+	 * Number of threads to encode blocks with. If this is more than 1, the
+	 * blocks are encoded in parallel on the common fork join pool into separate
+	 * bit buffers, which are then joined together.
+	 */
+	private final int threads;
+	/** Number of bitstreams to split each block's symbols across. */
+	private final int streams;
 
 	/**
 	 * Initialise the Huffman component.
 	 */
 	public HuffmanComponent() {
+		this(1);
+	}
+
+	/**
+	 * Initialise the Huffman component, encoding with up to the given number of
+	 * threads.
+	 * 
+	 * @param threads number of threads to encode with
+	 */
+	public HuffmanComponent(int threads) {
+		this(threads, 1);
+	}
+
+	/**
+	 * Initialise the Huffman component, encoding with up to the given number of
+	 * threads, and splitting each block's symbols across the given number of
+	 * bitstreams.
+	 * 
+	 * @param threads number of threads to encode with
+	 * @param streams number of bitstreams, a power of 2 up to MAX_STREAMS
+	 * @throws IllegalArgumentException if streams isn't valid
+	 */
+	public HuffmanComponent(int threads, int streams)
+	    throws IllegalArgumentException {
+		if (streams < 1 || streams > MAX_STREAMS || Integer.bitCount(streams) != 1) {
+			throw new IllegalArgumentException("Invalid number of streams "
+			    + streams);
+		}
 		this.decoderState = DecoderState.READING_HEADER_INFO;
 		this.decoder = null;
 		this.headerDecoder = null;
@@ -75,6 +167,13 @@ public class HuffmanComponent {
 		this.decoderBuf = new DataBlock();
 		this.encoderBuf = new DataBlock();
 		this.decoderCanonical = null;
+		this.decoderStreams = 1;
+		this.jumpWidth = -1;
+		this.streamLengths = null;
+		this.streamBits = null;
+		this.streamBitsLeft = 0;
+		this.threads = threads;
+		this.streams = streams;
 	}
 
 	/**
@@ -90,35 +189,235 @@ public class HuffmanComponent {
 	 */
 	public void compressAndWrite(int[] data, int length, boolean fin,
 	    OutputStream out) throws IOException {
-		int[] subArray = new int[BLOCK_SIZE];
-		int numBlocks = length / BLOCK_SIZE + (length % BLOCK_SIZE > 0 ? 1 : 0);
-		for (int i = 0; i < numBlocks; ++i) {
-			int subArrayLength = Math.min(BLOCK_SIZE, length - i * BLOCK_SIZE);
-			System.arraycopy(data, i * BLOCK_SIZE, subArray, 0, subArrayLength);
-			// We only want to write EOS if it's the last block.
-			compressAndWriteInternal(subArray, subArrayLength, fin
-			    && (i == numBlocks - 1), out);
+		int[] bounds = chooseBlocks(data, length);
+		int numBlocks = bounds.length - 1;
+		if (threads <= 1 || numBlocks <= 1) {
+			for (int i = 0; i < numBlocks; ++i) {
+				// We only want to write EOS if it's the last block.
+				compressInternal(data, bounds[i], bounds[i + 1] - bounds[i],
+				    fin && (i == numBlocks - 1)).writeTo(encoderBuf, out);
+			}
+		} else {
+			BitBuffer[] encoded = compressParallel(data, bounds, fin);
+			// The blocks aren't byte aligned, so each one has to be shifted to
+			// follow on from the bits left over from the one before.
+			for (int i = 0; i < numBlocks; ++i) {
+				encoded[i].writeTo(encoderBuf, out);
+				encoded[i] = null;
+			}
+		}
+		// Make sure to flush any left over bits if we won't be called again.
+		if (fin) {
+			encoderBuf.flush(out, true);
 		}
 	}
 
+	/**
+	 * Chooses where to divide the first length symbols of data into blocks. We
+	 * go through the data a segment at a time, and start a new block whenever
+	 * coding the segment on its own, header and all, looks cheaper than adding
+	 * it to the current block. So blocks grow while the statistics stay the
+	 * same, and end where they change.
+	 * 
+	 * @param data symbols to divide up
+	 * @param length number of symbols from data to divide up
+	 * @return the offset of the start of each block, followed by length
+	 */
+	private static int[] chooseBlocks(int[] data, int length) {
+		List<Integer> bounds = new ArrayList<Integer>();
+		bounds.add(0);
+		int[] blockFreq = new int[ALPHABET_SIZE];
+		int[] segmentFreq = new int[ALPHABET_SIZE];
+		int blockStart = 0;
+		double blockSize = 0;
+		for (int start = 0; start < length; start += SEGMENT_SIZE) {
+			int end = Math.min(length, start + SEGMENT_SIZE);
+			Arrays.fill(segmentFreq, 0);
+			Kernels.get().histogram(data, start, end, segmentFreq);
+			for (int i = 0; i < ALPHABET_SIZE; ++i) {
+				blockFreq[i] += segmentFreq[i];
+			}
+			if (start > blockStart) {
+				double mergedSize = estimateSize(blockFreq);
+				if (end - blockStart > MAX_BLOCK_SIZE
+				    || blockSize + estimateSize(segmentFreq) < mergedSize) {
+					bounds.add(start);
+					blockStart = start;
+					System.arraycopy(segmentFreq, 0, blockFreq, 0, ALPHABET_SIZE);
+					blockSize = estimateSize(blockFreq);
+				} else {
+					blockSize = mergedSize;
+				}
+			} else {
+				blockSize = estimateSize(blockFreq);
+			}
+		}
+		bounds.add(length);
+
+		int[] result = new int[bounds.size()];
+		for (int i = 0; i < result.length; ++i) {
+			result[i] = bounds.get(i);
+		}
+		return result;
+	}
+
+	/**
+	 * Estimates the number of bits compressAndWrite would take for the first
+	 * length symbols of data, dividing them into blocks the same way and
+	 * building each block's tree, but without coding them. The headers are
+	 * counted exactly from the code lengths, but the jump table of a block
+	 * split across bitstreams isn't counted.
+	 * 
+	 * @param data symbols to estimate
+	 * @param length number of symbols from data to estimate
+	 * @return estimated size in bits
+	 */
+	public static double estimateSize(int[] data, int length) {
+		int[] bounds = chooseBlocks(data, length);
+		int[] freq = new int[ALPHABET_SIZE];
+		double bits = 0;
+		for (int i = 0; i + 1 < bounds.length; ++i) {
+			Arrays.fill(freq, 0);
+			Kernels.get().histogram(data, bounds[i], bounds[i + 1], freq);
+			// Each block ends with an EOB or EOS.
+			freq[ALPHABET_SIZE - 2]++;
+			DataBlock[] rep = HuffmanNode.generateRep(
+			    HuffmanNode.generateTree(freq), ALPHABET_SIZE);
+			bits += headerSize(rep);
+			for (int j = 0; j < ALPHABET_SIZE; ++j) {
+				if (rep[j] != null) {
+					bits += (long) freq[j] * rep[j].length;
+				}
+			}
+		}
+		return bits;
+	}
+
+	/**
+	 * Works out the number of bits compressInternal takes to write the header
+	 * of a block, including the 9 bits before the code lengths.
+	 * 
+	 * @param rep map from symbol to representation for the block
+	 * @return size of the header in bits
+	 */
+	private static int headerSize(DataBlock[] rep) {
+		int tableSize = 0;
+		for (int i = 0; i < rep.length; ++i) {
+			if (rep[i] != null) {
+				tableSize = Math.max(tableSize, rep[i].length + 1);
+			}
+		}
+		DataBlock[] headerRep = HuffmanNode.generateRep(HuffmanNode
+		    .generateTree(headerFreq(tableSize)), tableSize);
+		int bits = 9;
+		for (int i = 0; i < rep.length; ++i) {
+			bits += headerRep[rep[i] == null ? 0 : rep[i].length].length;
+		}
+		return bits;
+	}
+
+	/**
+	 * Frequencies the static Huffman code for a header's code lengths is built
+	 * from, which the encoder and decoder have to agree on.
+	 * 
+	 * @param tableSize the longest code length in the block, plus one
+	 * @return frequency of each code length
+	 */
+	private static int[] headerFreq(int tableSize) {
+		int[] headerFreq = new int[tableSize];
+		Arrays.fill(headerFreq, 1);
+		System.arraycopy(HEADER_INITIAL, 0, headerFreq, 0,
+		    Math.min(headerFreq.length, HEADER_INITIAL.length));
+		return headerFreq;
+	}
+
+	/**
+	 * Estimates the number of bits a block with the given symbol frequencies
+	 * will take, including its header. The data is assumed to take its
+	 * entropy, which Huffman coding gets close to.
+	 * 
+	 * @param freq number of times each symbol occurs in the block
+	 * @return estimated size of the block in bits
+	 */
+	private static double estimateSize(int[] freq) {
+		long total = 0;
+		for (int i = 0; i < freq.length; ++i) {
+			total += freq[i];
+		}
+		double bits = 9;
+		for (int i = 0; i < freq.length; ++i) {
+			if (freq[i] > 0) {
+				bits += freq[i] * Math.log((double) total / freq[i]) / Math.log(2)
+				    + HEADER_BITS_PRESENT;
+			} else {
+				bits += HEADER_BITS_ABSENT;
+			}
+		}
+		return bits;
+	}
+
+	/**
+	 * Compresses the blocks of data on the common fork join pool. Each task
+	 * takes a contiguous run of blocks.
+	 * 
+	 * @param data bytes to compress
+	 * @param bounds the offset of the start of each block, followed by the
+	 *          number of bytes from data to compress
+	 * @param fin if true, terminate with EOS rather than EOB
+	 * @return compressed blocks, in order
+	 * @throws IOException
+	 */
+	private BitBuffer[] compressParallel(final int[] data, final int[] bounds,
+	    final boolean fin) throws IOException {
+		final int numBlocks = bounds.length - 1;
+		final BitBuffer[] encoded = new BitBuffer[numBlocks];
+		int numTasks = Math.min(threads, numBlocks);
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(numTasks);
+		for (int t = 0; t < numTasks; ++t) {
+			final int first = (int) ((long) numBlocks * t / numTasks);
+			final int last = (int) ((long) numBlocks * (t + 1) / numTasks);
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					for (int i = first; i < last; ++i) {
+						encoded[i] = compressInternal(data, bounds[i], bounds[i + 1]
+						    - bounds[i], fin && (i == numBlocks - 1));
+					}
+					return null;
+				}
+			});
+		}
+		try {
+			for (Future<Void> f : ForkJoinPool.commonPool().invokeAll(tasks)) {
+				f.get();
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+		return encoded;
+	}
+
 	/**
 	 * Does not perform any subdivision into blocks. Takes the data given and
-	 * compresses length bytes and writes to out. If fin is true, writes EOS
-	 * instead of EOB.
+	 * compresses length bytes starting at offset into a bit buffer. If fin is
+	 * true, writes EOS instead of EOB.
 	 * 
 	 * @param data bytes to compress
+	 * @param offset index of the first byte to compress
 	 * @param length number of bytes from data to compress
 	 * @param fin if true, terminate with EOS rather than EOB
-	 * @param out output stream to write to
-	 * @throws IOException
+	 * @return compressed bits
 	 */
-	public void compressAndWriteInternal(int[] data, int length, boolean fin,
-	    OutputStream out) throws IOException {
+	public BitBuffer compressInternal(int[] data, int offset, int length,
+	    boolean fin) {
 		// Perform our first pass on the data to get the frequencies.
 		int[] blockFreq = new int[ALPHABET_SIZE];
-		for (int i = 0; i < length; ++i) {
-			blockFreq[data[i]]++;
-		}
+		Kernels.get().histogram(data, offset, offset + length, blockFreq);
 		// If we're at the last block, make sure we have an EOS symbol in our
 		// Huffman tree.
 		if (fin) {
@@ -140,19 +439,16 @@ public class HuffmanComponent {
 		}
 
 		DataBlock[] canonicalRep = generateCanonicalRep(canonical);
+		// The output is usually a bit smaller than the input.
+		BitBuffer bits = new BitBuffer(length);
 		// We are compressing the header (which contains the canonical
 		// representation) using static Huffman. But, we only want to have symbols
 		// in the Huffman tree up to the maximum bit length, so we output a 9 bit
 		// value (our alphabet size is 258 in the worst case).
 		int tableSize = canonical.get(canonical.size() - 1).length + 1;
-		encoderBuf.appendAndFlush(new DataBlock(tableSize, 9), out);
-
-		int[] headerFreq = new int[tableSize];
-		Arrays.fill(headerFreq, 1);
-		System.arraycopy(HEADER_INITIAL, 0, headerFreq, 0,
-		    Math.min(headerFreq.length, HEADER_INITIAL.length));
+		bits.append(tableSize | Integer.numberOfTrailingZeros(streams) << 6, 9);
 
-		HuffmanNode headerRoot = HuffmanNode.generateTree(headerFreq);
+		HuffmanNode headerRoot = HuffmanNode.generateTree(headerFreq(tableSize));
 		DataBlock[] headerRep = HuffmanNode.generateRep(headerRoot, tableSize);
 		HuffmanCoder headerEncoder = new HuffmanCoder(null, headerRep);
 
@@ -162,16 +458,55 @@ public class HuffmanComponent {
 			// occur in the following block).
 			header[i] = canonicalRep[i] == null ? 0 : canonicalRep[i].length;
 		}
-		headerEncoder.compressAndWrite(header, header.length, encoderBuf, out);
+		headerEncoder.compress(header, 0, header.length, bits);
 
+		if (streams > 1) {
+			compressInterleaved(canonicalRep, data, offset, length, fin, bits);
+			return bits;
+		}
 		HuffmanCoder encoder = new HuffmanCoder(null, canonicalRep);
-		encoder.compressAndWrite(data, length, encoderBuf, out);
+		encoder.compress(data, offset, length, bits);
 		if (fin) {
-			encoder.compressAndWrite(new int[] { 257 }, 1, encoderBuf, out);
-			// Make sure to flush any left over bits if we won't be called again.
-			encoderBuf.flush(out, true);
+			encoder.compress(new int[] { 257 }, 0, 1, bits);
 		} else {
-			encoder.compressAndWrite(new int[] { 256 }, 1, encoderBuf, out);
+			encoder.compress(new int[] { 256 }, 0, 1, bits);
+		}
+		return bits;
+	}
+
+	/**
+	 * Codes length symbols from data starting at offset split across our
+	 * bitstreams, and appends the jump table and then the bitstreams to bits.
+	 * 
+	 * @param rep map from symbol to representation
+	 * @param data symbols to compress
+	 * @param offset index of the first symbol to compress
+	 * @param length number of symbols from data to compress
+	 * @param fin if true, terminate with EOS rather than EOB
+	 * @param bits bit buffer to write to
+	 */
+	private void compressInterleaved(DataBlock[] rep, int[] data, int offset,
+	    int length, boolean fin, BitBuffer bits) {
+		BitBuffer[] parts = new BitBuffer[streams];
+		for (int s = 0; s < streams; ++s) {
+			parts[s] = new BitBuffer(length / streams);
+		}
+		for (int i = 0; i < length; ++i) {
+			parts[i & (streams - 1)].append(rep[data[offset + i]]);
+		}
+		parts[length & (streams - 1)].append(rep[fin ? 257 : 256]);
+
+		long longest = 0;
+		for (BitBuffer part : parts) {
+			longest = Math.max(longest, part.length());
+		}
+		int width = 64 - Long.numberOfLeadingZeros(longest);
+		bits.append(width, 5);
+		for (BitBuffer part : parts) {
+			bits.append(part.length(), width);
+		}
+		for (BitBuffer part : parts) {
+			bits.append(part);
 		}
 	}
 
@@ -185,8 +520,12 @@ public class HuffmanComponent {
 	 * @param data data to decompress
 	 * @param length number of bytes to take from data
 	 * @param output symbols are written to this list
+	 * @return number of bytes taken from data. This is only less than length if
+	 *         the end of the stream was reached.
+	 * @throws IOException if a block split across bitstreams is corrupt
 	 */
-	public void decompressAndAppend(int[] data, int length, List<Integer> output) {
+	public int decompressAndAppend(int[] data, int length, List<Integer> output)
+	    throws IOException {
 		// Stores where we are in the array data.
 		int idx = 0;
 		// We use this to determine if we can safely finish looping if we're at the
@@ -215,7 +554,7 @@ public class HuffmanComponent {
 						couldNotDoAnything = false;
 						if (out == ALPHABET_SIZE - 1) {
 							decoderState = DecoderState.STREAM_END;
-							return;
+							return idx;
 						} else if (out == ALPHABET_SIZE - 2) {
 							decoderState = DecoderState.READING_HEADER_INFO;
 							break;
@@ -246,11 +585,67 @@ public class HuffmanComponent {
 					// canonical representations of each symbol, and then build the tree
 					// from those representations.
 					DataBlock[] decoderRep = generateCanonicalRep(decoderCanonical);
+					if (decoderStreams > 1) {
+						jumpWidth = -1;
+						headerLoc = 0;
+						decoderState = DecoderState.READING_JUMP_TABLE;
+						break;
+					}
 					HuffmanNode decoderRoot = HuffmanNode.generateTree(decoderRep);
 					decoder = new HuffmanCoder(decoderRoot, decoderRep);
 					// We are now ready to decode the block.
 					decoderState = DecoderState.DECODING_BLOCK;
 					break;
+				// In this state we're reading the bit length of each bitstream of a
+				// block split across them.
+				case READING_JUMP_TABLE:
+					if (jumpWidth < 0) {
+						if (decoderBuf.length < 5) {
+							break;
+						}
+						couldNotDoAnything = false;
+						jumpWidth = (int) decoderBuf.pullRight(5).data;
+						if (jumpWidth == 0) {
+							throw new IOException("Corrupt Huffman block");
+						}
+					}
+					while (headerLoc < decoderStreams
+					    && decoderBuf.length >= jumpWidth) {
+						couldNotDoAnything = false;
+						streamLengths[headerLoc++] = decoderBuf.pullRight(jumpWidth).data;
+					}
+					if (headerLoc != decoderStreams) {
+						break;
+					}
+					startStreams();
+					break;
+				// In this state we're gathering up the bitstreams of a block split
+				// across them, which we can only decode once we have all of them.
+				case READING_STREAMS:
+					while (streamBitsLeft > 0 && decoderBuf.length > 0) {
+						couldNotDoAnything = false;
+						int n = (int) Math.min(streamBitsLeft,
+						    Math.min(decoderBuf.length, 32));
+						streamBits.append(decoderBuf.pullRight(n).data, n);
+						streamBitsLeft -= n;
+					}
+					// Once we're byte aligned we can take whole bytes straight from
+					// data.
+					while (streamBitsLeft >= 8 && idx < length) {
+						couldNotDoAnything = false;
+						streamBits.append(data[idx++], 8);
+						streamBitsLeft -= 8;
+					}
+					if (streamBitsLeft > 0) {
+						break;
+					}
+					couldNotDoAnything = false;
+					if (decodeStreams(output) == ALPHABET_SIZE - 1) {
+						decoderState = DecoderState.STREAM_END;
+						return idx;
+					}
+					decoderState = DecoderState.READING_HEADER_INFO;
+					break;
 				// In this state we're waiting for enough bits to come in to read the
 				// header info.
 				case READING_HEADER_INFO:
@@ -260,12 +655,18 @@ public class HuffmanComponent {
 					couldNotDoAnything = false;
 					// This represents the maximum number of bits in our canonical
 					// representations, plus one. We use it to build the Huffman tree.
-					int headerSize = (int) decoderBuf.pullRight(9).data;
-					int[] headerFreq = new int[headerSize];
-					Arrays.fill(headerFreq, 1);
-					System.arraycopy(HEADER_INITIAL, 0, headerFreq, 0,
-					    Math.min(headerFreq.length, HEADER_INITIAL.length));
-					HuffmanNode headerRoot = HuffmanNode.generateTree(headerFreq);
+					int info = (int) decoderBuf.pullRight(9).data;
+					int headerSize = info & 0x3F;
+					decoderStreams = 1 << (info >>> 6);
+					if (headerSize == 0 || decoderStreams > MAX_STREAMS) {
+						throw new IOException("Corrupt Huffman block");
+					}
+					if (streamLengths == null
+					    || streamLengths.length != decoderStreams) {
+						streamLengths = new long[decoderStreams];
+					}
+					HuffmanNode headerRoot = HuffmanNode.generateTree(
+					    headerFreq(headerSize));
 					DataBlock[] headerRep = HuffmanNode.generateRep(headerRoot,
 					    headerSize);
 					// Set the state up for the header decoder.
@@ -276,9 +677,103 @@ public class HuffmanComponent {
 					decoderState = DecoderState.DECODING_HEADER;
 					break;
 				case STREAM_END:
-					return;
+					return idx;
 			}
 		}
+		return idx;
+	}
+
+	/**
+	 * Gets ready to gather up the bitstreams of a block, once we have the jump
+	 * table.
+	 * 
+	 * @throws IOException if the bitstreams are longer than any block could be
+	 */
+	private void startStreams() throws IOException {
+		long total = 0;
+		for (long streamLength : streamLengths) {
+			total += streamLength;
+		}
+		if (total > (long) (MAX_BLOCK_SIZE + 1) * MAX_CODE_LENGTH) {
+			throw new IOException("Corrupt Huffman block");
+		}
+		streamBits = new BitBuffer((int) (total / 8));
+		streamBitsLeft = total;
+		decoderState = DecoderState.READING_STREAMS;
+	}
+
+	/**
+	 * Decodes the bitstreams of a block once we have all of them, a symbol from
+	 * each in turn. The bitstreams don't depend on each other, so the decoding
+	 * of one can get on while another waits on a table lookup.
+	 * 
+	 * @param output symbols are written to this list
+	 * @return the EOB or EOS symbol which ended the block
+	 * @throws IOException if the bitstreams don't hold what the jump table says
+	 */
+	private int decodeStreams(List<Integer> output) throws IOException {
+		TableDecoder table = new TableDecoder(decoderCanonical);
+		byte[] bits = streamBits.toByteArray(8);
+		streamBits = null;
+		int n = decoderStreams;
+		long[] positions = new long[n];
+		long[] ends = new long[n];
+		long position = 0;
+		for (int s = 0; s < n; ++s) {
+			positions[s] = position;
+			position += streamLengths[s];
+			ends[s] = position;
+		}
+		while (true) {
+			for (int s = 0; s < n; ++s) {
+				int entry = table.decode(bits, positions[s]);
+				positions[s] += entry & 0x3F;
+				if (positions[s] > ends[s]) {
+					throw new IOException("Corrupt Huffman block");
+				}
+				int symbol = entry >>> 6;
+				if (symbol >= ALPHABET_SIZE - 2) {
+					// Every bitstream should be used up by the end of the block.
+					for (int t = 0; t < n; ++t) {
+						if (positions[t] != ends[t]) {
+							throw new IOException("Corrupt Huffman block");
+						}
+					}
+					return symbol;
+				}
+				output.add(symbol);
+			}
+		}
+	}
+
+	/**
+	 * @return whether the decoder has read an EOS symbol
+	 */
+	public boolean isStreamEnded() {
+		return decoderState == DecoderState.STREAM_END;
+	}
+
+	/**
+	 * Gets the decoder ready to decode a new stream. The decoder may have read
+	 * a few bytes past the end of the last stream, which belong to whatever
+	 * follows it, so these are returned.
+	 * 
+	 * @return whole bytes read past the end of the stream
+	 */
+	public int[] resetDecoder() {
+		// The stream was padded out to a whole byte, so throw the padding away.
+		decoderBuf.pullRight(decoderBuf.length % 8);
+		int[] leftover = new int[decoderBuf.length / 8];
+		for (int i = 0; i < leftover.length; ++i) {
+			leftover[i] = (int) decoderBuf.pullRight(8).data;
+		}
+		decoderState = DecoderState.READING_HEADER_INFO;
+		decoder = null;
+		headerDecoder = null;
+		headerLoc = 0;
+		decoderCanonical = null;
+		streamBits = null;
+		return leftover;
 	}
 
 	/**
@@ -358,7 +853,8 @@ public class HuffmanComponent {
 
 	/** Decoder state */
 	private enum DecoderState {
-		DECODING_BLOCK, DECODING_HEADER, READING_HEADER_INFO, STREAM_END
+		DECODING_BLOCK, DECODING_HEADER, READING_HEADER_INFO, READING_JUMP_TABLE,
+		READING_STREAMS, STREAM_END
 	}
 
 	/**
@@ -391,19 +887,17 @@ public class HuffmanComponent {
 		}
 
 		/**
-		 * Compresses length bytes in data and writes them to out. There may be bits
-		 * which could not be put in a full byte leftover in buf.
+		 * Compresses length bytes in data starting at offset and appends them to
+		 * bits.
 		 * 
 		 * @param data data to compress
+		 * @param offset index of the first byte to compress
 		 * @param length number of bytes from data to compress
-		 * @param buf bit buffer to write to
-		 * @param out output stream to write to
-		 * @throws IOException
+		 * @param bits bit buffer to write to
 		 */
-		public void compressAndWrite(int[] data, int length, DataBlock buf,
-		    OutputStream out) throws IOException {
-			for (int i = 0; i < length; ++i) {
-				buf.appendAndFlush(rep[data[i]], out);
+		public void compress(int[] data, int offset, int length, BitBuffer bits) {
+			for (int i = offset; i < offset + length; ++i) {
+				bits.append(rep[data[i]]);
 			}
 		}
 
@@ -414,13 +908,18 @@ public class HuffmanComponent {
 		 * 
 		 * @param data bit buffer to read from
 		 * @return -1 if no symbol, otherwise the symbol
+		 * @throws IOException if the bits lead somewhere there's no symbol
 		 */
-		public int decompress(DataBlock data) {
+		public int decompress(DataBlock data) throws IOException {
 			while (data.length > 0) {
 				long bit = data.pullRight(1).data;
 				if (curNode.zero != null) {
 					curNode = bit == 0 ? curNode.zero : curNode.one;
 				}
+				// A corrupt header can give a tree with gaps in it.
+				if (curNode == null || (curNode.zero == null && curNode.c < 0)) {
+					throw new IOException("Corrupt Huffman block");
+				}
 				if (curNode.zero == null) {
 					int c = curNode.c;
 					curNode = tree;
@@ -430,4 +929,107 @@ public class HuffmanComponent {
 			return -1;
 		}
 	}
+
+	/**
+	 * Decoder for canonical codes which reads straight from an array of bits
+	 * rather than a bit at a time. Codes up to TABLE_BITS long are looked up in
+	 * a table indexed by the next TABLE_BITS bits, and longer ones are found
+	 * from the first code of each length, which canonical codes make easy.
+	 */
+	private static class TableDecoder {
+		/**
+		 * Symbol shifted left 6 and or'd with code length, for each value of the
+		 * next tableBits bits, or -1 if the code is longer than that.
+		 */
+		private final int[] table;
+		/** Number of bits the table is indexed by. */
+		private final int tableBits;
+		/** Longest code length. */
+		private final int maxLength;
+		/** First code of each length. */
+		private final long[] first;
+		/** Number of codes of each length. */
+		private final int[] count;
+		/** Index in symbols of the first symbol with each code length. */
+		private final int[] offset;
+		/** Symbols in order of their codes. */
+		private final int[] symbols;
+
+		/**
+		 * Initialise a TableDecoder from symbol and bit length pairs, sorted by
+		 * bit length and then symbol.
+		 * 
+		 * @param canonical list of symbol and bit length pairs
+		 * @throws IOException if they don't make a valid code
+		 */
+		public TableDecoder(List<CanonicalPair> canonical) throws IOException {
+			if (canonical.isEmpty()) {
+				throw new IOException("Corrupt Huffman block");
+			}
+			this.maxLength = canonical.get(canonical.size() - 1).length;
+			if (maxLength > MAX_CODE_LENGTH) {
+				throw new IOException("Corrupt Huffman block");
+			}
+			this.tableBits = Math.min(maxLength, TABLE_BITS);
+			this.table = new int[1 << tableBits];
+			Arrays.fill(table, -1);
+			this.first = new long[maxLength + 1];
+			this.count = new int[maxLength + 1];
+			this.offset = new int[maxLength + 1];
+			this.symbols = new int[canonical.size()];
+
+			long code = 0;
+			int prevLength = 0;
+			for (int i = 0; i < symbols.length; ++i) {
+				CanonicalPair p = canonical.get(i);
+				if (p.length != prevLength) {
+					code <<= p.length - prevLength;
+					prevLength = p.length;
+					first[p.length] = code;
+					offset[p.length] = i;
+				}
+				// A valid code never runs out of codes of a length.
+				if (code >= 1L << p.length) {
+					throw new IOException("Corrupt Huffman block");
+				}
+				count[p.length]++;
+				symbols[i] = p.symbol;
+				if (p.length <= tableBits) {
+					int shift = tableBits - p.length;
+					int from = (int) (code << shift);
+					Arrays.fill(table, from, from + (1 << shift),
+					    p.symbol << 6 | p.length);
+				}
+				code++;
+			}
+		}
+
+		/**
+		 * Decodes the symbol whose code starts at a position in bits.
+		 * 
+		 * @param bits bits to decode from, with at least 8 bytes of padding
+		 * @param position index of the first bit of the code
+		 * @return the symbol shifted left 6 and or'd with its code length
+		 * @throws IOException if the bits aren't a code
+		 */
+		public int decode(byte[] bits, long position) throws IOException {
+			int i = (int) (position >>> 3);
+			long window = ((bits[i] & 0xFFL) << 56 | (bits[i + 1] & 0xFFL) << 48
+			    | (bits[i + 2] & 0xFFL) << 40 | (bits[i + 3] & 0xFFL) << 32
+			    | (bits[i + 4] & 0xFFL) << 24 | (bits[i + 5] & 0xFFL) << 16
+			    | (bits[i + 6] & 0xFFL) << 8 | (bits[i + 7] & 0xFFL))
+			    << (position & 7);
+			int entry = table[(int) (window >>> (64 - tableBits))];
+			if (entry >= 0) {
+				return entry;
+			}
+			for (int length = tableBits + 1; length <= maxLength; ++length) {
+				long index = (window >>> (64 - length)) - first[length];
+				if (index >= 0 && index < count[length]) {
+					return symbols[offset[length] + (int) index] << 6 | length;
+				}
+			}
+			throw new IOException("Corrupt Huffman block");
+		}
+	}
 }
@@ -0,0 +1,152 @@
+/**
+ * Simple loops over whole arrays which several components spend a lot of
+ * their time in. This class has the plain Java versions. VectorKernels
+ * overrides them with versions using the Vector API where that helps, and
+ * get returns that instead whenever it has been compiled and the
+ * jdk.incubator.vector module is available.
+ * 
+ * VectorKernels lives in its own source root, src-vector, so the rest of the
+ * code still builds with a plain javac src/*.java. To use it, compile it too,
+ * with --add-modules jdk.incubator.vector, and run with the same flag.
+ * 
+ * @author E
+ */
+public class Kernels {
+	/** Tables larger than this are counted without separate lanes. */
+	private static final int MAX_LANE_TABLE = 1024;
+	/** Lanes are only used if there are this many values per table entry. */
+	private static final int LANE_RATIO = 16;
+	/** Kernels to use, decided once when the class is loaded. */
+	private static final Kernels INSTANCE = load();
+
+	protected Kernels() {
+	}
+
+	/**
+	 * @return the fastest kernels available
+	 */
+	public static Kernels get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @return VectorKernels if the Vector API is available, or Kernels if not
+	 */
+	private static Kernels load() {
+		try {
+			return (Kernels) Class.forName("VectorKernels").getDeclaredConstructor()
+			    .newInstance();
+		} catch (ReflectiveOperationException e) {
+			return new Kernels();
+		} catch (LinkageError e) {
+			// The module isn't there, so VectorKernels can't be loaded.
+			return new Kernels();
+		}
+	}
+
+	/**
+	 * Adds the number of times each value occurs in data from index from up to
+	 * index to onto counts. Consecutive values are counted into different
+	 * tables which are summed at the end, so that runs of the same value, which
+	 * are common after MTF, don't make every increment wait on the one before.
+	 * Large tables, such as the names SA-IS recurses on, are counted straight
+	 * into counts instead, since the extra tables would take several times the
+	 * memory of the data.
+	 * 
+	 * @param data values to count, which must be valid indices into counts
+	 * @param from index of the first value to count
+	 * @param to index after the last value to count
+	 * @param counts table to add the counts to
+	 */
+	public void histogram(int[] data, int from, int to, int[] counts) {
+		int n = counts.length;
+		if (n > MAX_LANE_TABLE || LANE_RATIO * n > to - from) {
+			for (int i = from; i < to; ++i) {
+				counts[data[i]]++;
+			}
+			return;
+		}
+		int[] lanes = new int[4 * n];
+		int i = from;
+		for (; i + 4 <= to; i += 4) {
+			lanes[data[i]]++;
+			lanes[n + data[i + 1]]++;
+			lanes[2 * n + data[i + 2]]++;
+			lanes[3 * n + data[i + 3]]++;
+		}
+		for (; i < to; ++i) {
+			lanes[data[i]]++;
+		}
+		for (int c = 0; c < n; ++c) {
+			counts[c] += lanes[c] + lanes[n + c] + lanes[2 * n + c]
+			    + lanes[3 * n + c];
+		}
+	}
+
+	/**
+	 * Adds the number of times each byte value occurs in data from index from
+	 * up to index to onto counts, which has 256 entries.
+	 * 
+	 * @param data bytes to count
+	 * @param from index of the first byte to count
+	 * @param to index after the last byte to count
+	 * @param counts table to add the counts to
+	 */
+	public void histogram(byte[] data, int from, int to, long[] counts) {
+		int[] lanes = new int[4 * 256];
+		int i = from;
+		for (; i + 4 <= to; i += 4) {
+			lanes[data[i] & 0xFF]++;
+			lanes[256 + (data[i + 1] & 0xFF)]++;
+			lanes[512 + (data[i + 2] & 0xFF)]++;
+			lanes[768 + (data[i + 3] & 0xFF)]++;
+		}
+		for (; i < to; ++i) {
+			lanes[data[i] & 0xFF]++;
+		}
+		for (int c = 0; c < 256; ++c) {
+			counts[c] += (long) lanes[c] + lanes[256 + c] + lanes[512 + c]
+			    + lanes[768 + c];
+		}
+	}
+
+	/**
+	 * Counts the elements of data from index from up to index to which are
+	 * equal to value.
+	 * 
+	 * @param data values to look through
+	 * @param from index of the first value to look at
+	 * @param to index after the last value to look at
+	 * @param value value to count
+	 * @return number of elements equal to value
+	 */
+	public int count(int[] data, int from, int to, int value) {
+		int count = 0;
+		for (int i = from; i < to; ++i) {
+			if (data[i] == value) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Counts the bytes of data from index from up to index to which
+	 * ZeroComponent escapes, being 246 and 247, so each become two symbols.
+	 * 
+	 * @param data bytes to look through
+	 * @param from index of the first byte to look at
+	 * @param to index after the last byte to look at
+	 * @return number of bytes which are escaped
+	 */
+	public int countEscapes(byte[] data, int from, int to) {
+		int count = 0;
+		for (int i = from; i < to; ++i) {
+			// 246 and 247 only differ in the lowest bit.
+			if ((data[i] & 0xFE) == 246) {
+				count++;
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,288 @@
+
+/**
+ * Version of BWTComponent for blocks too large for Java arrays or for the
+ * heap. The input, suffix array and LF mapping are kept in OffHeapArrays, and
+ * indices take 5 bytes, so a block may be up to 2^40 symbols long and heap
+ * usage does not depend on the block size. The algorithms are the same as in
+ * BWTComponent, so see there for how they work.
+ * 
+ * @author E
+ */
+public class LargeBWTComponent {
+	/** Marks an element of a suffix array which hasn't been set yet. */
+	private static final long EMPTY = OffHeapArray.MAX_INDEX;
+
+	/**
+	 * Compute the inverse BWT transform of the first size elements of input,
+	 * which holds one byte per symbol.
+	 * 
+	 * @param input data to inverse transform
+	 * @param size number of elements of data to inverse transform
+	 * @return inverse transformed data, one byte per symbol
+	 */
+	public OffHeapArray inverseTransform(OffHeapArray input, long size) {
+		long[] numCharactersBefore = new long[256];
+		OffHeapArray numSameBefore = new OffHeapArray(size,
+		    OffHeapArray.INDEX_WIDTH);
+
+		long cur = 0;
+		for (long i = 0; i < size; ++i) {
+			int c = (int) input.get(i);
+			if (c == 0) {
+				cur = i;
+			}
+			numSameBefore.set(i, numCharactersBefore[c]);
+			numCharactersBefore[c]++;
+		}
+		long sum = 0;
+		for (int i = 0; i < 256; ++i) {
+			sum += numCharactersBefore[i];
+			numCharactersBefore[i] = sum - numCharactersBefore[i];
+		}
+
+		OffHeapArray output = new OffHeapArray(size, 1);
+		for (long i = 0; i < size; ++i) {
+			int c = (int) input.get(cur);
+			output.set(size - i - 1, c);
+			cur = numCharactersBefore[c] + numSameBefore.get(cur);
+		}
+		return output;
+	}
+
+	/**
+	 * Compute the BWT transform of the first size elements of input, which
+	 * holds one byte per symbol. There must be no zeroes in input except for
+	 * one at input[size-1].
+	 * 
+	 * @param input data to transform
+	 * @param size number of elements of data to transform
+	 * @return transformed data, one byte per symbol
+	 */
+	public OffHeapArray transform(OffHeapArray input, long size) {
+		OffHeapArray suffixes = sais(input, size, 256);
+		OffHeapArray output = new OffHeapArray(size, 1);
+		for (long i = 0; i < size; ++i) {
+			output.set(i, input.get((suffixes.get(i) - 1 + size) % size));
+		}
+		return output;
+	}
+
+	/**
+	 * Returns the induced sorting of all suffixes of s given the elements in lms
+	 * are in sorted order, or the sorting of the lms prefixes if they aren't.
+	 * 
+	 * @param bucketStart start of the L type buckets
+	 * @param bucketEnd end of the S type buckets
+	 * @param s string to get suffixes/lms prefixes from
+	 * @param sSize size of s
+	 * @param t types of characters/suffixes in s
+	 * @param lms sorted lms suffixes
+	 * @param lmsLength number of elements in lms
+	 * @return induce sorted array
+	 */
+	private OffHeapArray induce(OffHeapArray bucketStart,
+	    OffHeapArray bucketEnd, OffHeapArray s, long sSize, OffHeapArray t,
+	    OffHeapArray lms, long lmsLength) {
+		OffHeapArray induced = new OffHeapArray(sSize, OffHeapArray.INDEX_WIDTH);
+		induced.fill(EMPTY);
+		long numBuckets = bucketStart.length();
+
+		// Place the lms suffixes at the end of their S-type buckets.
+		OffHeapArray bucket = copy(bucketEnd);
+		for (long i = lmsLength - 1; i >= 0; --i) {
+			long c = s.get(lms.get(i));
+			long at = bucket.get(c);
+			induced.set(at, lms.get(i));
+			bucket.set(c, at - 1);
+		}
+
+		// Induce the L type suffixes from left to right.
+		for (long c = 0; c < numBuckets; ++c) {
+			bucket.set(c, bucketStart.get(c));
+		}
+		for (long i = 0; i < sSize; ++i) {
+			long j = induced.get(i);
+			if (j != EMPTY && j > 0 && !bit(t, j - 1)) {
+				long c = s.get(j - 1);
+				long at = bucket.get(c);
+				induced.set(at, j - 1);
+				bucket.set(c, at + 1);
+			}
+		}
+
+		// Induce the S type suffixes from right to left.
+		for (long c = 0; c < numBuckets; ++c) {
+			bucket.set(c, bucketEnd.get(c));
+		}
+		for (long i = sSize - 1; i >= 0; --i) {
+			long j = induced.get(i);
+			if (j != EMPTY && j > 0 && bit(t, j - 1)) {
+				long c = s.get(j - 1);
+				long at = bucket.get(c);
+				induced.set(at, j - 1);
+				bucket.set(c, at - 1);
+			}
+		}
+		return induced;
+	}
+
+	/**
+	 * Compute the suffix array of the first sSize elements of s. Must have 0 at
+	 * end of array as sentinel.
+	 * 
+	 * @param s data to compute the suffix array of
+	 * @param sSize how much data is in s
+	 * @param alphabetSize every element of s must be less than this
+	 * @return suffix array
+	 */
+	private OffHeapArray sais(OffHeapArray s, long sSize, long alphabetSize) {
+		if (sSize == 1) {
+			OffHeapArray sa = new OffHeapArray(1, OffHeapArray.INDEX_WIDTH);
+			sa.set(0, 0);
+			return sa;
+		}
+
+		// Classify the suffixes and find the LMS substrings, of which there are
+		// less than sSize/2. The types are stored one bit each.
+		OffHeapArray t = new OffHeapArray((sSize >>> 3) + 1, 1);
+		OffHeapArray lms = new OffHeapArray(sSize / 2 + 1,
+		    OffHeapArray.INDEX_WIDTH);
+		setBit(t, sSize - 1);
+		long lmsSize = 0;
+		long next = s.get(sSize - 1);
+		for (long i = sSize - 2; i >= 0; --i) {
+			long cur = s.get(i);
+			boolean nextS = bit(t, i + 1);
+			if (cur < next || (cur == next && nextS)) {
+				setBit(t, i);
+			} else if (nextS) {
+				lms.set(lmsSize++, i + 1);
+			}
+			next = cur;
+		}
+
+		// Work out the buckets.
+		OffHeapArray bucketStart = new OffHeapArray(alphabetSize,
+		    OffHeapArray.INDEX_WIDTH);
+		OffHeapArray bucketEnd = new OffHeapArray(alphabetSize,
+		    OffHeapArray.INDEX_WIDTH);
+		for (long i = 0; i < sSize; ++i) {
+			long c = s.get(i);
+			bucketEnd.set(c, bucketEnd.get(c) + 1);
+		}
+		long sum = 0;
+		for (long c = 0; c < alphabetSize; ++c) {
+			bucketStart.set(c, sum);
+			sum += bucketEnd.get(c);
+			// Empty buckets end before they start; their end is never used.
+			bucketEnd.set(c, (sum - 1) & EMPTY);
+		}
+
+		// Sort the LMS substrings and name them. LMS substrings are never next to
+		// each other, so we can store the names indexed by position / 2.
+		OffHeapArray inducedSorted = induce(bucketStart, bucketEnd, s, sSize, t,
+		    lms, lmsSize);
+		OffHeapArray lmsMap = new OffHeapArray(sSize / 2 + 1,
+		    OffHeapArray.INDEX_WIDTH);
+		long curPartition = 0;
+		long prev = -1;
+		for (long i = 0; i < sSize; ++i) {
+			long cur = inducedSorted.get(i);
+			if (cur > 0 && bit(t, cur) && !bit(t, cur - 1)) {
+				if (prev != -1 && !sameLMS(s, t, prev, cur)) {
+					curPartition++;
+				}
+				lmsMap.set(cur / 2, curPartition);
+				prev = cur;
+			}
+		}
+		inducedSorted = null;
+
+		// Create the reduced string and sort it, directly if all the names are
+		// unique, otherwise recursively.
+		OffHeapArray s1 = new OffHeapArray(lmsSize, OffHeapArray.INDEX_WIDTH);
+		for (long i = 0; i < lmsSize; ++i) {
+			s1.set(i, lmsMap.get(lms.get(lmsSize - i - 1) / 2));
+		}
+		lmsMap = null;
+		OffHeapArray lmsSA;
+		if (curPartition + 1 == lmsSize) {
+			lmsSA = new OffHeapArray(lmsSize, OffHeapArray.INDEX_WIDTH);
+			for (long i = 0; i < lmsSize; ++i) {
+				lmsSA.set(s1.get(i), i);
+			}
+		} else {
+			lmsSA = sais(s1, lmsSize, curPartition + 1);
+		}
+		s1 = null;
+
+		// Convert back to indices into s, in place.
+		for (long i = 0; i < lmsSize; ++i) {
+			lmsSA.set(i, lms.get(lmsSize - lmsSA.get(i) - 1));
+		}
+		lms = null;
+		return induce(bucketStart, bucketEnd, s, sSize, t, lmsSA, lmsSize);
+	}
+
+	/**
+	 * Whether the LMS substrings starting at a and b are equal, i.e. they have
+	 * the same characters and types up to and including the next LMS position.
+	 * 
+	 * @param s string
+	 * @param t types of characters in s
+	 * @param a start of the first LMS substring
+	 * @param b start of the second LMS substring
+	 * @return whether they are the same
+	 */
+	private boolean sameLMS(OffHeapArray s, OffHeapArray t, long a, long b) {
+		boolean aPastS = false;
+		boolean bPastS = false;
+		for (long j = 0; true; ++j) {
+			boolean aType = bit(t, a + j);
+			boolean bType = bit(t, b + j);
+			if (!aType) {
+				aPastS = true;
+			}
+			if (!bType) {
+				bPastS = true;
+			}
+			if (s.get(a + j) != s.get(b + j) || aType != bType) {
+				return false;
+			}
+			if (aType && bType && aPastS && bPastS) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * @param a array to copy
+	 * @return copy of a
+	 */
+	private OffHeapArray copy(OffHeapArray a) {
+		OffHeapArray b = new OffHeapArray(a.length(), OffHeapArray.INDEX_WIDTH);
+		for (long i = 0; i < a.length(); ++i) {
+			b.set(i, a.get(i));
+		}
+		return b;
+	}
+
+	/**
+	 * @param bits bit array
+	 * @param i index of the bit
+	 * @return whether bit i is set
+	 */
+	private static boolean bit(OffHeapArray bits, long i) {
+		return ((bits.get(i >>> 3) >>> (i & 7)) & 1) != 0;
+	}
+
+	/**
+	 * Sets bit i.
+	 * 
+	 * @param bits bit array
+	 * @param i index of the bit
+	 */
+	private static void setBit(OffHeapArray bits, long i) {
+		bits.set(i >>> 3, bits.get(i >>> 3) | (1 << (i & 7)));
+	}
+}
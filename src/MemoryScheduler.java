@@ -0,0 +1,340 @@
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Keeps the total memory used by a number of compression and decompression
+ * jobs within a budget. Each job estimates how much memory it will need at
+ * its peak from its options, and is admitted once that much of the budget is
+ * free. Jobs are admitted in the order they ask, so large jobs aren't starved
+ * by small ones.
+ * 
+ * When there isn't room for a job as asked, we try it with fewer threads, a
+ * shallower pipeline, and then smaller blocks, and admit it with the first
+ * options that fit. This keeps the machine busy rather than leaving jobs
+ * waiting for memory they could do without.
+ * 
+ * The estimates are of heap and direct memory together, and are deliberately
+ * on the high side.
+ * 
+ * Decompression jobs only find out their block size and window from the
+ * stream, so they grow their leases as they go if the stream needs more than
+ * they were admitted with.
+ * 
+ * @author E
+ */
+public class MemoryScheduler {
+	/** Blocks are never made smaller than this to save memory. */
+	public static final long MIN_BLOCK_SIZE = 1024 * 1024;
+	/** Peak bytes per symbol of working space for SA-IS on the heap. */
+	private static final long BWT_BYTES = 24;
+	/** Peak bytes per symbol of working space for the ST transform. */
+	private static final long ST_BYTES = 8;
+	/** Peak bytes per symbol of working space for the inverse BWT. */
+	private static final long INVERSE_BWT_BYTES = 9;
+	/** Peak bytes per symbol of working space for the inverse ST. */
+	private static final long INVERSE_ST_BYTES = 12;
+	/** Peak bytes per symbol for SA-IS on a block kept off the heap. */
+	private static final long LARGE_BWT_BYTES = 22;
+	/** Peak bytes per symbol for the inverse BWT of a block off the heap. */
+	private static final long LARGE_INVERSE_BWT_BYTES = 7;
+	/** Bytes per symbol for a job's buffers: two int arrays and a byte array. */
+	private static final long JOB_BYTES = 9;
+
+	/** Total number of bytes jobs may use at once. */
+	private final long budget;
+	/** Number of bytes used by the jobs running at the moment. */
+	private long inUse;
+	/** Number of bytes reserved by the jobs waiting to grow their leases. */
+	private long growing;
+	/** Jobs waiting to be admitted, in the order they asked. */
+	private final Queue<Object> waiting;
+
+	/**
+	 * Initialise a scheduler.
+	 * 
+	 * @param budget total number of bytes jobs may use at once
+	 */
+	public MemoryScheduler(long budget) {
+		this.budget = budget;
+		this.inUse = 0;
+		this.growing = 0;
+		this.waiting = new ArrayDeque<Object>();
+	}
+
+	/**
+	 * @return total number of bytes jobs may use at once
+	 */
+	public long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * @return number of bytes used by the jobs running at the moment
+	 */
+	public synchronized long getInUse() {
+		return inUse;
+	}
+
+	/**
+	 * Waits until there is room for a compression job, and reserves it.
+	 * 
+	 * @param options options the job would like to run with
+	 * @return lease holding the options to run with, which must be closed once
+	 *         the job is done
+	 * @throws InterruptedException
+	 */
+	public Lease admitCompression(CompressionOptions options)
+	    throws InterruptedException {
+		return admit(options, true);
+	}
+
+	/**
+	 * Waits until there is room for a decompression job, and reserves it. The
+	 * block size of the options should be that the data was compressed with,
+	 * though the job's decoder reserves more if the stream turns out to need
+	 * it.
+	 * 
+	 * @param options options the job would like to run with
+	 * @return lease holding the options to run with, which must be closed once
+	 *         the job is done
+	 * @throws InterruptedException
+	 */
+	public Lease admitDecompression(CompressionOptions options)
+	    throws InterruptedException {
+		return admit(options, false);
+	}
+
+	/**
+	 * Estimates the most memory compressing with options will use at once.
+	 * 
+	 * @param options options to compress with
+	 * @return estimated peak memory use in bytes
+	 */
+	public static long estimateCompression(CompressionOptions options) {
+		long n = options.blockSize;
+		// The encoder's buffer for input waiting to be compressed.
+		long bytes = n;
+		if (options.offHeap) {
+			bytes += LARGE_BWT_BYTES * n;
+		} else {
+			bytes += JOB_BYTES * n * Math.max(1, options.pipelineDepth);
+			bytes += (options.sortContext > 0 ? ST_BYTES : BWT_BYTES) * n;
+			// The compressed block is held until we know it's worth keeping, and
+			// encoding in parallel holds all the Huffman blocks at once too.
+			bytes += options.threads > 1 ? 2 * n : n;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Estimates the most memory decompressing with options will use at once.
+	 * Blocks over BlockEncoder.BLOCK_SIZE are only taken to be decoded off the
+	 * heap with offHeap, since large blocks written without it are decoded on
+	 * the heap whenever they have a checksum.
+	 * 
+	 * @param options options to decompress with
+	 * @return estimated peak memory use in bytes
+	 */
+	public static long estimateDecompression(CompressionOptions options) {
+		long n = options.blockSize;
+		long bytes;
+		if (options.offHeap && n > BlockEncoder.BLOCK_SIZE
+		    && options.sortContext == 0) {
+			bytes = (1 + LARGE_INVERSE_BWT_BYTES) * n;
+		} else {
+			bytes = JOB_BYTES * n * Math.max(1, options.pipelineDepth);
+			bytes += (options.sortContext > 0 ? INVERSE_ST_BYTES
+			    : INVERSE_BWT_BYTES) * n;
+		}
+		if (options.dedup) {
+			bytes += options.dedupWindow;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Waits until there is room for a job, and reserves it.
+	 * 
+	 * @param requested options the job would like to run with
+	 * @param compress whether the job is compression
+	 * @return lease holding the options to run with
+	 * @throws InterruptedException
+	 */
+	private synchronized Lease admit(CompressionOptions requested,
+	    boolean compress) throws InterruptedException {
+		Object ticket = new Object();
+		waiting.add(ticket);
+		try {
+			while (true) {
+				if (waiting.peek() == ticket) {
+					CompressionOptions options = fit(requested, compress, budget
+					    - inUse);
+					// If even the smallest options are over budget, we let the job run
+					// on its own rather than never.
+					if (options == null && inUse == 0) {
+						options = smallest(requested, compress);
+					}
+					if (options != null) {
+						long bytes = estimate(options, compress);
+						inUse += bytes;
+						return new Lease(options, bytes);
+					}
+				}
+				wait();
+			}
+		} finally {
+			waiting.remove(ticket);
+			// Whoever is next may be able to go now.
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Waits until there is room to grow a lease, and reserves it. Growing
+	 * leases don't queue behind jobs waiting to be admitted, since those may be
+	 * waiting for the memory the growing job holds. If every running job is
+	 * waiting to grow, they all go ahead rather than waiting for each other
+	 * forever.
+	 * 
+	 * @param lease lease to grow
+	 * @param bytes number of bytes the lease should hold
+	 * @throws InterruptedException
+	 */
+	private synchronized void grow(Lease lease, long bytes)
+	    throws InterruptedException {
+		growing += lease.bytes;
+		// The others waiting to grow may be able to go now we're waiting too.
+		notifyAll();
+		try {
+			while (bytes - lease.bytes > budget - inUse && inUse > growing) {
+				wait();
+			}
+		} finally {
+			growing -= lease.bytes;
+		}
+		inUse += bytes - lease.bytes;
+		lease.bytes = bytes;
+	}
+
+	/**
+	 * Gives back the memory reserved by a lease.
+	 * 
+	 * @param bytes number of bytes to give back
+	 */
+	private synchronized void release(long bytes) {
+		inUse -= bytes;
+		notifyAll();
+	}
+
+	/**
+	 * Finds the options closest to those requested which fit in the available
+	 * memory.
+	 * 
+	 * @param requested options the job would like to run with
+	 * @param compress whether the job is compression
+	 * @param available number of bytes available
+	 * @return options to run with, or null if nothing fits
+	 */
+	private static CompressionOptions fit(CompressionOptions requested,
+	    boolean compress, long available) {
+		CompressionOptions options = new CompressionOptions(requested);
+		do {
+			if (estimate(options, compress) <= available) {
+				return options;
+			}
+		} while (shrink(options, compress));
+		return null;
+	}
+
+	/**
+	 * @param requested options the job would like to run with
+	 * @param compress whether the job is compression
+	 * @return the options shrunk as far as they go
+	 */
+	private static CompressionOptions smallest(CompressionOptions requested,
+	    boolean compress) {
+		CompressionOptions options = new CompressionOptions(requested);
+		options.threads = 1;
+		options.pipelineDepth = 0;
+		if (compress) {
+			options.blockSize = Math.min(options.blockSize, MIN_BLOCK_SIZE);
+		}
+		return options;
+	}
+
+	/**
+	 * Takes one step towards using less memory: halving the threads, then the
+	 * pipeline depth, then the block size. The block size is set by the data
+	 * when decompressing, so we can't shrink that.
+	 * 
+	 * @param options options to shrink
+	 * @param compress whether the job is compression
+	 * @return whether the options could be shrunk
+	 */
+	private static boolean shrink(CompressionOptions options, boolean compress) {
+		if (options.threads > 1) {
+			options.threads /= 2;
+		} else if (options.pipelineDepth > 0) {
+			options.pipelineDepth /= 2;
+		} else if (compress && options.blockSize > MIN_BLOCK_SIZE) {
+			options.blockSize = Math.max(MIN_BLOCK_SIZE, options.blockSize / 2);
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @param options options to run with
+	 * @param compress whether the job is compression
+	 * @return estimated peak memory use in bytes
+	 */
+	private static long estimate(CompressionOptions options, boolean compress) {
+		return compress ? estimateCompression(options)
+		    : estimateDecompression(options);
+	}
+
+	/**
+	 * Memory reserved for a job. Closing it gives the memory back.
+	 */
+	public class Lease implements AutoCloseable {
+		/** Options the job should run with. */
+		public final CompressionOptions options;
+		/** Number of bytes reserved. */
+		public long bytes;
+		private boolean closed;
+
+		private Lease(CompressionOptions options, long bytes) {
+			this.options = options;
+			this.bytes = bytes;
+			this.closed = false;
+		}
+
+		/**
+		 * Makes sure the lease holds at least bytes, waiting for room if it needs
+		 * to grow.
+		 * 
+		 * @param bytes number of bytes the job needs
+		 * @throws InterruptedException
+		 */
+		public void reserve(long bytes) throws InterruptedException {
+			synchronized (MemoryScheduler.this) {
+				if (closed || bytes <= this.bytes) {
+					return;
+				}
+				grow(this, bytes);
+			}
+		}
+
+		@Override
+		public void close() {
+			synchronized (MemoryScheduler.this) {
+				if (closed) {
+					return;
+				}
+				closed = true;
+			}
+			release(bytes);
+		}
+	}
+}
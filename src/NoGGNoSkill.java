@@ -1,5 +1,4 @@
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -7,7 +6,8 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 
 import CITS2200.Compressor;
@@ -19,22 +19,135 @@ import CITS2200.Compressor;
  * @author E
  */
 public class NoGGNoSkill implements Compressor {
-	/** We process the file in blocks of this size. */
-	private static final int BLOCK_SIZE = 20 * 1024 * 1024;
+	/** We read the input stream in chunks of this size. */
+	private static final int CHUNK_SIZE = 64 * 1024;
+	/** Number of bytes either side of each match to print the line from. */
+	private static final int SEARCH_CONTEXT = 80;
+
+	/** Settings to compress and decompress with. */
+	private final CompressionOptions options;
+	/** Shares out memory between us and other jobs, or null if we don't. */
+	private final MemoryScheduler scheduler;
+
+	/**
+	 * Somewhere input comes from, which is handed to an encoder or decoder a
+	 * piece at a time.
+	 */
+	private interface Input {
+		/**
+		 * Passes all the input to output.
+		 * 
+		 * @param output where to pass the input
+		 * @throws IOException
+		 */
+		void copyTo(Output output) throws IOException;
+	}
+
+	/**
+	 * The write method of an encoder or decoder.
+	 */
+	private interface Output {
+		void write(byte[] data, int offset, int length) throws IOException;
+	}
+
+	/**
+	 * Initialise NoGGNoSkill with the default options.
+	 */
+	public NoGGNoSkill() {
+		this(new CompressionOptions());
+	}
+
+	/**
+	 * Initialise NoGGNoSkill with the given options.
+	 * 
+	 * @param options settings to compress and decompress with
+	 */
+	public NoGGNoSkill(CompressionOptions options) {
+		this(options, null);
+	}
+
+	/**
+	 * Initialise NoGGNoSkill with the given options, waiting for scheduler to
+	 * admit each job before running it. The scheduler may have us use less
+	 * memory hungry options than those given.
+	 * 
+	 * @param options settings to compress and decompress with
+	 * @param scheduler scheduler shared with other jobs
+	 */
+	public NoGGNoSkill(CompressionOptions options, MemoryScheduler scheduler) {
+		this.options = options;
+		this.scheduler = scheduler;
+	}
 
 	public static void main(String[] args) throws FileNotFoundException {
-		if (args.length != 3) {
-			System.err.printf("Usage: -[d|c] input_file output_file\n");
+		if (args.length == 2 && args[0].equals("-v")) {
+			String error = new NoGGNoSkill().verify(new FileInputStream(args[1]));
+			if (error != null) {
+				System.err.println(error);
+				System.exit(1);
+			}
+			return;
+		}
+		if (args.length == 3 && args[0].equals("-s")) {
+			search(args[1], new FileInputStream(args[2]));
+			return;
+		}
+		if (args.length != 3 || !(args[0].equals("-c") || args[0].equals("-a")
+		    || args[0].equals("-d"))) {
+			System.err.printf("Usage: -[d|c|a] input_file output_file\n"
+			    + "       -v input_file\n"
+			    + "       -s pattern input_file\n");
 			System.exit(1);
 		}
 
 		FileInputStream input = new FileInputStream(args[1]);
-		FileOutputStream output = new FileOutputStream(args[2]);
+		// Appending adds a new member to the end of an existing compressed file,
+		// which decompresses to the old contents followed by the new.
+		FileOutputStream output = new FileOutputStream(args[2], args[0]
+		    .equals("-a"));
 		NoGGNoSkill noGGNoSkill = new NoGGNoSkill();
-		if (args[0].equals("-c")) {
-			noGGNoSkill.compress(input, output);
-		} else if (args[0].equals("-d")) {
-			noGGNoSkill.decompress(input, output);
+		String error;
+		if (args[0].equals("-d")) {
+			error = noGGNoSkill.decompress(input, output);
+		} else {
+			error = noGGNoSkill.compress(input, output);
+		}
+		if (error != null) {
+			System.err.println(error);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Prints the offset of each occurrence of pattern in a compressed stream,
+	 * and the line it's on.
+	 * 
+	 * @param pattern text to look for
+	 * @param input compressed stream to search
+	 */
+	private static void search(String pattern, InputStream input) {
+		List<StreamSearcher.Match> matches;
+		try {
+			matches = StreamSearcher.search(input, pattern
+			    .getBytes(StandardCharsets.UTF_8), SEARCH_CONTEXT,
+			    new CompressionOptions());
+		} catch (IOException e) {
+			System.err.println(e);
+			System.exit(1);
+			return;
+		}
+		for (StreamSearcher.Match match : matches) {
+			byte[] context = match.context;
+			int start = (int) (match.offset - match.contextOffset);
+			while (start > 0 && context[start - 1] != '\n') {
+				start--;
+			}
+			int end = (int) (match.offset - match.contextOffset);
+			while (end < context.length && context[end] != '\n') {
+				end++;
+			}
+			System.out.printf("%d: %s\n", match.offset, new String(context, start,
+			    end - start, StandardCharsets.UTF_8));
 		}
 	}
 
@@ -47,57 +160,110 @@ public class NoGGNoSkill implements Compressor {
 	 */
 	@Override
 	public String compress(InputStream inputStream, OutputStream outputStream) {
-		InputStream in = new BufferedInputStream(inputStream);
-		OutputStream out = new BufferedOutputStream(outputStream);
+		return compress(input(inputStream), new BufferedOutputStream(
+		    outputStream), options);
+	}
+
+	/**
+	 * Given an input stream, compress it within timeBudget milliseconds, and
+	 * write it to the output stream. Options are picked up front to get
+	 * through inputSize bytes in time, and if we still run out of time, the
+	 * rest of the input is stored. The output is always valid.
+	 * 
+	 * @param inputStream
+	 * @param outputStream
+	 * @param inputSize number of bytes in inputStream, or -1 if it isn't known
+	 * @param timeBudget number of milliseconds compression should take at most
+	 * @return null or exception message if an exception occurred
+	 */
+	public String compress(InputStream inputStream, OutputStream outputStream,
+	    long inputSize, long timeBudget) {
+		return compress(input(inputStream), new BufferedOutputStream(
+		    outputStream), BlockEncoder.planForBudget(options, inputSize,
+		    timeBudget));
+	}
 
-		// Modular compression via set of 'filters'.
-		ZeroComponent compensator = new ZeroComponent();
-		BWTComponent bwt = new BWTComponent();
-		MTFComponent mtf = new MTFComponent();
-		HuffmanComponent huffman = new HuffmanComponent();
+	/**
+	 * Compresses the remaining bytes of src into dst, in one go. Heap buffers
+	 * are read in place, direct buffers are read a chunk at a time, and the
+	 * output is written straight into dst. If it succeeds, src's position is
+	 * moved to its limit and dst's past the output. Otherwise neither position
+	 * is changed, but dst's contents may be.
+	 * 
+	 * @param src buffer to compress
+	 * @param dst buffer to write the output to, which needs room for
+	 *          maxCompressedLength bytes to be sure it fits
+	 * @return null or exception message if an exception occurred
+	 */
+	public String compress(ByteBuffer src, ByteBuffer dst) {
+		int srcPosition = src.position();
+		int dstPosition = dst.position();
+		String error = compress(input(src), new BufferOutputStream(dst),
+		    options);
+		if (error != null) {
+			src.position(srcPosition);
+			dst.position(dstPosition);
+		}
+		return error;
+	}
 
-		try {
-			int b = 0;
-			int[] block = new int[BLOCK_SIZE];
-			int blockSize = 0;
-			List<Integer> buf = new LinkedList<Integer>();
-
-			while (b != -1) {
-				b = in.read();
-				if (b != -1) {
-					block[blockSize++] = b;
-				}
-
-				// Once we've read in a block, we want to read it and append it to our
-				// buffer. Since it may expand to a different size, we need this extra
-				// buffer so we can make sure to feed our Burrows Wheeler with things of
-				// exactly BLOCK_SIZE (or less for the last block).
-				if (blockSize == BLOCK_SIZE || b == -1) {
-					compensator.transformAndAppend(block, blockSize, buf);
-					blockSize = 0;
-				}
-
-				while (buf.size() > 0) {
-					// We're done if we have no more full blocks left and it's not EOF.
-					if (buf.size() < BLOCK_SIZE && b != -1) {
-						break;
-					}
-
-					int[] intermediary = new int[Math.min(BLOCK_SIZE - 1, buf.size()) + 1];
-					for (int i = 0; i < intermediary.length - 1; ++i) {
-						intermediary[i] = buf.remove(0);
-					}
-					// We need to add 0 as the EOS marker for BWT to work.
-					intermediary[intermediary.length - 1] = 0;
-					intermediary = bwt.transform(intermediary, intermediary.length);
-					intermediary = mtf.transform(intermediary, intermediary.length);
-					huffman.compressAndWrite(intermediary, intermediary.length, (b == -1)
-					    && buf.size() == 0, out);
-				}
+	/**
+	 * Works out the most bytes compress can take for length bytes of input, so
+	 * the output buffer can be allocated up front.
+	 * 
+	 * @param length number of bytes of input
+	 * @return the most bytes the output can take
+	 */
+	public long maxCompressedLength(long length) {
+		CompressionOptions options = this.options;
+		if (scheduler != null) {
+			// The scheduler may have us use smaller blocks to save memory.
+			options = new CompressionOptions(options);
+			options.blockSize = Math.min(options.blockSize,
+			    MemoryScheduler.MIN_BLOCK_SIZE);
+		}
+		return BlockEncoder.maxCompressedLength(length, options);
+	}
+
+	/**
+	 * Compress the input with the given options, and write it to out, which is
+	 * closed afterwards.
+	 * 
+	 * @param input input to compress
+	 * @param out output stream to write to
+	 * @param options settings to compress with
+	 * @return null or exception message if an exception occurred
+	 */
+	private String compress(Input input, OutputStream out,
+	    CompressionOptions options) {
+		MemoryScheduler.Lease lease = null;
+		if (scheduler != null) {
+			try {
+				lease = scheduler.admitCompression(options);
+			} catch (InterruptedException e) {
+				return e.toString();
 			}
+			options = lease.options;
+		}
+		BlockEncoder encoder = new BlockEncoder(out, options);
+
+		// Stage threads are stopped by finish, or by abort if we fail first,
+		// whatever the failure.
+		boolean finished = false;
+		try {
+			input.copyTo(encoder::write);
+			encoder.finish();
+			finished = true;
 			out.close();
 		} catch (IOException e) {
 			return e.toString();
+		} finally {
+			if (!finished) {
+				encoder.abort();
+			}
+			if (lease != null) {
+				lease.close();
+			}
 		}
 		return null;
 	}
@@ -112,55 +278,156 @@ public class NoGGNoSkill implements Compressor {
 	 */
 	@Override
 	public String decompress(InputStream inputStream, OutputStream outputStream) {
-		InputStream in = new BufferedInputStream(inputStream);
-		OutputStream out = new BufferedOutputStream(outputStream);
+		return decompress(input(inputStream), new BufferedOutputStream(
+		    outputStream), false);
+	}
+
+	/**
+	 * Decompresses the remaining bytes of src into dst, in one go, the same way
+	 * compress does. If it succeeds, src's position is moved to its limit and
+	 * dst's past the output. Otherwise neither position is changed, but dst's
+	 * contents may be.
+	 * 
+	 * @param src buffer holding data compressed by our program
+	 * @param dst buffer to write the output to
+	 * @return null or exception message if an exception occurred, including
+	 *         if dst is too small
+	 */
+	public String decompress(ByteBuffer src, ByteBuffer dst) {
+		int srcPosition = src.position();
+		int dstPosition = dst.position();
+		String error = decompress(input(src), new BufferOutputStream(dst), false);
+		if (error != null) {
+			src.position(srcPosition);
+			dst.position(dstPosition);
+		}
+		return error;
+	}
 
+	/**
+	 * Takes an input stream containing data compressed by our program, and
+	 * checks it decompresses to what its checksums say, without writing the
+	 * result anywhere. Blocks are checked one after another, since where each
+	 * one ends is only found by decoding it. A pipelineDepth in our options
+	 * still applies, but most of the time goes on the Huffman decoding, which
+	 * it can't overlap.
+	 * 
+	 * @param inputStream
+	 * @return null, or a message saying why the stream didn't check out
+	 */
+	public String verify(InputStream inputStream) {
+		return decompress(input(inputStream), OutputStream.nullOutputStream(),
+		    true);
+	}
+
+	/**
+	 * Takes input containing data compressed by our program, and decompresses
+	 * it to out, which is closed afterwards.
+	 * 
+	 * @param input input to decompress
+	 * @param out output stream to write to
+	 * @param verify whether the stream must have checksums
+	 * @return null or exception message if an exception occurred
+	 */
+	private String decompress(Input input, OutputStream out, boolean verify) {
 		// The structure of this function is very similar to that of compress.
-		ZeroComponent compensator = new ZeroComponent();
-		BWTComponent bwt = new BWTComponent();
-		MTFComponent mtf = new MTFComponent();
-		HuffmanComponent huffman = new HuffmanComponent();
+		MemoryScheduler.Lease lease = null;
+		CompressionOptions options = this.options;
+		if (scheduler != null) {
+			try {
+				lease = scheduler.admitDecompression(options);
+			} catch (InterruptedException e) {
+				return e.toString();
+			}
+			options = lease.options;
+		}
+		BlockDecoder decoder = new BlockDecoder(out, options);
+		if (lease != null) {
+			decoder.setLease(lease);
+		}
 
+		boolean finished = false;
 		try {
-			int b = 0;
-			int[] block = new int[BLOCK_SIZE];
-			int blockSize = 0;
-			List<Integer> buf = new LinkedList<Integer>();
-
-			while (b != -1) {
-				b = in.read();
-				if (b != -1) {
-					block[blockSize++] = b;
-				}
-				if (blockSize == BLOCK_SIZE || b == -1) {
-					huffman.decompressAndAppend(block, blockSize, buf);
-					blockSize = 0;
-				}
-
-				while (buf.size() > 0) {
-					if (buf.size() < BLOCK_SIZE && b != -1) {
-						break;
-					}
-
-					int[] intermediary = new int[Math.min(BLOCK_SIZE, buf.size())];
-					for (int i = 0; i < intermediary.length; ++i) {
-						intermediary[i] = buf.remove(0);
-					}
-					intermediary = mtf
-					    .inverseTransform(intermediary, intermediary.length);
-					intermediary = bwt
-					    .inverseTransform(intermediary, intermediary.length);
-					intermediary = compensator.inverseTransform(intermediary,
-					    intermediary.length - 1);
-					for (int i = 0; i < intermediary.length; ++i) {
-						out.write(intermediary[i]);
-					}
-				}
-			}
+			input.copyTo(decoder::write);
+			decoder.finish();
+			finished = true;
 			out.close();
+			if (verify && !decoder.isChecked()) {
+				return "No checksums to verify";
+			}
 		} catch (IOException e) {
 			return e.toString();
+		} finally {
+			if (!finished) {
+				decoder.abort();
+			}
+			if (lease != null) {
+				lease.close();
+			}
 		}
 		return null;
 	}
+
+	/**
+	 * @param in stream to read
+	 * @return input which reads in a chunk at a time
+	 */
+	private static Input input(InputStream in) {
+		return output -> {
+			byte[] chunk = new byte[CHUNK_SIZE];
+			int read;
+			while ((read = in.read(chunk)) != -1) {
+				output.write(chunk, 0, read);
+			}
+		};
+	}
+
+	/**
+	 * @param buf buffer to read
+	 * @return input which passes on the remaining bytes of buf, in place if
+	 *         they're on the heap
+	 */
+	private static Input input(ByteBuffer buf) {
+		return output -> {
+			if (buf.hasArray()) {
+				output.write(buf.array(), buf.arrayOffset() + buf.position(), buf
+				    .remaining());
+				buf.position(buf.limit());
+				return;
+			}
+			byte[] chunk = new byte[Math.min(CHUNK_SIZE, buf.remaining())];
+			while (buf.hasRemaining()) {
+				int n = Math.min(chunk.length, buf.remaining());
+				buf.get(chunk, 0, n);
+				output.write(chunk, 0, n);
+			}
+		};
+	}
+
+	/**
+	 * Output stream which writes straight into a buffer.
+	 */
+	private static class BufferOutputStream extends OutputStream {
+		private final ByteBuffer buf;
+
+		public BufferOutputStream(ByteBuffer buf) {
+			this.buf = buf;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (!buf.hasRemaining()) {
+				throw new IOException("Output buffer is full");
+			}
+			buf.put((byte) b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (buf.remaining() < len) {
+				throw new IOException("Output buffer is full");
+			}
+			buf.put(b, off, len);
+		}
+	}
 }
@@ -0,0 +1,219 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Fixed size array of unsigned integers stored outside the Java heap, indexed
+ * by long. Each element takes width bytes, so indices into arrays of up to a
+ * trillion elements fit in 5 bytes rather than 8. The data is held in pages
+ * of direct buffers, since a single buffer can't be larger than 2 GB.
+ * 
+ * Direct memory is limited by -XX:MaxDirectMemorySize, which defaults to the
+ * maximum heap size, so it will usually need raising to use large arrays.
+ * 
+ * Arrays which may never be filled can be allocated lazily, in which case
+ * each page starts out empty and grows as elements are set. Elements which
+ * haven't been set yet are still zero.
+ * 
+ * @author E
+ */
+public class OffHeapArray {
+	/** Width of an index into an array of less than 2^40 elements. */
+	public static final int INDEX_WIDTH = 5;
+	/** Largest value which fits in an index. Used to mark unset elements. */
+	public static final long MAX_INDEX = (1L << (8 * INDEX_WIDTH)) - 1;
+	/** log2 of the number of elements in a page. */
+	private static final int PAGE_BITS = 27;
+	private static final long PAGE_MASK = (1L << PAGE_BITS) - 1;
+	/** Number of bytes lazily allocated pages start out with. */
+	private static final int INITIAL_PAGE_SIZE = 64 * 1024;
+
+	/** The pages, each holding 2^PAGE_BITS elements except maybe the last. */
+	private final ByteBuffer[] pages;
+	/** Number of elements. */
+	private final long length;
+	/** Number of bytes per element. */
+	private final int width;
+	/** Whether pages are only allocated, and grown, as elements are set. */
+	private final boolean lazy;
+
+	/**
+	 * Allocates a zeroed array.
+	 * 
+	 * @param length number of elements
+	 * @param width number of bytes per element, from 1 to 8
+	 */
+	public OffHeapArray(long length, int width) {
+		this(length, width, false);
+	}
+
+	/**
+	 * Allocates a zeroed array, which may take its memory as it's needed.
+	 * 
+	 * @param length number of elements
+	 * @param width number of bytes per element, from 1 to 8
+	 * @param lazy whether to only allocate memory for elements once they're
+	 *          set, rather than up front
+	 */
+	public OffHeapArray(long length, int width, boolean lazy) {
+		if (width < 1 || width > 8) {
+			throw new IllegalArgumentException("Width must be from 1 to 8");
+		}
+		this.length = length;
+		this.width = width;
+		this.lazy = lazy;
+		int numPages = (int) ((length + PAGE_MASK) >>> PAGE_BITS);
+		this.pages = new ByteBuffer[numPages];
+		if (!lazy) {
+			for (int i = 0; i < numPages; ++i) {
+				pages[i] = allocate(pageSize(i));
+			}
+		}
+	}
+
+	/**
+	 * @return number of elements
+	 */
+	public long length() {
+		return length;
+	}
+
+	/**
+	 * @param i index of the element
+	 * @return the element at i
+	 */
+	public long get(long i) {
+		ByteBuffer page = pages[(int) (i >>> PAGE_BITS)];
+		int off = (int) (i & PAGE_MASK) * width;
+		if (lazy && (page == null || off + width > page.capacity())) {
+			return 0;
+		}
+		switch (width) {
+			case 1:
+				return page.get(off) & 0xFFL;
+			case 4:
+				return page.getInt(off) & 0xFFFFFFFFL;
+			case 5:
+				return (page.getInt(off) & 0xFFFFFFFFL)
+				    | ((page.get(off + 4) & 0xFFL) << 32);
+			case 8:
+				return page.getLong(off);
+			default:
+				long v = 0;
+				for (int b = width - 1; b >= 0; --b) {
+					v = (v << 8) | (page.get(off + b) & 0xFF);
+				}
+				return v;
+		}
+	}
+
+	/**
+	 * Sets the element at i to the lowest width bytes of v.
+	 * 
+	 * @param i index of the element
+	 * @param v value to set
+	 */
+	public void set(long i, long v) {
+		ByteBuffer page = pages[(int) (i >>> PAGE_BITS)];
+		int off = (int) (i & PAGE_MASK) * width;
+		if (lazy && (page == null || off + width > page.capacity())) {
+			page = grow((int) (i >>> PAGE_BITS), off + width);
+		}
+		switch (width) {
+			case 1:
+				page.put(off, (byte) v);
+				break;
+			case 4:
+				page.putInt(off, (int) v);
+				break;
+			case 5:
+				page.putInt(off, (int) v);
+				page.put(off + 4, (byte) (v >>> 32));
+				break;
+			case 8:
+				page.putLong(off, v);
+				break;
+			default:
+				for (int b = 0; b < width; ++b) {
+					page.put(off + b, (byte) (v >>> (8 * b)));
+				}
+		}
+	}
+
+	/**
+	 * Sets every element to v.
+	 * 
+	 * @param v value to set
+	 */
+	public void fill(long v) {
+		for (long i = 0; i < length; ++i) {
+			set(i, v);
+		}
+	}
+
+	/**
+	 * Copies count elements starting at from into dest starting at offset.
+	 * 
+	 * @param from index of the first element to copy
+	 * @param dest array to copy to
+	 * @param offset index in dest to copy to
+	 * @param count number of elements to copy
+	 */
+	public void get(long from, int[] dest, int offset, int count) {
+		for (int i = 0; i < count; ++i) {
+			dest[offset + i] = (int) get(from + i);
+		}
+	}
+
+	/**
+	 * Copies count elements from src starting at offset into this array
+	 * starting at to.
+	 * 
+	 * @param to index of the first element to copy to
+	 * @param src array to copy from
+	 * @param offset index in src to copy from
+	 * @param count number of elements to copy
+	 */
+	public void set(long to, int[] src, int offset, int count) {
+		for (int i = 0; i < count; ++i) {
+			set(to + i, src[offset + i]);
+		}
+	}
+
+	/**
+	 * Grows a lazily allocated page, at least doubling it so setting elements
+	 * in order takes amortised constant time.
+	 * 
+	 * @param p index of the page
+	 * @param size number of bytes the page needs to hold
+	 * @return the grown page
+	 */
+	private ByteBuffer grow(int p, int size) {
+		ByteBuffer old = pages[p];
+		int capacity = old == null ? INITIAL_PAGE_SIZE : 2 * old.capacity();
+		ByteBuffer page = allocate((int) Math.min(pageSize(p), Math.max(
+		    capacity, size)));
+		if (old != null) {
+			page.put(old.duplicate().clear()).clear();
+		}
+		pages[p] = page;
+		return page;
+	}
+
+	/**
+	 * @param p index of a page
+	 * @return number of bytes the page holds once fully allocated
+	 */
+	private long pageSize(int p) {
+		return Math.min(PAGE_MASK + 1, length - ((long) p << PAGE_BITS)) * width;
+	}
+
+	/**
+	 * @param size number of bytes
+	 * @return a zeroed direct buffer of size bytes
+	 */
+	private static ByteBuffer allocate(long size) {
+		// Little endian is what the hardware uses, so it's cheaper.
+		return ByteBuffer.allocateDirect((int) size).order(
+		    ByteOrder.LITTLE_ENDIAN);
+	}
+}
@@ -0,0 +1,319 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Runs a sequence of stages, each on its own thread, connected by bounded
+ * queues. Blocks are passed through the stages in order as jobs. There are a
+ * fixed number of jobs, each owning its own buffers, which are recycled once
+ * they have been through the last stage. This bounds the memory in use no
+ * matter how far ahead the first stage gets.
+ * 
+ * @author E
+ */
+public class Pipeline {
+	/**
+	 * A block of data making its way through the pipeline. The stages may swap
+	 * data and scratch around, so neither should be held on to.
+	 */
+	public static class Job {
+		/** The block. */
+		public int[] data;
+		/** A buffer the same size as data for stages which can't work in place. */
+		public int[] scratch;
+		/** Number of elements in data which are in use. */
+		public int length;
+		/** BlockHeader type of the block, which tells the stages what to do. */
+		public int type;
+		/** The uncompressed bytes of the block, if they're needed. */
+		public byte[] input;
+		/** Number of bytes in input which are in use, or in a REF block. */
+		public int inputLength;
+		/** Distance back to the copy of a REF block. */
+		public long distance;
+		/** Number of symbols of context for an ST block. */
+		public int context;
+		/** Row the inverse BWT starts from, once its links are worked out. */
+		public int origin;
+		/** FILTER headers of the filters the block was passed through, in order. */
+		public List<BlockHeader> filters;
+		/** CRC32C of the uncompressed bytes, or -1 if there isn't one. */
+		public long checksum;
+		/** Contents of the block's SEARCH_INDEX header, or null if it has none. */
+		public byte[] searchIndex;
+		/** Index of the block, if it's being searched rather than decoded. */
+		public FMIndex fmIndex;
+		/** Whether this is the last block in the stream. */
+		public boolean last;
+		/** Time spent working on the block so far, in nanoseconds. */
+		public long nanos;
+
+		/**
+		 * Initialise a job with buffers of the given size. They can be grown later
+		 * with ensureCapacity.
+		 * 
+		 * @param size size of the buffers
+		 */
+		public Job(int size) {
+			this.data = new int[size];
+			this.scratch = new int[size];
+			this.length = 0;
+			this.type = BlockHeader.BWT;
+			this.input = new byte[0];
+			this.inputLength = 0;
+			this.distance = 0;
+			this.context = 0;
+			this.origin = 0;
+			this.filters = new ArrayList<BlockHeader>();
+			this.checksum = -1;
+			this.searchIndex = null;
+			this.fmIndex = null;
+			this.last = false;
+			this.nanos = 0;
+		}
+
+		/**
+		 * Makes sure both buffers can hold at least size elements. The contents
+		 * are not preserved if they need to grow.
+		 * 
+		 * @param size number of elements needed
+		 */
+		public void ensureCapacity(int size) {
+			if (data.length < size) {
+				data = new int[size];
+				scratch = new int[size];
+			}
+		}
+
+		/**
+		 * Makes sure input can hold at least size bytes. The contents are not
+		 * preserved if it needs to grow.
+		 * 
+		 * @param size number of bytes needed
+		 */
+		public void ensureInputCapacity(int size) {
+			if (input.length < size) {
+				input = new byte[size];
+			}
+		}
+
+		/**
+		 * Swaps data and scratch. Used by stages which write their output into
+		 * scratch.
+		 */
+		public void swap() {
+			int[] tmp = data;
+			data = scratch;
+			scratch = tmp;
+		}
+	}
+
+	/**
+	 * A step in the pipeline.
+	 */
+	public interface Stage {
+		/**
+		 * Process job, leaving the result in job.data.
+		 * 
+		 * @param job job to process
+		 * @throws IOException
+		 */
+		void process(Job job) throws IOException;
+	}
+
+	/** Passed through the pipeline to tell each stage to finish. */
+	private static final Job END = new Job(0);
+
+	/** Number of jobs. */
+	private final int depth;
+	/** Jobs which are free to be filled. */
+	private final BlockingQueue<Job> free;
+	/** queues.get(i) holds jobs waiting for stage i. */
+	private final List<BlockingQueue<Job>> queues;
+	private final List<Thread> threads;
+	/**
+	 * The first exception thrown by a stage. Once this is set, jobs are passed
+	 * through without being processed so nothing is left waiting.
+	 */
+	private volatile Throwable failure;
+
+	/**
+	 * Starts a thread for each stage.
+	 * 
+	 * @param name prefix for the thread names
+	 * @param depth number of jobs which may be in flight at once
+	 * @param stages stages to run, in order
+	 */
+	public Pipeline(String name, int depth, Stage... stages) {
+		this.depth = depth;
+		this.free = new ArrayBlockingQueue<Job>(depth);
+		for (int i = 0; i < depth; ++i) {
+			free.add(new Job(0));
+		}
+		this.queues = new ArrayList<BlockingQueue<Job>>(stages.length);
+		// Each queue needs room for every job plus END, so a stage never blocks
+		// on handing off to the next one.
+		for (int i = 0; i < stages.length; ++i) {
+			queues.add(new ArrayBlockingQueue<Job>(depth + 1));
+		}
+		this.threads = new ArrayList<Thread>(stages.length);
+		this.failure = null;
+		for (int i = 0; i < stages.length; ++i) {
+			final Stage stage = stages[i];
+			final BlockingQueue<Job> in = queues.get(i);
+			final BlockingQueue<Job> next = i + 1 < stages.length ? queues
+			    .get(i + 1) : null;
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					runStage(stage, in, next);
+				}
+			}, name + "-" + i);
+			thread.setDaemon(true);
+			threads.add(thread);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Takes a free job to fill, waiting for one if they are all in use.
+	 * 
+	 * @return free job
+	 * @throws IOException if a stage has failed
+	 */
+	public Job take() throws IOException {
+		checkFailure();
+		try {
+			return free.take();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+	}
+
+	/**
+	 * Sends a filled job through the pipeline.
+	 * 
+	 * @param job job to process
+	 * @throws IOException if a stage has failed
+	 */
+	public void submit(Job job) throws IOException {
+		checkFailure();
+		put(queues.get(0), job);
+	}
+
+	/**
+	 * Waits for all submitted jobs to go through the pipeline, leaving the
+	 * threads running. We do this by taking every job, since they are only free
+	 * once they've been through the last stage.
+	 * 
+	 * @throws IOException if a stage has failed
+	 */
+	public void drain() throws IOException {
+		List<Job> jobs = new ArrayList<Job>();
+		try {
+			while (jobs.size() < depth) {
+				jobs.add(free.take());
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		} finally {
+			free.addAll(jobs);
+		}
+		checkFailure();
+	}
+
+	/**
+	 * Waits for all submitted jobs to go through the pipeline, and stops the
+	 * threads.
+	 * 
+	 * @throws IOException if a stage has failed
+	 */
+	public void finish() throws IOException {
+		put(queues.get(0), END);
+		try {
+			for (Thread thread : threads) {
+				thread.join();
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+		checkFailure();
+	}
+
+	/**
+	 * Stops the threads without waiting for submitted jobs. Used when giving up
+	 * part way through a stream.
+	 */
+	public void abort() {
+		for (Thread thread : threads) {
+			thread.interrupt();
+		}
+	}
+
+	/**
+	 * Body of each stage's thread.
+	 * 
+	 * @param stage stage to run
+	 * @param in queue to take jobs from
+	 * @param next queue to pass jobs on to, or null if we're the last stage
+	 */
+	private void runStage(Stage stage, BlockingQueue<Job> in,
+	    BlockingQueue<Job> next) {
+		try {
+			while (true) {
+				Job job = in.take();
+				if (job != END && failure == null) {
+					try {
+						stage.process(job);
+					} catch (Throwable t) {
+						failure = t;
+					}
+				}
+				if (next != null) {
+					next.put(job);
+				} else if (job != END) {
+					free.put(job);
+				}
+				if (job == END) {
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			failure = e;
+		}
+	}
+
+	/**
+	 * @throws IOException if a stage has failed
+	 */
+	private void checkFailure() throws IOException {
+		Throwable t = failure;
+		if (t instanceof IOException) {
+			throw (IOException) t;
+		} else if (t instanceof RuntimeException) {
+			throw (RuntimeException) t;
+		} else if (t instanceof Error) {
+			throw (Error) t;
+		} else if (t != null) {
+			throw new IOException(t);
+		}
+	}
+
+	/**
+	 * Puts job on queue, converting interrupts to exceptions.
+	 * 
+	 * @param queue queue to put on
+	 * @param job job to put
+	 * @throws IOException
+	 */
+	private void put(BlockingQueue<Job> queue, Job job) throws IOException {
+		try {
+			queue.put(job);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+	}
+}
@@ -0,0 +1,158 @@
+import java.util.Arrays;
+
+/**
+ * Filter for newline delimited records split into fields by a delimiter, such
+ * as CSV exports and logs. It groups the data by column: the first field of
+ * every record comes first, then the second field of every record which has
+ * one, and so on. The same field of different records is usually far more
+ * alike than the fields next to it, so the BWT sees much more regular
+ * contexts. The delimiter byte is the parameter.
+ * 
+ * Each field keeps the byte which ended it, which is the delimiter if the
+ * record goes on and a newline if it doesn't, so the data stays the same
+ * length and the decoder can work out which records each column has entries
+ * for without anything extra being stored. Records don't need the same number
+ * of fields, and anything after the last newline is left where it is. The
+ * last column only holds fields ending in a newline, so the grouped data still
+ * ends with one, and the decoder finds the same end.
+ * 
+ * @author E
+ */
+public class RecordFilter implements Filter {
+	public static final int ID = 5;
+	/** Delimiters we suggest trying. */
+	private static final byte[] DELIMITERS = { ',', '\t', '|', ';', ' ', '"' };
+	/** We only suggest the filter for samples with at least this many records. */
+	private static final int MIN_RECORDS = 16;
+
+	@Override
+	public int id() {
+		return ID;
+	}
+
+	@Override
+	public boolean accepts(int parameter) {
+		return parameter >= 0 && parameter <= 0xFF && parameter != '\n';
+	}
+
+	@Override
+	public int[] suggest(byte[] sample, int length) {
+		int[] counts = new int[256];
+		for (int i = 0; i < length; ++i) {
+			counts[sample[i] & 0xFF]++;
+		}
+		int records = counts['\n'];
+		if (records < MIN_RECORDS) {
+			return new int[0];
+		}
+		// A delimiter should turn up at least once a record on average.
+		int[] parameters = new int[DELIMITERS.length];
+		int n = 0;
+		for (byte delimiter : DELIMITERS) {
+			if (counts[delimiter] >= records) {
+				parameters[n++] = delimiter;
+			}
+		}
+		return Arrays.copyOf(parameters, n);
+	}
+
+	@Override
+	public void encode(byte[] data, int length, int parameter) {
+		int end = recordsEnd(data, length);
+		byte[] copy = Arrays.copyOf(data, end);
+		// Find how many bytes each column takes, so we know where they start.
+		int[] offsets = new int[16];
+		int column = 0;
+		int start = 0;
+		for (int i = 0; i < end; ++i) {
+			int b = copy[i] & 0xFF;
+			if (b == parameter || b == '\n') {
+				if (column + 1 == offsets.length) {
+					offsets = Arrays.copyOf(offsets, offsets.length * 2);
+				}
+				offsets[column + 1] += i + 1 - start;
+				column = b == '\n' ? 0 : column + 1;
+				start = i + 1;
+			}
+		}
+		for (int c = 1; c < offsets.length; ++c) {
+			offsets[c] += offsets[c - 1];
+		}
+
+		column = 0;
+		start = 0;
+		for (int i = 0; i < end; ++i) {
+			int b = copy[i] & 0xFF;
+			if (b == parameter || b == '\n') {
+				int n = i + 1 - start;
+				System.arraycopy(copy, start, data, offsets[column], n);
+				offsets[column] += n;
+				column = b == '\n' ? 0 : column + 1;
+				start = i + 1;
+			}
+		}
+	}
+
+	@Override
+	public void decode(byte[] data, int length, int parameter) {
+		int end = recordsEnd(data, length);
+		// Every record ends in exactly one newline, wherever it is, so we know
+		// how many entries the first column has. Each entry ending in the
+		// delimiter means one more entry in the next column.
+		int entries = 0;
+		for (int i = 0; i < end; ++i) {
+			if (data[i] == '\n') {
+				entries++;
+			}
+		}
+		int[] starts = new int[16];
+		int columns = 0;
+		int pos = 0;
+		while (entries > 0) {
+			if (columns == starts.length) {
+				starts = Arrays.copyOf(starts, starts.length * 2);
+			}
+			starts[columns++] = pos;
+			int next = 0;
+			for (int e = 0; e < entries; ++e) {
+				while (pos < end && (data[pos] & 0xFF) != parameter
+				    && data[pos] != '\n') {
+					pos++;
+				}
+				if (pos == end) {
+					// It can't have been encoded like this, so leave it alone.
+					return;
+				}
+				if (data[pos++] != '\n') {
+					next++;
+				}
+			}
+			entries = next;
+		}
+
+		byte[] copy = Arrays.copyOf(data, end);
+		int column = 0;
+		for (int i = 0; i < end; ++i) {
+			int b = copy[starts[column]++] & 0xFF;
+			data[i] = (byte) b;
+			if (b == '\n') {
+				column = 0;
+			} else if (b == parameter) {
+				column++;
+			}
+		}
+	}
+
+	/**
+	 * @param data bytes to look through
+	 * @param length number of bytes in data
+	 * @return index just past the last newline in data, or 0 if there isn't one
+	 */
+	private static int recordsEnd(byte[] data, int length) {
+		int end = length;
+		while (end > 0 && data[end - 1] != '\n') {
+			end--;
+		}
+		return end;
+	}
+}
@@ -0,0 +1,180 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Component that performs a Schindler (ST) forward and inverse transform of
+ * order k. This is like BWT, except the rotations are only sorted on their
+ * first k symbols, and rotations which tie are kept in the order they appear
+ * in the input. The output compresses a little worse than BWT's, but it only
+ * takes k passes of a radix sort to compute.
+ * 
+ * @author E
+ */
+public class STComponent {
+	/** Largest k we support. Beyond this the sort is no cheaper than BWT. */
+	public static final int MAX_CONTEXT = 8;
+
+	/** Number of symbols of context rotations are sorted on. */
+	private final int context;
+
+	/**
+	 * Initialise an STComponent of order k.
+	 * 
+	 * @param context number of symbols of context to sort on, from 1 to
+	 *          MAX_CONTEXT
+	 */
+	public STComponent(int context) {
+		if (context < 1 || context > MAX_CONTEXT) {
+			throw new IllegalArgumentException("Invalid ST context " + context);
+		}
+		this.context = context;
+	}
+
+	/**
+	 * @return number of symbols of context rotations are sorted on
+	 */
+	public int context() {
+		return context;
+	}
+
+	/**
+	 * Compute the ST transform of the first size elements of input into output,
+	 * which must not be input. There must be no zeroes in input except for one
+	 * at input[size-1], which marks where the input starts.
+	 * 
+	 * @param input data to transform
+	 * @param size number of elements of data to transform
+	 * @param output array of at least size elements to write to
+	 * @return output
+	 */
+	public int[] transform(int[] input, int size, int[] output) {
+		int[] order = new int[size];
+		int[] sorted = new int[size];
+		int[] counts = new int[257];
+		for (int i = 0; i < size; ++i) {
+			order[i] = i;
+		}
+
+		// Radix sort the rotations on their first k symbols, last symbol first.
+		// Every pass is stable, so rotations which tie stay in input order.
+		for (int d = context - 1; d >= 0; --d) {
+			Arrays.fill(counts, 0);
+			for (int i = 0; i < size; ++i) {
+				counts[input[wrap(i + d, size)] + 1]++;
+			}
+			for (int c = 0; c < 256; ++c) {
+				counts[c + 1] += counts[c];
+			}
+			for (int r = 0; r < size; ++r) {
+				int p = order[r];
+				sorted[counts[input[wrap(p + d, size)]]++] = p;
+			}
+			int[] tmp = order;
+			order = sorted;
+			sorted = tmp;
+		}
+
+		for (int r = 0; r < size; ++r) {
+			int p = order[r];
+			output[r] = input[p == 0 ? size - 1 : p - 1];
+		}
+		return output;
+	}
+
+	/**
+	 * Compute the inverse ST transform of the first size elements of input into
+	 * output, which must not be input.
+	 * 
+	 * @param input data to inverse transform
+	 * @param size number of elements of data to inverse transform
+	 * @param output array of at least size elements to write to
+	 * @return output
+	 * @throws IOException if the block is corrupt
+	 */
+	public int[] inverseTransform(int[] input, int size, int[] output)
+	    throws IOException {
+		// Stable sort of the rows on their last symbol. Rows are sorted on their
+		// context, so this sorts the rows' last symbols followed by their
+		// context, which are the contexts of the rotations one position back.
+		int[] order = new int[size];
+		int[] counts = new int[257];
+		for (int i = 0; i < size; ++i) {
+			counts[input[i] + 1]++;
+		}
+		for (int c = 0; c < 256; ++c) {
+			counts[c + 1] += counts[c];
+		}
+		for (int i = 0; i < size; ++i) {
+			order[counts[input[i]]++] = i;
+		}
+
+		// Work out which rows share their first j symbols for j up to k.
+		// group[i] numbers the groups in order. The j symbol contexts of the rows
+		// are the last symbol of each row followed by its j-1 symbol context,
+		// in sorted order, so each pass numbers those.
+		int[] group = new int[size];
+		int[] rowGroup = new int[size];
+		for (int j = 1; j <= context; ++j) {
+			int id = -1;
+			int prevSymbol = -1;
+			int prevGroup = -1;
+			for (int r = 0; r < size; ++r) {
+				int i = order[r];
+				if (input[i] != prevSymbol || group[i] != prevGroup) {
+					id++;
+					prevSymbol = input[i];
+					prevGroup = group[i];
+				}
+				rowGroup[r] = id;
+				// On the last pass, we keep the group of the rotation one position
+				// back from each row instead.
+				if (j == context) {
+					group[i] = id;
+				}
+			}
+			if (j < context) {
+				int[] tmp = group;
+				group = rowGroup;
+				rowGroup = tmp;
+			}
+		}
+
+		// Rows in a group are in input order, so walking backwards through the
+		// input we use each group's rows from the last one down. order is reused
+		// to hold the next row to use in each group.
+		for (int r = 0; r < size; ++r) {
+			order[rowGroup[r]] = r;
+		}
+		// The row ending in the EOS character is the rotation at the start.
+		int cur = 0;
+		int eos = 0;
+		for (int i = 0; i < size; ++i) {
+			if (input[i] == 0) {
+				cur = i;
+				eos++;
+			}
+		}
+		if (eos != 1) {
+			throw new IOException("Corrupt block");
+		}
+		for (int i = 0; i < size; ++i) {
+			output[size - i - 1] = input[cur];
+			// In a corrupt block a group can run out of rows, and then takes the
+			// ones of the group before, which runs off the start for the first.
+			cur = order[group[cur]]--;
+			if (cur < 0) {
+				throw new IOException("Corrupt block");
+			}
+		}
+		return output;
+	}
+
+	/**
+	 * @param i index which may be past the end of the input
+	 * @param size size of the input
+	 * @return i wrapped around to the start of the input
+	 */
+	private static int wrap(int i, int size) {
+		return i < size ? i : i % size;
+	}
+}
@@ -0,0 +1,372 @@
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compresses a large file by splitting it into shards, which are compressed
+ * by separate worker processes, so one file can use more memory and cores
+ * than a single JVM has, and each shard's garbage collection is kept to
+ * itself. The workers here are local subprocesses, but they only share the
+ * input and output files with us, so they stand in for remote nodes.
+ * 
+ * Each shard is compressed as its own member, and the members are joined one
+ * after another, so the result decompresses with NoGGNoSkill like any other
+ * stream. In front of them is a member holding just an INDEX block, which
+ * readIndex uses to find each shard, so they can be decompressed separately.
+ * Workers which fail are started again, up to a limit.
+ * 
+ * Workers compress with the default options.
+ * 
+ * @author E
+ */
+public class ShardedCompressor {
+	/** Default number of bytes in each shard, a whole number of blocks. */
+	public static final long SHARD_SIZE = 4L * BlockEncoder.BLOCK_SIZE;
+	/** Largest shard we can compress, since workers map them into memory. */
+	public static final long MAX_SHARD_SIZE = Integer.MAX_VALUE - 1024 * 1024;
+
+	/**
+	 * Where a shard is in a stream compressed by us.
+	 */
+	public static class Shard {
+		/** Index of the first byte of the shard in the compressed stream. */
+		public long offset;
+		/** Number of bytes the shard takes in the compressed stream. */
+		public long length;
+		/** Index of the first byte the shard decompresses to in the output. */
+		public long outputOffset;
+		/** Number of bytes the shard decompresses to. */
+		public long outputLength;
+	}
+
+	/** Number of workers which may run at once. */
+	private final int workers;
+	/** Number of bytes in each shard, other than the last. */
+	private final long shardSize;
+	/** Number of times a shard is retried after its worker fails. */
+	private final int retries;
+
+	/**
+	 * Initialise a sharded compressor.
+	 * 
+	 * @param workers number of workers which may run at once
+	 * @param shardSize number of bytes in each shard, best a multiple of
+	 *          BlockEncoder.BLOCK_SIZE so no shard ends in a short block
+	 * @param retries number of times a shard is retried after its worker fails
+	 */
+	public ShardedCompressor(int workers, long shardSize, int retries) {
+		if (workers < 1 || shardSize < 1 || shardSize > MAX_SHARD_SIZE
+		    || retries < 0) {
+			throw new IllegalArgumentException("Invalid sharding");
+		}
+		this.workers = workers;
+		this.shardSize = shardSize;
+		this.retries = retries;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length == 5 && args[0].equals("-w")) {
+			runWorker(Paths.get(args[1]), Long.parseLong(args[2]), Long
+			    .parseLong(args[3]), Paths.get(args[4]));
+			return;
+		}
+		if (args.length < 2 || args.length > 4) {
+			System.err.printf("Usage: input_file output_file [workers]"
+			    + " [shard_size]\n");
+			System.exit(1);
+		}
+		int workers = args.length > 2 ? Integer.parseInt(args[2]) : Runtime
+		    .getRuntime().availableProcessors();
+		long shardSize = args.length > 3 ? Long.parseLong(args[3]) : SHARD_SIZE;
+		String error = new ShardedCompressor(workers, shardSize, 2).compress(
+		    Paths.get(args[0]), Paths.get(args[1]));
+		if (error != null) {
+			System.err.println(error);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Compresses input to output, splitting it into shards for the workers.
+	 * The shards are compressed into temporary files next to output, which
+	 * are joined once they are all done.
+	 * 
+	 * @param input file to compress
+	 * @param output file to write the compressed stream to
+	 * @return null or exception message if an exception occurred
+	 */
+	public String compress(Path input, Path output) {
+		List<Path> parts = new ArrayList<Path>();
+		ExecutorService executor = Executors.newFixedThreadPool(workers);
+		try {
+			long size = Files.size(input);
+			Path dir = output.toAbsolutePath().getParent();
+			List<Future<String>> results = new ArrayList<Future<String>>();
+			for (long offset = 0; offset < size; offset += shardSize) {
+				long length = Math.min(shardSize, size - offset);
+				Path part = Files.createTempFile(dir, "shard", ".part");
+				parts.add(part);
+				final long start = offset;
+				results.add(executor.submit(() -> runShard(input, start, length,
+				    part)));
+			}
+			for (Future<String> result : results) {
+				String error = result.get();
+				if (error != null) {
+					return error;
+				}
+			}
+
+			try (OutputStream out = new FileOutputStream(output.toFile())) {
+				writeIndex(input, parts, out);
+				for (Path part : parts) {
+					Files.copy(part, out);
+				}
+			}
+		} catch (IOException e) {
+			return e.toString();
+		} catch (InterruptedException e) {
+			return e.toString();
+		} catch (ExecutionException e) {
+			return e.getCause().toString();
+		} finally {
+			executor.shutdownNow();
+			for (Path part : parts) {
+				try {
+					Files.deleteIfExists(part);
+				} catch (IOException e) {
+					// It's only a temporary file.
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Reads the index from the start of a stream compressed by us, leaving in
+	 * just past the member holding it.
+	 * 
+	 * @param in the compressed stream
+	 * @return where each shard is
+	 * @throws IOException if the stream doesn't start with an index
+	 */
+	public static List<Shard> readIndex(InputStream in) throws IOException {
+		byte[] buf = new byte[BlockHeader.MAX_LENGTH];
+		for (int i = 0; i < BlockHeader.PREFIX_LENGTH; ++i) {
+			int b = in.read();
+			if (b == -1) {
+				throw new IOException("Missing shard index");
+			}
+			BlockHeader.checkPrefix(i, (byte) b);
+		}
+		int length = readHeader(in, buf);
+		BlockHeader header = BlockHeader.read(buf, length);
+		if (header.type != BlockHeader.INDEX
+		    || header.length > Integer.MAX_VALUE) {
+			throw new IOException("Missing shard index");
+		}
+		byte[] index = in.readNBytes((int) header.length);
+		if (index.length != header.length) {
+			throw new IOException("Corrupt shard index");
+		}
+		List<Shard> shards = parseIndex(index);
+		long offset = BlockHeader.PREFIX_LENGTH + length + index.length;
+		while (header.type != BlockHeader.END) {
+			length = readHeader(in, buf);
+			header = BlockHeader.read(buf, length);
+			offset += length;
+		}
+		// The shards follow the index member, one after another.
+		long outputOffset = 0;
+		for (Shard shard : shards) {
+			shard.offset = offset;
+			shard.outputOffset = outputOffset;
+			offset += shard.length;
+			outputOffset += shard.outputLength;
+		}
+		return shards;
+	}
+
+	/**
+	 * Starts a worker to compress a shard, which should exit with status 0 once
+	 * it has written the whole shard to output.
+	 * 
+	 * @param input file the shard is in
+	 * @param offset index of the first byte of the shard in input
+	 * @param length number of bytes in the shard
+	 * @param output file to write the compressed shard to
+	 * @return the worker
+	 * @throws IOException if it couldn't be started
+	 */
+	protected Process startWorker(Path input, long offset, long length,
+	    Path output) throws IOException {
+		// Workers are started in a JVM like ours.
+		List<String> command = new ArrayList<String>();
+		command.add(ProcessHandle.current().info().command().orElse("java"));
+		command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(ShardedCompressor.class.getName());
+		command.add("-w");
+		command.add(input.toString());
+		command.add(Long.toString(offset));
+		command.add(Long.toString(length));
+		command.add(output.toString());
+		return new ProcessBuilder(command).inheritIO().start();
+	}
+
+	/**
+	 * Compresses a shard with a worker, starting it again if it fails.
+	 * 
+	 * @param input file the shard is in
+	 * @param offset index of the first byte of the shard in input
+	 * @param length number of bytes in the shard
+	 * @param output file to write the compressed shard to
+	 * @return null, or a message saying why the shard couldn't be compressed
+	 * @throws InterruptedException
+	 */
+	private String runShard(Path input, long offset, long length, Path output)
+	    throws InterruptedException {
+		String error = null;
+		for (int attempt = 0; attempt <= retries; ++attempt) {
+			try {
+				Process worker = startWorker(input, offset, length, output);
+				try {
+					int status = worker.waitFor();
+					if (status == 0) {
+						return null;
+					}
+					error = "Worker for shard at " + offset + " exited with status "
+					    + status;
+				} finally {
+					worker.destroyForcibly();
+				}
+			} catch (IOException e) {
+				error = e.toString();
+			}
+		}
+		return error;
+	}
+
+	/**
+	 * Body of a worker process, which compresses length bytes of input starting
+	 * at offset into output as one member.
+	 * 
+	 * @param input file the shard is in
+	 * @param offset index of the first byte of the shard in input
+	 * @param length number of bytes in the shard
+	 * @param output file to write the compressed shard to
+	 * @throws IOException
+	 */
+	private static void runWorker(Path input, long offset, long length,
+	    Path output) throws IOException {
+		NoGGNoSkill compressor = new NoGGNoSkill();
+		try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+		    FileChannel out = FileChannel.open(output, StandardOpenOption.READ,
+		        StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+			MappedByteBuffer src = in.map(FileChannel.MapMode.READ_ONLY, offset,
+			    length);
+			long max = Math.min(compressor.maxCompressedLength(length),
+			    Integer.MAX_VALUE);
+			MappedByteBuffer dst = out.map(FileChannel.MapMode.READ_WRITE, 0, max);
+			String error = compressor.compress(src, dst);
+			if (error != null) {
+				System.err.println(error);
+				System.exit(1);
+			}
+			out.truncate(dst.position());
+		}
+	}
+
+	/**
+	 * Writes the member holding the index of the shards.
+	 * 
+	 * @param input file the shards were taken from
+	 * @param parts compressed shards, in order
+	 * @param out stream to write to
+	 * @throws IOException
+	 */
+	private void writeIndex(Path input, List<Path> parts, OutputStream out)
+	    throws IOException {
+		long size = Files.size(input);
+		ByteArrayOutputStream index = new ByteArrayOutputStream();
+		BlockHeader.writeNumber(parts.size(), index);
+		for (int i = 0; i < parts.size(); ++i) {
+			BlockHeader.writeNumber(Files.size(parts.get(i)), index);
+			BlockHeader.writeNumber(Math.min(shardSize, size - i * shardSize),
+			    index);
+		}
+		BlockHeader.writePrefix(out);
+		new BlockHeader(BlockHeader.INDEX, index.size()).write(out);
+		index.writeTo(out);
+		if (new CompressionOptions().checksums) {
+			// The member decompresses to nothing, and says so, so streams with
+			// checksums still count as checked all the way through.
+			BlockHeader.checksum(BlockHeader.STREAM_CHECKSUM, 0, 0).write(out);
+		}
+		new BlockHeader(BlockHeader.END, 0).write(out);
+	}
+
+	/**
+	 * Reads a block header from in a byte at a time, so nothing after it is
+	 * read.
+	 * 
+	 * @param in stream to read from
+	 * @param buf where to put the header
+	 * @return number of bytes in the header
+	 * @throws IOException if there isn't a valid header
+	 */
+	private static int readHeader(InputStream in, byte[] buf)
+	    throws IOException {
+		int length = 0;
+		do {
+			int b = in.read();
+			if (b == -1 || length == buf.length) {
+				throw new IOException("Corrupt shard index");
+			}
+			buf[length++] = (byte) b;
+		} while (BlockHeader.read(buf, length) == null);
+		return length;
+	}
+
+	/**
+	 * @param index bytes of an INDEX block
+	 * @return the shards it lists, without their offsets
+	 * @throws IOException if it isn't a valid index
+	 */
+	private static List<Shard> parseIndex(byte[] index) throws IOException {
+		long[] count = BlockHeader.readNumbers(index, 0, index.length, 1);
+		// Each shard takes at least two bytes, which bounds the count.
+		if (count == null || count[0] > index.length / 2) {
+			throw new IOException("Corrupt shard index");
+		}
+		long[] fields = BlockHeader.readNumbers(index, 0, index.length,
+		    1 + 2 * (int) count[0]);
+		if (fields == null) {
+			throw new IOException("Corrupt shard index");
+		}
+		List<Shard> shards = new ArrayList<Shard>();
+		for (int i = 0; i < count[0]; ++i) {
+			Shard shard = new Shard();
+			shard.length = fields[1 + 2 * i];
+			shard.outputLength = fields[2 + 2 * i];
+			shards.add(shard);
+		}
+		return shards;
+	}
+}
@@ -0,0 +1,259 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds every occurrence of a pattern in a compressed stream. Blocks with a
+ * SEARCH_INDEX are searched through their FMIndex without being decoded, and
+ * the rest of the stream is written to us by the decoder and searched as it
+ * goes by.
+ * 
+ * Occurrences which cross from one block into the next are found by joining
+ * the last few bytes before each block, which we keep, to its first few.
+ * 
+ * @author E
+ */
+public class StreamSearcher extends OutputStream {
+	/** We read the input stream in chunks of this size. */
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	/**
+	 * An occurrence of the pattern.
+	 */
+	public static class Match {
+		/** Offset of the occurrence in the decompressed stream. */
+		public long offset;
+		/**
+		 * The occurrence with up to contextLength bytes either side of it. The
+		 * bytes after it are filled in as more of the stream arrives.
+		 */
+		public byte[] context;
+		/** Offset of the first byte of context in the decompressed stream. */
+		public long contextOffset;
+	}
+
+	/**
+	 * Part of the decompressed stream, which we only read the bits of we need.
+	 */
+	private interface Block {
+		/**
+		 * @param offset offset in the block of the first byte to read
+		 * @param length number of bytes to read
+		 * @return the bytes
+		 * @throws IOException
+		 */
+		byte[] read(long offset, int length) throws IOException;
+	}
+
+	/** Bytes to look for. */
+	private final byte[] pattern;
+	/** Number of bytes of context to keep either side of each match. */
+	private final int contextLength;
+	/** Every match found so far, in order. */
+	private final List<Match> matches;
+	/** Matches still waiting for the context after them. */
+	private final List<Match> pending;
+	/**
+	 * The last bytes of the stream so far, enough for a match to start in and
+	 * for the context before it.
+	 */
+	private byte[] history;
+	/** Number of bytes of the decompressed stream seen so far. */
+	private long position;
+
+	/**
+	 * Initialise a StreamSearcher.
+	 * 
+	 * @param pattern bytes to look for, at least one
+	 * @param contextLength number of bytes of context to keep either side of
+	 *          each match
+	 */
+	public StreamSearcher(byte[] pattern, int contextLength) {
+		if (pattern.length == 0 || contextLength < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.pattern = pattern.clone();
+		this.contextLength = contextLength;
+		this.matches = new ArrayList<Match>();
+		this.pending = new ArrayList<Match>();
+		this.history = new byte[0];
+		this.position = 0;
+	}
+
+	/**
+	 * Searches a compressed stream.
+	 * 
+	 * @param in compressed stream to search
+	 * @param pattern bytes to look for, at least one
+	 * @param contextLength number of bytes of context to keep either side of
+	 *          each match
+	 * @param options settings to decompress with
+	 * @return every match, in order
+	 * @throws IOException if the stream can't be read or is corrupt
+	 */
+	public static List<Match> search(InputStream in, byte[] pattern,
+	    int contextLength, CompressionOptions options) throws IOException {
+		StreamSearcher searcher = new StreamSearcher(pattern, contextLength);
+		BlockDecoder decoder = new BlockDecoder(searcher, options, searcher);
+		boolean finished = false;
+		try {
+			byte[] chunk = new byte[CHUNK_SIZE];
+			int read;
+			while ((read = in.read(chunk)) != -1) {
+				decoder.write(chunk, 0, read);
+			}
+			decoder.finish();
+			finished = true;
+		} finally {
+			if (!finished) {
+				decoder.abort();
+			}
+		}
+		return searcher.matches();
+	}
+
+	/**
+	 * @return every match found so far, in order
+	 */
+	public List<Match> matches() {
+		return matches;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return;
+		}
+		Block block = (offset, length) -> Arrays.copyOfRange(b,
+		    off + (int) offset, off + (int) offset + length);
+		List<Match> found = findAcross(block, len);
+		for (int i = 0; i + pattern.length <= len; ++i) {
+			if (matchesAt(b, off + i)) {
+				found.add(match(position + i));
+			}
+		}
+		add(found, block, len);
+	}
+
+	/**
+	 * Searches a block through its index.
+	 * 
+	 * @param index index of the block
+	 * @throws IOException if the index is corrupt
+	 */
+	public void search(FMIndex index) throws IOException {
+		long length = index.length();
+		if (length == 0) {
+			return;
+		}
+		Block block = index::extract;
+		List<Match> found = findAcross(block, length);
+		for (long offset : index.locate(pattern)) {
+			found.add(match(position + offset));
+		}
+		add(found, block, length);
+	}
+
+	/**
+	 * Finds the matches which start before a block and end in it.
+	 * 
+	 * @param block the block
+	 * @param length number of bytes in block
+	 * @return the matches, without their context
+	 * @throws IOException
+	 */
+	private List<Match> findAcross(Block block, long length)
+	    throws IOException {
+		List<Match> found = new ArrayList<Match>();
+		int before = Math.min(history.length, pattern.length - 1);
+		int after = (int) Math.min(length, pattern.length - 1);
+		byte[] joined = Arrays.copyOfRange(history, history.length - before,
+		    history.length + after);
+		System.arraycopy(block.read(0, after), 0, joined, before, after);
+		for (int i = 0; i < before && i + pattern.length <= joined.length; ++i) {
+			if (matchesAt(joined, i)) {
+				found.add(match(position - before + i));
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Fills in the context of the matches which need some of a block, and moves
+	 * on past the block.
+	 * 
+	 * @param found matches found in the block, in order
+	 * @param block the block
+	 * @param length number of bytes in block
+	 * @throws IOException
+	 */
+	private void add(List<Match> found, Block block, long length)
+	    throws IOException {
+		long end = position + length;
+		for (Match match : found) {
+			// The context before the block comes from the history.
+			long start = Math.max(0, match.offset - contextLength);
+			int fromHistory = (int) Math.max(0, position - start);
+			match.context = Arrays.copyOfRange(history, history.length
+			    - fromHistory, history.length);
+			match.contextOffset = start;
+			pending.add(match);
+		}
+		for (int i = 0; i < pending.size(); ++i) {
+			Match match = pending.get(i);
+			long from = match.contextOffset + match.context.length;
+			long to = Math.min(end, match.offset + pattern.length + contextLength);
+			if (to > from) {
+				byte[] bytes = block.read(from - position, (int) (to - from));
+				int n = match.context.length;
+				match.context = Arrays.copyOf(match.context, n + bytes.length);
+				System.arraycopy(bytes, 0, match.context, n, bytes.length);
+			}
+			if (to == match.offset + pattern.length + contextLength) {
+				pending.remove(i--);
+			}
+		}
+		matches.addAll(found);
+
+		int keep = pattern.length - 1 + contextLength;
+		int fromBlock = (int) Math.min(length, keep);
+		int fromHistory = Math.min(history.length, keep - fromBlock);
+		byte[] bytes = block.read(length - fromBlock, fromBlock);
+		history = Arrays.copyOfRange(history, history.length - fromHistory,
+		    history.length + fromBlock);
+		System.arraycopy(bytes, 0, history, fromHistory, fromBlock);
+		position = end;
+	}
+
+	/**
+	 * @param b bytes to look at
+	 * @param offset index of the first byte to compare
+	 * @return whether the pattern occurs at offset
+	 */
+	private boolean matchesAt(byte[] b, int offset) {
+		for (int i = 0; i < pattern.length; ++i) {
+			if (b[offset + i] != pattern[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param offset offset of a match in the stream
+	 * @return a match at offset, without its context
+	 */
+	private static Match match(long offset) {
+		Match match = new Match();
+		match.offset = offset;
+		return match;
+	}
+}
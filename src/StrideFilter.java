@@ -0,0 +1,55 @@
+import java.util.Arrays;
+
+/**
+ * Filter which transposes data made of fixed width records, so that the first
+ * byte of every record comes first, then the second byte of every record, and
+ * so on. Fields of tables and structs are usually much more like the same
+ * field in other records than like their neighbours, so this brings similar
+ * bytes together. The record width is the parameter. If the length isn't a
+ * multiple of it, the last record is short.
+ * 
+ * @author E
+ */
+public class StrideFilter implements Filter {
+	public static final int ID = 3;
+	/** Largest record width we allow. */
+	public static final int MAX_STRIDE = 256;
+
+	@Override
+	public int id() {
+		return ID;
+	}
+
+	@Override
+	public boolean accepts(int parameter) {
+		return parameter >= 2 && parameter <= MAX_STRIDE;
+	}
+
+	@Override
+	public int[] suggest(byte[] sample, int length) {
+		int period = FilterComponent.findPeriod(sample, length);
+		return period == 1 ? new int[0] : new int[] { period };
+	}
+
+	@Override
+	public void encode(byte[] data, int length, int parameter) {
+		byte[] copy = Arrays.copyOf(data, length);
+		int k = 0;
+		for (int column = 0; column < parameter; ++column) {
+			for (int i = column; i < length; i += parameter) {
+				data[k++] = copy[i];
+			}
+		}
+	}
+
+	@Override
+	public void decode(byte[] data, int length, int parameter) {
+		byte[] copy = Arrays.copyOf(data, length);
+		int k = 0;
+		for (int column = 0; column < parameter; ++column) {
+			for (int i = column; i < length; i += parameter) {
+				data[i] = copy[k++];
+			}
+		}
+	}
+}
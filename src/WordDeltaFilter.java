@@ -0,0 +1,63 @@
+/**
+ * Filter which treats the data as 16 bit little endian samples, and replaces
+ * each with its difference from the sample of the same channel before it.
+ * Unlike DeltaFilter, the carry from the low byte into the high byte is kept,
+ * which suits 16 bit audio. The number of interleaved channels is the
+ * parameter. A trailing odd byte is left alone.
+ * 
+ * @author E
+ */
+public class WordDeltaFilter implements Filter {
+	public static final int ID = 2;
+	/** Largest number of channels we allow. */
+	public static final int MAX_CHANNELS = 16;
+
+	@Override
+	public int id() {
+		return ID;
+	}
+
+	@Override
+	public boolean accepts(int parameter) {
+		return parameter >= 1 && parameter <= MAX_CHANNELS;
+	}
+
+	@Override
+	public int[] suggest(byte[] sample, int length) {
+		// Mono and stereo are by far the most common.
+		return new int[] { 1, 2 };
+	}
+
+	@Override
+	public void encode(byte[] data, int length, int parameter) {
+		for (int i = length / 2 - 1; i >= parameter; --i) {
+			set(data, i, get(data, i) - get(data, i - parameter));
+		}
+	}
+
+	@Override
+	public void decode(byte[] data, int length, int parameter) {
+		for (int i = parameter; i < length / 2; ++i) {
+			set(data, i, get(data, i) + get(data, i - parameter));
+		}
+	}
+
+	/**
+	 * @param data bytes holding the samples
+	 * @param i index of a sample
+	 * @return the sample
+	 */
+	private static int get(byte[] data, int i) {
+		return (data[2 * i] & 0xFF) | (data[2 * i + 1] & 0xFF) << 8;
+	}
+
+	/**
+	 * @param data bytes holding the samples
+	 * @param i index of a sample
+	 * @param sample value to set it to, of which only the low 16 bits are kept
+	 */
+	private static void set(byte[] data, int i, int sample) {
+		data[2 * i] = (byte) sample;
+		data[2 * i + 1] = (byte) (sample >>> 8);
+	}
+}
@@ -0,0 +1,128 @@
+/**
+ * Filter for x86 machine code, which converts the relative addresses of CALL
+ * (E8) and JMP (E9) instructions into absolute ones. Calls to the same
+ * function from different places have different relative addresses but the
+ * same absolute one, so this turns them into repeats.
+ * 
+ * Only addresses within 16 MB either way are converted, which covers almost
+ * all real calls, and the result is kept in the same range so the decoder can
+ * tell which ones were. After any E8 or E9 we skip the 4 bytes which follow,
+ * whether we converted them or not, so the encoder and decoder always look at
+ * the same positions and never at bytes the other has changed. The parameter
+ * isn't used.
+ * 
+ * @author E
+ */
+public class X86Filter implements Filter {
+	public static final int ID = 4;
+	/**
+	 * We only suggest the filter for data with at least one call in this many
+	 * bytes. Random data has one in about 16 KB, so this only rules out data
+	 * which plainly isn't code, and leaves the rest to the trial.
+	 */
+	private static final int MIN_CALL_SPACING = 1024;
+
+	@Override
+	public int id() {
+		return ID;
+	}
+
+	@Override
+	public boolean accepts(int parameter) {
+		return parameter == 0;
+	}
+
+	@Override
+	public int[] suggest(byte[] sample, int length) {
+		if (countCalls(sample, length) * MIN_CALL_SPACING < length) {
+			return new int[0];
+		}
+		return new int[] { 0 };
+	}
+
+	@Override
+	public void encode(byte[] data, int length, int parameter) {
+		convert(data, length, true);
+	}
+
+	@Override
+	public void decode(byte[] data, int length, int parameter) {
+		convert(data, length, false);
+	}
+
+	/**
+	 * Counts the CALL and JMP instructions in the first length bytes of data
+	 * which convert would convert, that is those whose address is within 16 MB.
+	 * Real code is full of them and other data rarely has them.
+	 * 
+	 * @param data bytes to look through
+	 * @param length number of bytes to look through
+	 * @return number of instructions found
+	 */
+	public static int countCalls(byte[] data, int length) {
+		int count = 0;
+		for (int i = 0; i + 5 <= length; ++i) {
+			int op = data[i] & 0xFF;
+			if (op != 0xE8 && op != 0xE9) {
+				continue;
+			}
+			int top = data[i + 4] & 0xFF;
+			if (top == 0 || top == 0xFF) {
+				count++;
+			}
+			i += 4;
+		}
+		return count;
+	}
+
+	/**
+	 * Converts relative addresses to absolute or back.
+	 * 
+	 * @param data bytes to convert
+	 * @param length number of bytes to convert
+	 * @param encode true to convert to absolute, false to convert back
+	 */
+	private static void convert(byte[] data, int length, boolean encode) {
+		for (int i = 0; i + 5 <= length; ++i) {
+			int op = data[i] & 0xFF;
+			if (op != 0xE8 && op != 0xE9) {
+				continue;
+			}
+			// The top byte must be all zeroes or all ones, so the address is
+			// within 16 MB.
+			int top = data[i + 4] & 0xFF;
+			if (top == 0 || top == 0xFF) {
+				// Addresses are relative to the end of the instruction.
+				int position = i + 5;
+				int address = readInt(data, i + 1);
+				address = encode ? address + position : address - position;
+				// Wrap around to stay within 16 MB, so the decoder recognises it.
+				address = address << 7 >> 7;
+				writeInt(data, i + 1, address);
+			}
+			i += 4;
+		}
+	}
+
+	/**
+	 * @param data bytes to read from
+	 * @param offset index of the first byte
+	 * @return the little endian int at offset
+	 */
+	private static int readInt(byte[] data, int offset) {
+		return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8
+		    | (data[offset + 2] & 0xFF) << 16 | (data[offset + 3] & 0xFF) << 24;
+	}
+
+	/**
+	 * @param data bytes to write to
+	 * @param offset index of the first byte
+	 * @param n int to write little endian
+	 */
+	private static void writeInt(byte[] data, int offset, int n) {
+		data[offset] = (byte) n;
+		data[offset + 1] = (byte) (n >>> 8);
+		data[offset + 2] = (byte) (n >>> 16);
+		data[offset + 3] = (byte) (n >>> 24);
+	}
+}
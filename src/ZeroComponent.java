@@ -24,44 +24,121 @@ public class ZeroComponent {
 	 * @return inverse transformed data
 	 */
 	public int[] inverseTransform(int[] data, int length) {
-		// Compute the length of what we're going to end up returning.
+		byte[] bytes = new byte[length];
+		int total = inverseTransform(data, length, bytes);
+		int[] transformed = new int[total];
+		for (int i = 0; i < total; ++i) {
+			transformed[i] = bytes[i] & 0xFF;
+		}
+		return transformed;
+	}
+
+	/**
+	 * Undoes the forward transform, writing the bytes straight to output.
+	 * 
+	 * @param data data to inverse transform
+	 * @param length number of elements of data to inverse transform
+	 * @param output array of at least length bytes to write to
+	 * @return number of bytes written to output
+	 */
+	public int inverseTransform(int[] data, int length, byte[] output) {
 		int total = 0;
-		for (int i = 0; i < length; ++i) {
-			total++;
-			// If we see a 246, we only write 1 byte for it and the byte after it.
-			if (data[i] == 246) {
-				i++;
+		int i = 0;
+		// The last call ended on a 246, so we start with the byte after it.
+		if (stateUnfinished && length > 0) {
+			// 101+145 = 246, 102 + 145 = 247.
+			output[total++] = (byte) (data[i++] + 145);
+			stateUnfinished = false;
+		}
+		for (; i < length; ++i) {
+			int b = data[i];
+			if (b == 246) {
+				// If we're going to get trolled, we won't be able to write out the
+				// byte until next time.
+				if (i + 1 == length) {
+					stateUnfinished = true;
+					break;
+				}
+				b = data[++i] + 145;
+			} else if (b == 247) {
+				// 247's are actually zeros.
+				b = 0;
 			}
+			output[total++] = (byte) b;
 		}
+		return total;
+	}
 
-		// If we're going to get trolled, we won't be able to write out the byte, so
-		// decrease our total.
-		if (data[length - 1] == 246) {
-			total--;
-		}
+	/**
+	 * @return whether the last inverse transform ended on a 246, so the byte
+	 *         after it is still to come
+	 */
+	public boolean isUnfinished() {
+		return stateUnfinished;
+	}
 
-		int[] transformed = new int[total];
-		int dataIdx = 0;
-		for (int i = 0; i < transformed.length; ++i) {
-			transformed[i] = data[dataIdx++];
-			// 247's are actually zeros.
-			if (transformed[i] == 247) {
-				transformed[i] = 0;
-			}
-			if (stateUnfinished) {
-				transformed[i] = transformed[i] + 145;
-				stateUnfinished = false;
-			} else if (transformed[i] == 246) {
-				// 101+145 = 246, 102 + 145 = 247.
-				transformed[i] = data[dataIdx++] + 145;
+	/**
+	 * @param b byte to transform
+	 * @return number of symbols b becomes after the forward transform
+	 */
+	public static int transformedLength(int b) {
+		return b == 246 || b == 247 ? 2 : 1;
+	}
+
+	/**
+	 * Perform the forward transform on the first length bytes of data, writing
+	 * the result to out, which must have room for it.
+	 * 
+	 * @param data data to transform
+	 * @param length number of bytes of data to transform
+	 * @param out array to write transformed data to
+	 * @return number of symbols written to out
+	 */
+	public int transform(byte[] data, int length, int[] out) {
+		int idx = 0;
+		for (int i = 0; i < length; ++i) {
+			int b = data[i] & 0xFF;
+			if (b == 0) {
+				out[idx++] = 247;
+			} else if (b == 246) {
+				out[idx++] = 246;
+				out[idx++] = 101;
+			} else if (b == 247) {
+				out[idx++] = 246;
+				out[idx++] = 102;
+			} else {
+				out[idx++] = b;
 			}
 		}
+		return idx;
+	}
 
-		if (data[length - 1] == 246) {
-			stateUnfinished = true;
+	/**
+	 * Perform the forward transform on the first length bytes of data, writing
+	 * the result to out, which must have room for it.
+	 * 
+	 * @param data data to transform, one byte per element
+	 * @param length number of bytes of data to transform
+	 * @param out array to write transformed data to, one byte per element
+	 * @return number of symbols written to out
+	 */
+	public long transform(OffHeapArray data, long length, OffHeapArray out) {
+		long idx = 0;
+		for (long i = 0; i < length; ++i) {
+			int b = (int) data.get(i);
+			if (b == 0) {
+				out.set(idx++, 247);
+			} else if (b == 246) {
+				out.set(idx++, 246);
+				out.set(idx++, 101);
+			} else if (b == 247) {
+				out.set(idx++, 246);
+				out.set(idx++, 102);
+			} else {
+				out.set(idx++, b);
+			}
 		}
-
-		return transformed;
+		return idx;
 	}
 
 	/**